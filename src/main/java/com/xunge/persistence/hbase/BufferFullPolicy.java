@@ -0,0 +1,24 @@
+package com.xunge.persistence.hbase;
+
+/**
+ * 写缓冲达到内存上限时的处理方式
+ *
+ * @author stereo
+ */
+public enum BufferFullPolicy {
+
+    /**
+     * 阻塞写入线程, 直到后台刷入释放出额度
+     */
+    BLOCK,
+
+    /**
+     * 立即抛出BufferFullException
+     */
+    FAIL,
+
+    /**
+     * 在写入线程内同步刷入
+     */
+    FLUSH
+}
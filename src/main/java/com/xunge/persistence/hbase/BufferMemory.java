@@ -0,0 +1,105 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 所有表写缓冲共享的内存额度(按Mutation.heapSize()计)
+ *
+ * @author stereo
+ */
+class BufferMemory {
+
+    private final long maxBytes;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    BufferMemory(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 尝试占用额度; 缓冲为空时总是允许, 保证单条超大数据也能写入
+     *
+     * @param bytes
+     * @return
+     */
+    boolean tryReserve(long bytes) {
+        for (; ; ) {
+            long current = used.get();
+            if (current > 0 && current + bytes > maxBytes) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 不检查上限直接占用
+     *
+     * @param bytes
+     */
+    void forceReserve(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    /**
+     * 释放额度并唤醒等待者
+     *
+     * @param bytes
+     */
+    void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        used.addAndGet(-bytes);
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 等待额度释放; 先登记等待再检查, 避免错过检查之前的释放
+     *
+     * @param bytes
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    void awaitRelease(long bytes, long timeoutMillis) throws InterruptedException {
+        waiters.incrementAndGet();
+        lock.lock();
+        try {
+            long current = used.get();
+            if (current > 0 && current + bytes > maxBytes) {
+                released.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+            waiters.decrementAndGet();
+        }
+    }
+
+    long used() {
+        return used.get();
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,435 @@
+package com.xunge.persistence.hbase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 离线批量导入
+ * <p/>
+ * 数据不进写缓冲: 在本地内存中排序, 超过spillBytes写成有序的run文件, prepare时多路归并,
+ * 按Region边界切分成每个Region一个有序文件; load时按文件顺序批量写入.
+ * 同一单元格(行/列族/列/时间戳)多次写入保留最后一次, 未指定时间戳的按写入时间固定
+ * <p/>
+ * 默认按表定义写WAL; {@link HbaseAccessor#BULK_DURABILITY_KEY}设为SKIP_WAL可跳过WAL,
+ * 但RegionServer在MemStore刷盘前宕机时这部分数据丢失且无法恢复, 需要在load后flush表
+ *
+ * @param <QUERY_OP_TYPE>
+ * @param <ROW_ID_TYPE>
+ * @author stereo
+ */
+public class BulkIngest<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
+        implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(BulkIngest.class);
+
+    private static final int LOAD_BATCH_ROWS = 1000;
+
+    private final HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
+
+    private final byte[] tableName;
+
+    private final File dir;
+
+    private final long spillBytes;
+
+    private final Durability durability;
+
+    private final List<KeyValue> cells = new ArrayList<KeyValue>();
+
+    private long cellBytes;
+
+    private final List<File> runs = new ArrayList<File>();
+
+    private List<File> regions;
+
+    private long count;
+
+    BulkIngest(HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase,
+               byte[] tableName, File dir, long spillBytes,
+               Durability durability) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("cannot create bulk ingest dir " + dir);
+        }
+        this.hBase = hBase;
+        this.tableName = tableName;
+        this.dir = dir;
+        this.spillBytes = spillBytes;
+        this.durability = durability;
+    }
+
+    /**
+     * 写入这里的SaveRow不经过写缓冲
+     *
+     * @return
+     */
+    public SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE> save() {
+        return new SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE>(hBase, tableName, this);
+    }
+
+    /**
+     * @param put
+     */
+    public synchronized void add(Put put) {
+        if (regions != null) {
+            throw new RuntimeException("bulk ingest already prepared");
+        }
+        long now = System.currentTimeMillis();
+        for (List<Cell> family : put.getFamilyCellMap().values()) {
+            for (Cell cell : family) {
+                long ts = cell.getTimestamp() == HConstants.LATEST_TIMESTAMP ? now
+                        : cell.getTimestamp();
+                KeyValue kv = new KeyValue(CellUtil.cloneRow(cell),
+                        CellUtil.cloneFamily(cell),
+                        CellUtil.cloneQualifier(cell), ts, KeyValue.Type.Put,
+                        CellUtil.cloneValue(cell));
+                cells.add(kv);
+                cellBytes += kv.heapSize();
+                count++;
+            }
+        }
+        if (cellBytes >= spillBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * 内存中的数据排序后写成run文件
+     */
+    private void spill() {
+        if (cells.isEmpty()) {
+            return;
+        }
+        // 稳定排序, 相同单元格保持写入顺序
+        Collections.sort(cells, KeyValue.COMPARATOR);
+        File run = new File(dir, String.format("run-%06d.kv", runs.size()));
+        CellWriter writer = new CellWriter(run);
+        try {
+            for (int i = 0; i < cells.size(); i++) {
+                KeyValue kv = cells.get(i);
+                if (i + 1 < cells.size()
+                        && KeyValue.COMPARATOR.compare(kv, cells.get(i + 1)) == 0) {
+                    continue;
+                }
+                writer.write(kv);
+            }
+            writer.close();
+        } catch (RuntimeException e) {
+            writer.abort();
+            run.delete();
+            throw e;
+        }
+        LOG.debug("spill " + cells.size() + " cells to " + run);
+        runs.add(run);
+        cells.clear();
+        cellBytes = 0;
+    }
+
+    /**
+     * 按表当前的Region边界归并切分
+     *
+     * @return 每个Region一个有序文件, 没有数据的Region不生成文件
+     */
+    public synchronized List<File> prepare() {
+        if (regions != null) {
+            return regions;
+        }
+        byte[][] startKeys;
+        try {
+            startKeys = hBase.getStartKeys(tableName);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return prepare(startKeys.length > 1 ? Arrays.copyOfRange(startKeys, 1,
+                startKeys.length) : new byte[0][]);
+    }
+
+    /**
+     * 按指定的分区点归并切分, 不访问Hbase
+     *
+     * @param splitKeys 有序的分区点(不含第一个Region的空起始行)
+     * @return 每个分区一个有序文件, 没有数据的分区不生成文件
+     */
+    public synchronized List<File> prepare(byte[][] splitKeys) {
+        if (regions != null) {
+            return regions;
+        }
+        spill();
+        final List<CellReader> readers = new ArrayList<CellReader>(runs.size());
+        // 相同单元格后写的run优先, 其余跳过
+        PriorityQueue<CellReader> heap = new PriorityQueue<CellReader>(
+                Math.max(1, runs.size()), new Comparator<CellReader>() {
+            @Override
+            public int compare(CellReader a, CellReader b) {
+                int c = KeyValue.COMPARATOR.compare(a.current, b.current);
+                return c != 0 ? c : b.run - a.run;
+            }
+        });
+        List<File> files = new ArrayList<File>();
+        CellWriter writer = null;
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                CellReader reader = new CellReader(runs.get(i), i);
+                readers.add(reader);
+                if (reader.next()) {
+                    heap.add(reader);
+                }
+            }
+            int region = -1;
+            KeyValue last = null;
+            while (!heap.isEmpty()) {
+                CellReader reader = heap.poll();
+                KeyValue kv = reader.current;
+                if (last == null || KeyValue.COMPARATOR.compare(last, kv) != 0) {
+                    int r = region(splitKeys, kv);
+                    if (r != region) {
+                        if (writer != null) {
+                            writer.close();
+                            writer = null;
+                        }
+                        File file = new File(dir, String.format(
+                                "region-%06d.kv", r));
+                        writer = new CellWriter(file);
+                        files.add(file);
+                        region = r;
+                    }
+                    writer.write(kv);
+                    last = kv;
+                }
+                if (reader.next()) {
+                    heap.add(reader);
+                }
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } finally {
+            // 出错时关闭未完成的文件, 不掩盖原来的异常
+            if (writer != null) {
+                writer.abort();
+            }
+            for (CellReader reader : readers) {
+                reader.close();
+            }
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        regions = files;
+        return files;
+    }
+
+    /**
+     * 起始行不大于row的最后一个分区
+     */
+    private static int region(byte[][] splitKeys, KeyValue kv) {
+        int low = 0;
+        int high = splitKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Bytes.compareTo(kv.getRowArray(), kv.getRowOffset(),
+                    kv.getRowLength(), splitKeys[mid], 0, splitKeys[mid].length) < 0) {
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 把Region文件写入Hbase, 全部成功后删除文件
+     *
+     * @return 交给DeadLetterSink的行数
+     */
+    public synchronized int load() {
+        List<File> files = prepare();
+        if (durability == Durability.SKIP_WAL) {
+            LOG.warn("bulk loading " + Bytes.toString(tableName)
+                    + " with SKIP_WAL, data not yet flushed from the memstore"
+                    + " is lost if a region server fails");
+        }
+        int dropped = 0;
+        for (File file : files) {
+            dropped += load(file);
+        }
+        hBase.invalidateTable(tableName);
+        if (dropped == 0) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        LOG.info("bulk loaded " + count + " cells into "
+                + Bytes.toString(tableName) + ", " + dropped + " rows dropped");
+        return dropped;
+    }
+
+    private int load(File file) {
+        int dropped = 0;
+        List<Put> puts = new ArrayList<Put>(LOAD_BATCH_ROWS);
+        Put put = null;
+        CellReader reader = new CellReader(file, 0);
+        try {
+            while (reader.next()) {
+                KeyValue kv = reader.current;
+                if (put == null || !CellUtil.matchingRow(kv, put.getRow())) {
+                    if (puts.size() == LOAD_BATCH_ROWS) {
+                        dropped += hBase.flushMutations(tableName, puts);
+                        puts = new ArrayList<Put>(LOAD_BATCH_ROWS);
+                    }
+                    put = new Put(CellUtil.cloneRow(kv));
+                    put.setDurability(durability);
+                    puts.add(put);
+                }
+                put.add(kv);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            reader.close();
+        }
+        if (!puts.isEmpty()) {
+            dropped += hBase.flushMutations(tableName, puts);
+        }
+        return dropped;
+    }
+
+    /**
+     * @return 已写入的单元格数
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * 删除本地文件
+     */
+    @Override
+    public synchronized void close() {
+        cells.clear();
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        if (regions != null) {
+            for (File file : regions) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 文件格式: length(int) KeyValue
+     */
+    private static final class CellWriter {
+        private final DataOutputStream out;
+
+        CellWriter(File file) {
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file), 64 * 1024));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void write(KeyValue kv) {
+            try {
+                KeyValue.write(kv, out);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * 关闭时写出最后一段缓冲, 失败说明文件不完整, 不能当作完成
+         */
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * 出错后丢弃文件时关闭
+         */
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.debug("close aborted file failed", e);
+            }
+        }
+    }
+
+    private static final class CellReader {
+        private final DataInputStream in;
+        final int run;
+        KeyValue current;
+
+        CellReader(File file, int run) {
+            this.run = run;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), 64 * 1024));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        boolean next() {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            try {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                current = new KeyValue(bytes, 0, length);
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.xunge.persistence.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 刷入前按行合并缓冲数据
+ * <p/>
+ * 同一行的数据保持入队顺序: 相邻的Put合并为一个(同列同时间戳后写覆盖先写),
+ * 相邻的Delete合并为一个, 被后续Delete完全覆盖的Put单元格不再发送;
+ * 合并后仍同时有Put和Delete的行组成RowMutations原子提交, Delete会覆盖其后的Put时才固定客户端时间戳.
+ * <p/>
+ * 传入的数据在刷入期间仍会被读取合并(ReadOverlay)看到, 不修改原对象, 需要改动时先复制
+ *
+ * @author stereo
+ */
+final class Coalescer {
+
+    private Coalescer() {
+    }
+
+    /**
+     * 合并一张表的缓冲数据
+     *
+     * @param log 按入队顺序
+     * @return 每行一个Put、Delete或RowMutations
+     */
+    static List<Row> coalesce(List<Mutation> log) {
+        Map<byte[], List<Mutation>> rows = new TreeMap<byte[], List<Mutation>>(
+                Bytes.BYTES_COMPARATOR);
+        for (Mutation mutation : log) {
+            List<Mutation> sequence = rows.get(mutation.getRow());
+            if (sequence == null) {
+                sequence = new ArrayList<Mutation>(1);
+                rows.put(mutation.getRow(), sequence);
+            }
+            sequence.add(mutation);
+        }
+        List<Row> result = new ArrayList<Row>(rows.size());
+        for (List<Mutation> sequence : rows.values()) {
+            if (sequence.size() > 1) {
+                dropCovered(sequence);
+                sequence = mergeAdjacent(sequence);
+            }
+            if (sequence.size() == 1) {
+                result.add(sequence.get(0));
+            } else if (!sequence.isEmpty()) {
+                result.add(rowMutations(sequence));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 去掉会被后续Delete覆盖的Put单元格(有覆盖时换成复制的Put)
+     */
+    private static void dropCovered(List<Mutation> sequence) {
+        for (int i = sequence.size() - 2; i >= 0; i--) {
+            if (!(sequence.get(i) instanceof Put)) {
+                continue;
+            }
+            List<Delete> later = new ArrayList<Delete>();
+            for (int j = i + 1; j < sequence.size(); j++) {
+                if (sequence.get(j) instanceof Delete) {
+                    later.add((Delete) sequence.get(j));
+                }
+            }
+            if (later.isEmpty()) {
+                continue;
+            }
+            Put put = (Put) sequence.get(i);
+            Put kept = new Put(put.getRow(), put.getTimeStamp());
+            boolean dropped = false;
+            try {
+                for (List<Cell> cells : put.getFamilyCellMap().values()) {
+                    for (Cell cell : cells) {
+                        if (covered(cell, later)) {
+                            dropped = true;
+                        } else {
+                            kept.add(cell);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (!dropped) {
+                continue;
+            }
+            if (kept.isEmpty()) {
+                sequence.remove(i);
+            } else {
+                copyAttributes(put, kept);
+                sequence.set(i, kept);
+            }
+        }
+    }
+
+    /**
+     * 合并相邻的同类数据, 第一次合并到某条数据前先复制
+     */
+    private static List<Mutation> mergeAdjacent(List<Mutation> sequence) {
+        List<Mutation> result = new ArrayList<Mutation>(sequence.size());
+        // 最后一条是否为本方法复制的
+        boolean copied = false;
+        for (Mutation mutation : sequence) {
+            int lastIndex = result.size() - 1;
+            Mutation last = result.isEmpty() ? null : result.get(lastIndex);
+            if (last instanceof Put && mutation instanceof Put
+                    && compatible(last, mutation)) {
+                if (!copied) {
+                    last = new Put((Put) last);
+                    result.set(lastIndex, last);
+                    copied = true;
+                }
+                merge((Put) last, (Put) mutation);
+            } else if (last instanceof Delete && mutation instanceof Delete
+                    && compatible(last, mutation)
+                    && last.isEmpty() == mutation.isEmpty()) {
+                if (last.isEmpty()) {
+                    // 两次整行删除, 时间戳相同时保留一个
+                    if (last.getTimeStamp() != mutation.getTimeStamp()) {
+                        result.add(mutation);
+                        copied = false;
+                    }
+                    continue;
+                }
+                if (!copied) {
+                    last = copy((Delete) last);
+                    result.set(lastIndex, last);
+                    copied = true;
+                }
+                merge((Delete) last, (Delete) mutation);
+            } else {
+                result.add(mutation);
+                copied = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 只合并没有属性(ACL、TTL、可见性等)且持久化级别相同的数据
+     */
+    private static boolean compatible(Mutation a, Mutation b) {
+        return a.getDurability() == b.getDurability()
+                && a.getAttributesMap().isEmpty()
+                && b.getAttributesMap().isEmpty();
+    }
+
+    /**
+     * from中的单元格覆盖into中同列同时间戳的单元格
+     */
+    private static void merge(Put into, Put from) {
+        for (Map.Entry<byte[], List<Cell>> family : from.getFamilyCellMap()
+                .entrySet()) {
+            List<Cell> existing = into.getFamilyCellMap().get(family.getKey());
+            for (Cell cell : family.getValue()) {
+                if (existing != null) {
+                    for (Iterator<Cell> it = existing.iterator(); it.hasNext(); ) {
+                        Cell old = it.next();
+                        if (old.getTimestamp() == cell.getTimestamp()
+                                && CellUtil.matchingQualifier(old, cell)) {
+                            it.remove();
+                        }
+                    }
+                }
+                try {
+                    into.add(cell);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (existing == null) {
+                    existing = into.getFamilyCellMap().get(family.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * from中的删除标记追加到into
+     */
+    private static void merge(Delete into, Delete from) {
+        for (List<Cell> markers : from.getFamilyCellMap().values()) {
+            for (Cell marker : markers) {
+                try {
+                    into.addDeleteMarker(marker);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete(Delete)与原对象共用每个列族的标记列表, 这里逐个复制
+     */
+    private static Delete copy(Delete delete) {
+        Delete copy = new Delete(delete.getRow(), delete.getTimeStamp());
+        merge(copy, delete);
+        copyAttributes(delete, copy);
+        return copy;
+    }
+
+    /**
+     * 单元格是否被随后提交的Delete删除
+     * <p/>
+     * 只处理整行、整列族、整列(所有版本)删除; 单版本删除与Put的先后关系影响结果, 不处理
+     */
+    static boolean covered(Cell cell, List<Delete> deletes) {
+        for (Delete delete : deletes) {
+            if (delete.isEmpty()) {
+                if (masks(cell.getTimestamp(), delete.getTimeStamp())) {
+                    return true;
+                }
+                continue;
+            }
+            List<Cell> markers = delete.getFamilyCellMap().get(
+                    CellUtil.cloneFamily(cell));
+            if (markers == null) {
+                continue;
+            }
+            for (Cell marker : markers) {
+                KeyValue.Type type = KeyValue.Type.codeToType(marker
+                        .getTypeByte());
+                if (type == KeyValue.Type.DeleteFamily
+                        || (type == KeyValue.Type.DeleteColumn && CellUtil
+                        .matchingQualifier(marker, cell))) {
+                    if (masks(cell.getTimestamp(), marker.getTimestamp())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * put中是否有单元格会被delete删除(同为服务端时间戳时也算)
+     */
+    static boolean overlaps(Put put, Delete delete) {
+        List<Delete> deletes = Collections.singletonList(delete);
+        for (List<Cell> cells : put.getFamilyCellMap().values()) {
+            for (Cell cell : cells) {
+                if (covered(cell, deletes)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 都由服务端取时间时Delete在后必然覆盖; 都是显式时间戳时按大小比较
+     */
+    private static boolean masks(long cellTimestamp, long deleteTimestamp) {
+        if (deleteTimestamp == HConstants.LATEST_TIMESTAMP) {
+            return cellTimestamp == HConstants.LATEST_TIMESTAMP;
+        }
+        return cellTimestamp != HConstants.LATEST_TIMESTAMP
+                && cellTimestamp <= deleteTimestamp;
+    }
+
+    /**
+     * RowMutations里所有数据由服务端取同一个时间戳, 同一时间戳上Delete总是覆盖Put,
+     * 先删后写会丢数据; 只有这种情况才按顺序给未指定时间戳的数据分配递增的客户端时间戳.
+     * 固定时间戳取客户端时钟, 时钟落后于RegionServer时删除可能漏掉服务端已有的新版本
+     */
+    private static RowMutations rowMutations(List<Mutation> sequence) {
+        RowMutations rowMutations = new RowMutations(sequence.get(0).getRow());
+        try {
+            if (!needsPin(sequence)) {
+                for (Mutation mutation : sequence) {
+                    if (mutation instanceof Put) {
+                        rowMutations.add((Put) mutation);
+                    } else {
+                        rowMutations.add((Delete) mutation);
+                    }
+                }
+                return rowMutations;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Map<String, Long> written = new HashMap<String, Long>();
+        long timestamp = System.currentTimeMillis();
+        try {
+            for (Mutation mutation : sequence) {
+                if (mutation instanceof Put) {
+                    rowMutations.add(pin((Put) mutation, timestamp, written));
+                } else {
+                    rowMutations.add(pin((Delete) mutation, timestamp, written));
+                }
+                timestamp++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return rowMutations;
+    }
+
+    /**
+     * 是否有Delete会覆盖其后的Put, 或有删除最新版本的标记跟在Put之后(最新版本取决于先后)
+     */
+    private static boolean needsPin(List<Mutation> sequence) {
+        boolean written = false;
+        for (int i = 0; i < sequence.size(); i++) {
+            Mutation mutation = sequence.get(i);
+            if (mutation instanceof Put) {
+                written = true;
+                continue;
+            }
+            Delete delete = (Delete) mutation;
+            if (written && deletesLatestVersion(delete)) {
+                return true;
+            }
+            for (int j = i + 1; j < sequence.size(); j++) {
+                if (sequence.get(j) instanceof Put
+                        && overlaps((Put) sequence.get(j), delete)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 是否含有未指定时间戳的单版本删除标记(删除时的最新版本)
+     */
+    static boolean deletesLatestVersion(Delete delete) {
+        for (List<Cell> markers : delete.getFamilyCellMap().values()) {
+            for (Cell marker : markers) {
+                if (KeyValue.Type.codeToType(marker.getTypeByte()) == KeyValue.Type.Delete
+                        && marker.getTimestamp() == HConstants.LATEST_TIMESTAMP) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String column(Cell cell) {
+        return Bytes.toStringBinary(CellUtil.cloneFamily(cell)) + ":"
+                + Bytes.toStringBinary(CellUtil.cloneQualifier(cell));
+    }
+
+    /**
+     * 未指定时间戳的单元格改用timestamp(本地日志重放时也用它固定追加时间)
+     *
+     * @param put
+     * @param timestamp
+     * @param written   记录每列写入的时间戳
+     * @return
+     */
+    static Put pin(Put put, long timestamp, Map<String, Long> written) {
+        Put pinned = new Put(put.getRow());
+        for (List<Cell> cells : put.getFamilyCellMap().values()) {
+            for (Cell cell : cells) {
+                long ts = cell.getTimestamp() == HConstants.LATEST_TIMESTAMP ? timestamp
+                        : cell.getTimestamp();
+                pinned.addColumn(CellUtil.cloneFamily(cell),
+                        CellUtil.cloneQualifier(cell), ts, CellUtil.cloneValue(cell));
+                written.put(column(cell), ts);
+            }
+        }
+        copyAttributes(put, pinned);
+        return pinned;
+    }
+
+    static Delete pin(Delete delete, long timestamp,
+                      Map<String, Long> written) {
+        if (delete.isEmpty()) {
+            if (delete.getTimeStamp() != HConstants.LATEST_TIMESTAMP) {
+                return delete;
+            }
+            Delete pinned = new Delete(delete.getRow(), timestamp);
+            copyAttributes(delete, pinned);
+            return pinned;
+        }
+        Delete pinned = new Delete(delete.getRow());
+        for (List<Cell> markers : delete.getFamilyCellMap().values()) {
+            for (Cell marker : markers) {
+                byte[] family = CellUtil.cloneFamily(marker);
+                byte[] qualifier = CellUtil.cloneQualifier(marker);
+                long ts = marker.getTimestamp();
+                boolean latest = ts == HConstants.LATEST_TIMESTAMP;
+                switch (KeyValue.Type.codeToType(marker.getTypeByte())) {
+                    case DeleteFamily:
+                        pinned.addFamily(family, latest ? timestamp : ts);
+                        break;
+                    case DeleteColumn:
+                        pinned.addColumns(family, qualifier, latest ? timestamp : ts);
+                        break;
+                    case Delete:
+                        // 删除最新版本: 本行前面写过该列则删除写入的那个版本
+                        Long version = latest ? written.get(column(marker)) : Long.valueOf(ts);
+                        if (version == null) {
+                            pinned.addColumn(family, qualifier);
+                        } else {
+                            pinned.addColumn(family, qualifier, version);
+                        }
+                        break;
+                    default:
+                        try {
+                            pinned.addDeleteMarker(marker);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                }
+            }
+        }
+        copyAttributes(delete, pinned);
+        return pinned;
+    }
+
+    private static void copyAttributes(Mutation from, Mutation to) {
+        to.setDurability(from.getDurability());
+        for (Map.Entry<String, byte[]> attribute : from.getAttributesMap()
+                .entrySet()) {
+            to.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+    }
+}
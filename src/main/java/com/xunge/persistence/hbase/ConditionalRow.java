@@ -0,0 +1,358 @@
+package com.xunge.persistence.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 条件写入(check-and-put/check-and-delete)
+ * <p/>
+ * 每行一个条件: 某列等于期望值或不存在时才执行该行的Put/Delete, 由RegionServer原子判断.
+ * 提交前先刷入该表的写缓冲, 条件按RegionServer分组后并行执行, 返回每行是否成功
+ * 同一行既有写入又有删除时作为RowMutations提交; 删除会覆盖写入的列时先删后写,
+ * 由客户端固定时间戳(删除取当前时间-1, 写入取当前时间), 客户端时钟落后于RegionServer时
+ * 删除可能漏掉服务端刚写入的新版本
+ *
+ * @param <QUERY_OP_TYPE>
+ * @param <ROW_ID_TYPE>
+ * @author stereo
+ */
+public class ConditionalRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
+
+    private static final Log LOG = LogFactory.getLog(ConditionalRow.class);
+
+    private HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
+    private byte[] tableName;
+    private List<Condition> conditions = new ArrayList<Condition>();
+    private Condition current;
+    private byte[] currentFamily;
+    private Throwable[] errors = new Throwable[0];
+
+    ConditionalRow(HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase,
+                   byte[] tableName) {
+        this.hBase = hBase;
+        this.tableName = tableName;
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> row(ROW_ID_TYPE id) {
+        current = new Condition(hBase.toBytes(id), conditions.size());
+        conditions.add(current);
+        currentFamily = null;
+        return this;
+    }
+
+    /**
+     * 条件: 列的当前值等于expected
+     *
+     * @param family
+     * @param qualifier
+     * @param expected
+     * @return
+     */
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> ifEquals(String family,
+                                                             String qualifier, Object expected) {
+        return ifEquals(Bytes.toBytes(family), Bytes.toBytes(qualifier),
+                expected);
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> ifEquals(byte[] family,
+                                                             byte[] qualifier, Object expected) {
+        if (expected == null) {
+            return ifAbsent(family, qualifier);
+        }
+        return when(family, qualifier, hBase.toBytes(expected));
+    }
+
+    /**
+     * 条件: 列不存在
+     *
+     * @param family
+     * @param qualifier
+     * @return
+     */
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> ifAbsent(String family,
+                                                             String qualifier) {
+        return ifAbsent(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> ifAbsent(byte[] family,
+                                                             byte[] qualifier) {
+        return when(family, qualifier, null);
+    }
+
+    private ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> when(byte[] family,
+                                                          byte[] qualifier, byte[] value) {
+        Condition condition = current();
+        if (condition.family != null) {
+            throw new RuntimeException("only one condition per row");
+        }
+        condition.family = family;
+        condition.qualifier = qualifier;
+        condition.value = value;
+        return this;
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> family(String name) {
+        return family(Bytes.toBytes(name));
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> family(byte[] name) {
+        current();
+        currentFamily = name;
+        return this;
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> col(String qualifier,
+                                                        Object o) {
+        return col(Bytes.toBytes(qualifier), o);
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> col(byte[] qualifier,
+                                                        Object o) {
+        if (currentFamily == null) {
+            throw new RuntimeException("not implemented");
+        }
+        if (o == null) {
+            return this;
+        }
+        Condition condition = current();
+        if (condition.put == null) {
+            condition.put = new Put(condition.row);
+        }
+        condition.put.addColumn(currentFamily, qualifier, hBase.toBytes(o));
+        return this;
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> deleteColumn(
+            String qualifier) {
+        return deleteColumn(Bytes.toBytes(qualifier));
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> deleteColumn(
+            byte[] qualifier) {
+        if (currentFamily == null) {
+            throw new RuntimeException("not implemented");
+        }
+        delete().addColumns(currentFamily, qualifier);
+        return this;
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> deleteFamily(String name) {
+        return deleteFamily(Bytes.toBytes(name));
+    }
+
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> deleteFamily(byte[] name) {
+        delete().addFamily(name);
+        return this;
+    }
+
+    /**
+     * 删除整行
+     *
+     * @return
+     */
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> deleteRow() {
+        delete();
+        return this;
+    }
+
+    private Delete delete() {
+        Condition condition = current();
+        if (condition.delete == null) {
+            condition.delete = new Delete(condition.row);
+        }
+        return condition.delete;
+    }
+
+    private Condition current() {
+        if (current == null) {
+            throw new RuntimeException("not implemented");
+        }
+        return current;
+    }
+
+    /**
+     * @return 待提交的行数
+     */
+    public int size() {
+        return conditions.size();
+    }
+
+    /**
+     * 提交并清空
+     *
+     * @return 按row()的顺序, 条件满足并写入成功的为true
+     */
+    public boolean[] submit() {
+        List<Condition> list = take();
+        return submit(list);
+    }
+
+    /**
+     * 异步提交
+     *
+     * @return 按row()的顺序, 条件满足并写入成功的为true
+     */
+    public ListenableFuture<boolean[]> submitAsync() {
+        final List<Condition> list = take();
+        return hBase.submit(new Callable<boolean[]>() {
+            @Override
+            public boolean[] call() throws Exception {
+                return submit(list);
+            }
+        });
+    }
+
+    /**
+     * 上次提交中第index行的异常, 条件不满足或成功时为null
+     *
+     * @param index
+     * @return
+     */
+    public synchronized Throwable getError(int index) {
+        return errors[index];
+    }
+
+    private List<Condition> take() {
+        for (Condition condition : conditions) {
+            if (condition.family == null) {
+                throw new RuntimeException("condition not set for row "
+                        + Bytes.toStringBinary(condition.row));
+            }
+            if (condition.put == null && condition.delete == null) {
+                throw new RuntimeException("nothing to write for row "
+                        + Bytes.toStringBinary(condition.row));
+            }
+        }
+        List<Condition> list = conditions;
+        conditions = new ArrayList<Condition>();
+        current = null;
+        currentFamily = null;
+        return list;
+    }
+
+    private boolean[] submit(List<Condition> list) {
+        boolean[] success = new boolean[list.size()];
+        Throwable[] failures = new Throwable[list.size()];
+        if (!list.isEmpty()) {
+            // 条件要看到之前缓冲的写入
+            hBase.flush(tableName);
+            try {
+                for (RegionDispatcher.Batch<Condition> batch : hBase.dispatch(
+                        tableName, list, CHECK_AND_MUTATE)) {
+                    for (int i = 0; i < batch.actions.size(); i++) {
+                        int index = batch.actions.get(i).index;
+                        Object result = batch.results[i];
+                        if (result instanceof Boolean) {
+                            success[index] = (Boolean) result;
+                        } else {
+                            failures[index] = result == null ? batch.error
+                                    : (Throwable) result;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                for (int i = 0; i < failures.length; i++) {
+                    failures[i] = e;
+                }
+            }
+            for (Condition condition : list) {
+                hBase.invalidateRow(tableName, condition.row);
+            }
+            for (Throwable failure : failures) {
+                if (failure != null) {
+                    LOG.error("conditional write failed ["
+                            + Bytes.toString(tableName) + "]", failure);
+                    break;
+                }
+            }
+        }
+        synchronized (this) {
+            errors = failures;
+        }
+        return success;
+    }
+
+    private static final RegionDispatcher.BatchCall<Condition> CHECK_AND_MUTATE = new RegionDispatcher.BatchCall<Condition>() {
+        @Override
+        public void call(Table table,
+                         RegionDispatcher.Batch<Condition> batch) {
+            for (int i = 0; i < batch.actions.size(); i++) {
+                try {
+                    batch.results[i] = batch.actions.get(i).execute(table);
+                } catch (IOException e) {
+                    batch.results[i] = e;
+                }
+            }
+        }
+    };
+
+    /**
+     * 一行的条件和要执行的写入
+     */
+    static final class Condition implements Row {
+        final byte[] row;
+        final int index;
+        byte[] family;
+        byte[] qualifier;
+        /**
+         * null表示列不存在
+         */
+        byte[] value;
+        Put put;
+        Delete delete;
+
+        Condition(byte[] row, int index) {
+            this.row = row;
+            this.index = index;
+        }
+
+        boolean execute(Table table) throws IOException {
+            if (delete == null) {
+                return table.checkAndPut(row, family, qualifier, value, put);
+            }
+            if (put == null) {
+                return table.checkAndDelete(row, family, qualifier, value,
+                        delete);
+            }
+            RowMutations mutations = new RowMutations(row);
+            if (Coalescer.overlaps(put, delete)) {
+                // 服务端取同一时间戳时删除会覆盖同列写入
+                Map<String, Long> written = new HashMap<String, Long>();
+                long timestamp = System.currentTimeMillis();
+                mutations.add(Coalescer.pin(delete, timestamp - 1, written));
+                mutations.add(Coalescer.pin(put, timestamp, written));
+            } else {
+                mutations.add(delete);
+                mutations.add(put);
+            }
+            return table.checkAndMutate(row, family, qualifier,
+                    CompareOp.EQUAL, value, mutations);
+        }
+
+        @Override
+        public byte[] getRow() {
+            return row;
+        }
+
+        @Override
+        public int compareTo(Row other) {
+            return Bytes.compareTo(row, other.getRow());
+        }
+    }
+}
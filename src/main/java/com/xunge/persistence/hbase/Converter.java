@@ -98,6 +98,35 @@ public final class Converter {
         return (U) getConverter(c).fromBytes(value);
     }
 
+    /**
+     * 与LongConverter一致: 取前8字节, 不足时抛异常
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    static long toLong(byte[] bytes, int offset, int length) {
+        return Bytes.toLong(bytes, offset,
+                Math.min(length, Bytes.SIZEOF_LONG));
+    }
+
+    static int toInt(byte[] bytes, int offset, int length) {
+        return Bytes.toInt(bytes, offset, Math.min(length, Bytes.SIZEOF_INT));
+    }
+
+    static double toDouble(byte[] bytes, int offset, int length) {
+        return Double.longBitsToDouble(toLong(bytes, offset, length));
+    }
+
+    static boolean toBoolean(byte[] bytes, int offset, int length) {
+        if (length != 1) {
+            throw new IllegalArgumentException("Array has wrong size: "
+                    + length);
+        }
+        return bytes[offset] != (byte) 0;
+    }
+
     protected static class BigDecimalConverter implements
             TypeConverter<BigDecimal> {
 
@@ -1,8 +1,22 @@
 package com.xunge.persistence.hbase;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import com.google.common.util.concurrent.ListenableFuture;
 import com.xunge.persistence.hbase.api.ForEach;
+import com.xunge.persistence.hbase.api.IncrementCallback;
+import com.xunge.persistence.hbase.api.Row;
 
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
@@ -27,6 +41,42 @@ public class CountRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
                 this, hBase);
     }
 
+    /**
+     * 批量递增: 按行合并后按RegionServer分组提交
+     *
+     * @return
+     */
+    public CountBatch<QUERY_OP_TYPE, ROW_ID_TYPE> batch() {
+        return new CountBatch<QUERY_OP_TYPE, ROW_ID_TYPE>(tableName, hBase);
+    }
+
+    /**
+     * 分片计数器: 一个逻辑计数器分散到多行, 避免热点行
+     *
+     * @param id
+     * @param shards 分片数(1~256)
+     * @return
+     */
+    public ShardedCountFamilyCol<QUERY_OP_TYPE, ROW_ID_TYPE> sharded(
+            ROW_ID_TYPE id, int shards) {
+        return new ShardedCountFamilyCol<QUERY_OP_TYPE, ROW_ID_TYPE>(tableName,
+                id, shards, this, hBase);
+    }
+
+    /**
+     * 分片计数器所在表的预分区点, 每个分片一个Region
+     *
+     * @param shards
+     * @return
+     */
+    public static byte[][] shardSplitKeys(int shards) {
+        byte[][] splitKeys = new byte[shards - 1][];
+        for (int i = 1; i < shards; i++) {
+            splitKeys[i - 1] = new byte[]{(byte) i};
+        }
+        return splitKeys;
+    }
+
     public <U> CountRow<QUERY_OP_TYPE, ROW_ID_TYPE> rows(Iterable<U> it,
                                                          ForEach<U> process) {
         for (U u : it) {
@@ -67,6 +117,24 @@ public class CountRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
             return col(Bytes.toBytes(qualifier), amount);
         }
 
+        /**
+         * 计数器当前值(延迟写入模式下包含本地未提交的增量)
+         *
+         * @param qualifier
+         * @return
+         */
+        public long current(String qualifier) {
+            return current(Bytes.toBytes(qualifier));
+        }
+
+        public long current(byte[] qualifier) {
+            if (currentFamily == null) {
+                throw new RuntimeException("not implemented");
+            }
+            return hBase.currentCount(tableName, increment.getRow(),
+                    currentFamily, qualifier);
+        }
+
         public CountFamilyCol<T, I> col(byte[] qualifier, long amount) {
             if (currentFamily == null) {
                 throw new RuntimeException("not implemented");
@@ -79,5 +147,296 @@ public class CountRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
             this.hBase.flushCount(tableName, increment);
             return this;
         }
+
+        /**
+         * 异步递增, 失败时future以异常结束; 直接写入Hbase, 不经过计数器延迟写入
+         * (之后current重新查询存储值)
+         *
+         * @return 递增后的值
+         */
+        public ListenableFuture<Row<I>> incrementAsync() {
+            final Increment increment = this.increment;
+            return hBase.submit(new Callable<Row<I>>() {
+                @Override
+                public Row<I> call() throws Exception {
+                    return hBase.convert(hBase.increment(tableName, increment));
+                }
+            });
+        }
+    }
+
+    /**
+     * 分片计数器
+     * <p/>
+     * 物理行为 分片号(1字节) + 行键, 分片按线程选择; 读取时一次multi-get取回所有分片求和.
+     * 表按shardSplitKeys预分区后, 各分片分布在不同的RegionServer上
+     *
+     * @param <T>
+     * @param <I>
+     */
+    public static class ShardedCountFamilyCol<T extends QueryOps<I>, I> {
+        private Increment increment;
+        private byte[] row;
+        private int shards;
+        private byte[] currentFamily;
+        private CountRow<T, I> countRow;
+        private HbaseAccessor<T, I> hBase;
+        private byte[] tableName;
+
+        ShardedCountFamilyCol(byte[] tableName, I id, int shards,
+                              CountRow<T, I> countRow, HbaseAccessor<T, I> hBase) {
+            if (shards < 1 || shards > 256) {
+                throw new IllegalArgumentException("shards must be 1~256");
+            }
+            this.row = hBase.toBytes(id);
+            this.shards = shards;
+            this.increment = new Increment(shardRow(shard(), row));
+            this.countRow = countRow;
+            this.hBase = hBase;
+            this.tableName = tableName;
+        }
+
+        /**
+         * 同一线程总是落在同一分片, 不同线程分散到不同分片
+         */
+        private int shard() {
+            return (int) (Thread.currentThread().getId() % shards);
+        }
+
+        static byte[] shardRow(int shard, byte[] row) {
+            return Bytes.add(new byte[]{(byte) shard}, row);
+        }
+
+        public ShardedCountFamilyCol<T, I> family(String name) {
+            return family(Bytes.toBytes(name));
+        }
+
+        public ShardedCountFamilyCol<T, I> family(byte[] name) {
+            currentFamily = name;
+            return this;
+        }
+
+        public ShardedCountFamilyCol<T, I> row(I id) {
+            return countRow.sharded(id, shards);
+        }
+
+        public ShardedCountFamilyCol<T, I> col(String qualifier, long amount) {
+            return col(Bytes.toBytes(qualifier), amount);
+        }
+
+        public ShardedCountFamilyCol<T, I> col(byte[] qualifier, long amount) {
+            if (currentFamily == null) {
+                throw new RuntimeException("not implemented");
+            }
+            increment.addColumn(currentFamily, qualifier, amount);
+            return this;
+        }
+
+        public ShardedCountFamilyCol<T, I> flush() {
+            this.hBase.flushCount(tableName, increment);
+            return this;
+        }
+
+        /**
+         * 所有分片之和(延迟写入模式下包含本地未提交的增量)
+         *
+         * @param qualifier
+         * @return
+         */
+        public long sum(String qualifier) {
+            return sum(Bytes.toBytes(qualifier));
+        }
+
+        public long sum(byte[] qualifier) {
+            if (currentFamily == null) {
+                throw new RuntimeException("not implemented");
+            }
+            List<Get> gets = new ArrayList<Get>(shards);
+            for (int i = 0; i < shards; i++) {
+                Get get = new Get(shardRow(i, row));
+                get.addColumn(currentFamily, qualifier);
+                gets.add(get);
+            }
+            long sum = 0;
+            for (Result result : hBase.getResults(tableName, gets)) {
+                Cell cell = result.getColumnLatestCell(currentFamily, qualifier);
+                if (cell != null) {
+                    sum += Bytes.toLong(CellUtil.cloneValue(cell));
+                }
+            }
+            for (Get get : gets) {
+                sum += hBase.pendingCount(tableName, get.getRow(),
+                        currentFamily, qualifier);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * 批量递增
+     * <p/>
+     * 同一行同一列的多次递增在本地相加, 每行一个Increment, 提交时按RegionServer分组调用Table.batch();
+     * 直接写入Hbase, 不经过计数器延迟写入(提交后CountFamilyCol.current重新查询存储值)
+     *
+     * @param <T>
+     * @param <I>
+     */
+    public static class CountBatch<T extends QueryOps<I>, I> {
+        private final Map<byte[], Map<byte[], Map<byte[], Long>>> rows = new TreeMap<byte[], Map<byte[], Map<byte[], Long>>>(
+                Bytes.BYTES_COMPARATOR);
+        private Map<byte[], Map<byte[], Long>> currentRow;
+        private byte[] currentFamily;
+        private HbaseAccessor<T, I> hBase;
+        private byte[] tableName;
+
+        CountBatch(byte[] tableName, HbaseAccessor<T, I> hBase) {
+            this.hBase = hBase;
+            this.tableName = tableName;
+        }
+
+        public CountBatch<T, I> row(I id) {
+            byte[] row = hBase.toBytes(id);
+            currentRow = rows.get(row);
+            if (currentRow == null) {
+                currentRow = new TreeMap<byte[], Map<byte[], Long>>(
+                        Bytes.BYTES_COMPARATOR);
+                rows.put(row, currentRow);
+            }
+            currentFamily = null;
+            return this;
+        }
+
+        public CountBatch<T, I> family(String name) {
+            return family(Bytes.toBytes(name));
+        }
+
+        public CountBatch<T, I> family(byte[] name) {
+            if (currentRow == null) {
+                throw new RuntimeException("not implemented");
+            }
+            currentFamily = name;
+            return this;
+        }
+
+        public CountBatch<T, I> col(String qualifier, long amount) {
+            return col(Bytes.toBytes(qualifier), amount);
+        }
+
+        public CountBatch<T, I> col(byte[] qualifier, long amount) {
+            if (currentFamily == null) {
+                throw new RuntimeException("not implemented");
+            }
+            Map<byte[], Long> columns = currentRow.get(currentFamily);
+            if (columns == null) {
+                columns = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+                currentRow.put(currentFamily, columns);
+            }
+            Long old = columns.get(qualifier);
+            columns.put(qualifier, old == null ? amount : old + amount);
+            return this;
+        }
+
+        /**
+         * @return 待提交的行数
+         */
+        public int size() {
+            return rows.size();
+        }
+
+        /**
+         * 提交并清空, 每行的结果回调一次; callback为null时失败的行交给DeadLetterSink
+         *
+         * @param callback
+         * @return 失败的行数
+         */
+        public int submit(IncrementCallback<I> callback) {
+            List<Increment> increments = new ArrayList<Increment>(rows.size());
+            for (Map.Entry<byte[], Map<byte[], Map<byte[], Long>>> row : rows
+                    .entrySet()) {
+                Increment increment = new Increment(row.getKey());
+                for (Map.Entry<byte[], Map<byte[], Long>> family : row
+                        .getValue().entrySet()) {
+                    for (Map.Entry<byte[], Long> column : family.getValue()
+                            .entrySet()) {
+                        increment.addColumn(family.getKey(), column.getKey(),
+                                column.getValue());
+                    }
+                }
+                increments.add(increment);
+            }
+            rows.clear();
+            currentRow = null;
+            currentFamily = null;
+            if (increments.isEmpty()) {
+                return 0;
+            }
+            int failed = 0;
+            List<RegionDispatcher.Batch<Increment>> batches;
+            try {
+                batches = hBase.dispatch(tableName, increments);
+            } catch (IOException e) {
+                invalidate(increments);
+                for (Increment increment : increments) {
+                    failed(callback, increment, e);
+                }
+                return increments.size();
+            }
+            invalidate(increments);
+            for (RegionDispatcher.Batch<Increment> batch : batches) {
+                for (int i = 0; i < batch.actions.size(); i++) {
+                    Object result = batch.results[i];
+                    if (result instanceof Result) {
+                        if (callback != null) {
+                            callback.onSuccess(hBase.convert((Result) result));
+                        }
+                    } else {
+                        failed++;
+                        failed(callback, batch.actions.get(i),
+                                result == null ? batch.error : (Throwable) result);
+                    }
+                }
+            }
+            return failed;
+        }
+
+        /**
+         * 异步提交, 回调在异步线程中执行
+         *
+         * @param callback
+         * @return 失败的行数
+         */
+        public ListenableFuture<Integer> submitAsync(
+                final IncrementCallback<I> callback) {
+            final CountBatch<T, I> snapshot = new CountBatch<T, I>(tableName,
+                    hBase);
+            snapshot.rows.putAll(rows);
+            rows.clear();
+            currentRow = null;
+            currentFamily = null;
+            return hBase.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return snapshot.submit(callback);
+                }
+            });
+        }
+
+        /**
+         * 清除行缓存, 计数器缓冲重新查询存储值
+         */
+        private void invalidate(List<Increment> increments) {
+            for (Increment increment : increments) {
+                hBase.incremented(tableName, increment);
+            }
+        }
+
+        private void failed(IncrementCallback<I> callback, Increment increment,
+                            Throwable cause) {
+            if (callback != null) {
+                callback.onFailure(increment, cause);
+            } else {
+                hBase.deadLetter(tableName, increment, cause);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,438 @@
+package com.xunge.persistence.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 计数器延迟写入(write-behind)
+ * <p/>
+ * CountRow的增量按(表, 行, 列族, 列)累加在本地分段累加器里, 有增量的计数器达到flushSize个
+ * 或每隔flushMillis, 按行合并为Increment批量提交. 连续两次刷入都没有增量的计数器移除.
+ * 增量不写本地日志, 进程异常退出时丢失未刷入的部分.
+ * <p/>
+ * 增量在delta、inFlight、stored之间转移时持有计数器的监视器, current读取时也持有,
+ * 读到的总数不会漏算或重复计算; add只累加delta, 不加锁
+ *
+ * @author stereo
+ */
+class CounterBuffer implements Runnable {
+
+    private static final Log LOG = LogFactory.getLog(CounterBuffer.class);
+
+    static final class Key {
+        final byte[] tableName;
+        final byte[] row;
+        final byte[] family;
+        final byte[] qualifier;
+        private final int hash;
+
+        Key(byte[] tableName, byte[] row, byte[] family, byte[] qualifier) {
+            this.tableName = tableName;
+            this.row = row;
+            this.family = family;
+            this.qualifier = qualifier;
+            int h = Bytes.hashCode(tableName);
+            h = 31 * h + Bytes.hashCode(row);
+            h = 31 * h + Bytes.hashCode(family);
+            this.hash = 31 * h + Bytes.hashCode(qualifier);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && Bytes.equals(row, k.row)
+                    && Bytes.equals(qualifier, k.qualifier)
+                    && Bytes.equals(family, k.family)
+                    && Bytes.equals(tableName, k.tableName);
+        }
+    }
+
+    static final class Counter {
+        final Key key;
+        final StripedLong delta = new StripedLong();
+        /**
+         * 已从表中移除, 之后的add要转到新的计数器
+         */
+        volatile boolean retired;
+        final AtomicBoolean dirty = new AtomicBoolean();
+        boolean idle;
+        /**
+         * 已提交尚未返回结果的增量(监视器保护)
+         */
+        long inFlight;
+        /**
+         * 最后一次已知的存储值(监视器保护)
+         */
+        long stored;
+        volatile boolean storedKnown;
+        /**
+         * 提交增量的次数(监视器保护), 查询存储值期间有提交时查询结果不可用
+         */
+        long sends;
+
+        Counter(Key key) {
+            this.key = key;
+        }
+    }
+
+    private final HbaseAccessor<?, ?> hBase;
+
+    private final int flushSize;
+
+    private final long flushMillis;
+
+    private final ConcurrentMap<Key, Counter> counters = new ConcurrentHashMap<Key, Counter>();
+
+    /**
+     * 有未刷入增量的计数器个数
+     */
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final Object signal = new Object();
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    CounterBuffer(HbaseAccessor<?, ?> hBase, int flushSize, long flushMillis) {
+        this.hBase = hBase;
+        this.flushSize = flushSize;
+        this.flushMillis = flushMillis;
+    }
+
+    void start() {
+        running = true;
+        thread = new Daemon(this);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * 累加Increment中每一列的增量
+     *
+     * @param tableName
+     * @param increment
+     */
+    void add(byte[] tableName, Increment increment) {
+        for (Map.Entry<byte[], NavigableMap<byte[], Long>> family : increment
+                .getFamilyMapOfLongs().entrySet()) {
+            for (Map.Entry<byte[], Long> column : family.getValue().entrySet()) {
+                add(new Key(tableName, increment.getRow(), family.getKey(),
+                        column.getKey()), column.getValue());
+            }
+        }
+        if (dirtyCount.get() >= flushSize) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    private void add(Key key, long amount) {
+        for (; ; ) {
+            Counter counter = counter(key);
+            counter.delta.add(amount);
+            if (!counter.retired) {
+                if (counter.dirty.compareAndSet(false, true)) {
+                    dirtyCount.incrementAndGet();
+                }
+                return;
+            }
+            // 与移除并发: 移除后剩余的增量转到新的计数器
+            amount = counter.delta.sumThenReset();
+            if (amount == 0) {
+                return;
+            }
+        }
+    }
+
+    private Counter counter(Key key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            Counter created = new Counter(key);
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * 最后一次已知的存储值加上本地未刷入的增量, 不知道存储值时先查询Hbase
+     * <p/>
+     * 存储值在每次刷入该计数器时用递增结果更新, 连续两次刷入没有增量的计数器被移除后重新查询,
+     * 所以其它客户端的递增最多约2个flushMillis后可见; 本进程绕过缓冲的直接递增通过forget立即可见
+     *
+     * @param tableName
+     * @param row
+     * @param family
+     * @param qualifier
+     * @return
+     */
+    long current(byte[] tableName, byte[] row, byte[] family, byte[] qualifier) {
+        Counter counter = counter(new Key(tableName, row, family, qualifier));
+        while (!counter.storedKnown) {
+            long sends;
+            synchronized (counter) {
+                sends = counter.inFlight == 0 ? counter.sends : -1;
+            }
+            Get get = new Get(row);
+            get.addColumn(family, qualifier);
+            Cell cell = hBase.getResult(tableName, get).getColumnLatestCell(
+                    family, qualifier);
+            synchronized (counter) {
+                // 查询与提交并发时读到的值可能已含inFlight, 重新查询
+                if (!counter.storedKnown && counter.inFlight == 0
+                        && counter.sends == sends) {
+                    counter.stored = cell == null ? 0 : Bytes.toLong(CellUtil
+                            .cloneValue(cell));
+                    counter.storedKnown = true;
+                }
+            }
+        }
+        synchronized (counter) {
+            return counter.stored + counter.inFlight + counter.delta.sum();
+        }
+    }
+
+    /**
+     * 绕过缓冲直接递增(CountRow.incrementAsync/CountBatch)后, 已知的存储值不再准确,
+     * 下次current重新查询; 同时让并发中的查询结果作废
+     *
+     * @param tableName
+     * @param increment
+     */
+    void forget(byte[] tableName, Increment increment) {
+        for (Map.Entry<byte[], NavigableMap<byte[], Long>> family : increment
+                .getFamilyMapOfLongs().entrySet()) {
+            for (byte[] qualifier : family.getValue().keySet()) {
+                Counter counter = counters.get(new Key(tableName, increment
+                        .getRow(), family.getKey(), qualifier));
+                if (counter == null) {
+                    continue;
+                }
+                synchronized (counter) {
+                    counter.storedKnown = false;
+                    counter.sends++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 本地尚未写入Hbase的增量(不查询存储值)
+     *
+     * @param tableName
+     * @param row
+     * @param family
+     * @param qualifier
+     * @return
+     */
+    long pending(byte[] tableName, byte[] row, byte[] family, byte[] qualifier) {
+        Counter counter = counters.get(new Key(tableName, row, family, qualifier));
+        if (counter == null) {
+            return 0;
+        }
+        synchronized (counter) {
+            return counter.inFlight + counter.delta.sum();
+        }
+    }
+
+    /**
+     * 刷入所有表的计数器
+     */
+    void flush() {
+        flush(null);
+    }
+
+    /**
+     * 刷入指定表的计数器
+     *
+     * @param tableName null表示所有表
+     */
+    void flush(byte[] tableName) {
+        flushLock.lock();
+        try {
+            Map<byte[], Map<byte[], Increment>> tables = new TreeMap<byte[], Map<byte[], Increment>>(
+                    Bytes.BYTES_COMPARATOR);
+            Map<Key, Counter> sent = new HashMap<Key, Counter>();
+            for (Counter counter : counters.values()) {
+                if (tableName != null
+                        && !Bytes.equals(tableName, counter.key.tableName)) {
+                    continue;
+                }
+                if (counter.dirty.compareAndSet(true, false)) {
+                    dirtyCount.decrementAndGet();
+                }
+                long delta;
+                synchronized (counter) {
+                    delta = counter.delta.sumThenReset();
+                    if (delta == 0) {
+                        if (counter.idle) {
+                            retire(counter);
+                            delta = counter.delta.sumThenReset();
+                        } else {
+                            counter.idle = true;
+                        }
+                        if (delta == 0) {
+                            continue;
+                        }
+                    }
+                    counter.idle = false;
+                    counter.inFlight += delta;
+                    counter.sends++;
+                }
+                sent.put(counter.key, counter);
+                increment(tables, counter.key).addColumn(counter.key.family,
+                        counter.key.qualifier, delta);
+            }
+            for (Map.Entry<byte[], Map<byte[], Increment>> table : tables
+                    .entrySet()) {
+                send(table.getKey(), new ArrayList<Increment>(table.getValue()
+                        .values()), sent);
+            }
+            // 失败的增量已交给DeadLetterSink
+            for (Counter counter : sent.values()) {
+                synchronized (counter) {
+                    counter.inFlight = 0;
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void retire(Counter counter) {
+        counter.retired = true;
+        counters.remove(counter.key, counter);
+    }
+
+    private static Increment increment(
+            Map<byte[], Map<byte[], Increment>> tables, Key key) {
+        Map<byte[], Increment> rows = tables.get(key.tableName);
+        if (rows == null) {
+            rows = new TreeMap<byte[], Increment>(Bytes.BYTES_COMPARATOR);
+            tables.put(key.tableName, rows);
+        }
+        Increment increment = rows.get(key.row);
+        if (increment == null) {
+            increment = new Increment(key.row);
+            rows.put(key.row, increment);
+        }
+        return increment;
+    }
+
+    /**
+     * 递增不幂等, 失败不重试, 交给DeadLetterSink
+     */
+    private void send(byte[] tableName, List<Increment> increments,
+                      Map<Key, Counter> sent) {
+        for (Increment increment : increments) {
+            hBase.invalidateRow(tableName, increment.getRow());
+        }
+        List<RegionDispatcher.Batch<Increment>> batches;
+        try {
+            batches = hBase.dispatch(tableName, increments);
+        } catch (IOException e) {
+            for (Increment increment : increments) {
+                hBase.deadLetter(tableName, increment, e);
+            }
+            return;
+        }
+        for (RegionDispatcher.Batch<Increment> batch : batches) {
+            for (int i = 0; i < batch.actions.size(); i++) {
+                Object result = batch.results[i];
+                if (result instanceof Result) {
+                    stored(tableName, (Result) result, sent);
+                } else {
+                    hBase.deadLetter(tableName, batch.actions.get(i),
+                            result == null ? batch.error : (Throwable) result);
+                }
+            }
+        }
+    }
+
+    /**
+     * 用递增结果更新存储值
+     */
+    private void stored(byte[] tableName, Result result,
+                        Map<Key, Counter> sent) {
+        for (Cell cell : result.rawCells()) {
+            Counter counter = sent.get(new Key(tableName, result.getRow(),
+                    CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell)));
+            if (counter != null) {
+                synchronized (counter) {
+                    counter.stored = Bytes.toLong(CellUtil.cloneValue(cell));
+                    counter.storedKnown = true;
+                    counter.inFlight = 0;
+                }
+            }
+        }
+    }
+
+    int size() {
+        return counters.size();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            synchronized (signal) {
+                try {
+                    if (dirtyCount.get() < flushSize) {
+                        signal.wait(flushMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                LOG.error("counter flush failed", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HbaseAccessor-CounterFlusher";
+    }
+}
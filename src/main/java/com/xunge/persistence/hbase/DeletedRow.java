@@ -1,12 +1,18 @@
 package com.xunge.persistence.hbase;
 
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Durability;
+
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.xunge.persistence.hbase.api.ForEach;
 
 /**
  * 删除KeyRow
+ * <p/>
+ * row(id)即开始删除该行, 列族/列在commit、flush/flushAsync或开始下一行时与该行一起入队,
+ * 后台刷入不会提前发出整行删除; HbaseAccessor.flush会提交所有未结束的行
  *
  * @param <QUERY_OP_TYPE>
  * @param <ROW_ID_TYPE>
@@ -16,15 +22,51 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
 
     private HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
     private byte[] tableName;
+    private Durability durability;
+    /**
+     * 尚未入队的当前行
+     */
+    private DeletedRowFamily<QUERY_OP_TYPE, ROW_ID_TYPE> current;
 
     DeletedRow(HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName) {
         this.hBase = hBase;
         this.tableName = tableName;
     }
 
-    public DeletedRowFamily<QUERY_OP_TYPE, ROW_ID_TYPE> row(ROW_ID_TYPE id) {
-        return new DeletedRowFamily<QUERY_OP_TYPE, ROW_ID_TYPE>(tableName, id,
-                this, hBase);
+    public synchronized DeletedRowFamily<QUERY_OP_TYPE, ROW_ID_TYPE> row(ROW_ID_TYPE id) {
+        commit();
+        current = new DeletedRowFamily<QUERY_OP_TYPE, ROW_ID_TYPE>(tableName,
+                id, this, hBase);
+        hBase.opened(this);
+        return current;
+    }
+
+    byte[] getTableName() {
+        return tableName;
+    }
+
+    /**
+     * 提交当前行
+     *
+     * @return
+     */
+    public synchronized DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> commit() {
+        if (current != null) {
+            current.commit();
+        }
+        return this;
+    }
+
+    /**
+     * 之后删除的行使用的持久化级别(默认使用表的级别)
+     *
+     * @param durability
+     * @return
+     */
+    public DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> durability(
+            Durability durability) {
+        this.durability = durability;
+        return this;
     }
 
     public DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> rows(Iterable<ROW_ID_TYPE> it) {
@@ -40,14 +82,40 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
                 forEach.process(deleteRowFamily);
             }
         }
-        return this;
+        return commit();
     }
 
     public DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> flush() {
+        commit();
         hBase.flush(tableName);
         return this;
     }
 
+    public ListenableFuture<Void> flushAsync() {
+        commit();
+        return hBase.flushAsync(tableName);
+    }
+
+    /**
+     * 条件写入: 满足条件的行才写入/删除
+     *
+     * @return
+     */
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> conditional() {
+        return new ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE>(hBase, tableName);
+    }
+
+    /**
+     * 已提交(可能已由其它线程的flush刷入)后不能再修改
+     *
+     * @param delete
+     */
+    private static void checkOpen(Delete delete) {
+        if (delete == null) {
+            throw new RuntimeException("row already committed");
+        }
+    }
+
     public static class DeletedRowFamily<T extends QueryOps<I>, I> {
 
         private HbaseAccessor<T, I> hBase;
@@ -58,10 +126,12 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
         DeletedRowFamily(byte[] tableName, I id, DeletedRow<T, I> deleteRow,
                          HbaseAccessor<T, I> hBase) {
             this.delete = new Delete(hBase.toBytes(id));
+            if (deleteRow.durability != null) {
+                this.delete.setDurability(deleteRow.durability);
+            }
             this.deleteRow = deleteRow;
             this.hBase = hBase;
             this.tableName = tableName;
-            this.hBase.saveDelete(this.tableName, delete);
         }
 
         public DeletedRowFamilyColumn<T, I> family(String name) {
@@ -69,8 +139,19 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
         }
 
         public DeletedRowFamilyColumn<T, I> family(byte[] name) {
-            return new DeletedRowFamilyColumn<T, I>(hBase, tableName, name,
-                    delete, deleteRow);
+            return new DeletedRowFamilyColumn<T, I>(this, name);
+        }
+
+        /**
+         * 当前行的持久化级别
+         *
+         * @param durability
+         * @return
+         */
+        public DeletedRowFamily<T, I> durability(Durability durability) {
+            checkOpen(delete);
+            delete.setDurability(durability);
+            return this;
         }
 
         public DeletedRowFamily<T, I> deleteFamily(String name) {
@@ -80,8 +161,12 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
         public DeletedRowFamily<T, I> deleteFamily(byte[] name) {
             if (name == null)
                 throw new RuntimeException("not implemented");
-            else
-                delete.deleteFamily(name);
+            else {
+                synchronized (deleteRow) {
+                    checkOpen(delete);
+                    delete.deleteFamily(name);
+                }
+            }
             return this;
         }
 
@@ -89,27 +174,37 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
             return deleteRow.row(id);
         }
 
+        public DeletedRowFamily<T, I> commit() {
+            synchronized (deleteRow) {
+                if (delete != null) {
+                    hBase.saveDelete(tableName, delete);
+                    delete = null;
+                    hBase.committed(deleteRow);
+                }
+            }
+            return this;
+        }
+
         public DeletedRowFamily<T, I> flush() {
+            commit();
             hBase.flush(tableName);
             return this;
         }
+
+        public ListenableFuture<Void> flushAsync() {
+            commit();
+            return hBase.flushAsync(tableName);
+        }
     }
 
     public static class DeletedRowFamilyColumn<T extends QueryOps<I>, I> {
 
-        private HbaseAccessor<T, I> hBase;
-        private byte[] tableName;
+        private DeletedRowFamily<T, I> row;
         private byte[] currentFamily;
-        private Delete delete;
-        private DeletedRow<T, I> deleteRow;
 
-        DeletedRowFamilyColumn(HbaseAccessor<T, I> hBase, byte[] tableName,
-                               byte[] currentFamily, Delete delete, DeletedRow<T, I> deleteRow) {
-            this.hBase = hBase;
-            this.tableName = tableName;
+        DeletedRowFamilyColumn(DeletedRowFamily<T, I> row, byte[] currentFamily) {
+            this.row = row;
             this.currentFamily = currentFamily;
-            this.delete = delete;
-            this.deleteRow = deleteRow;
         }
 
         public DeletedRowFamilyColumn<T, I> family(String name) {
@@ -117,8 +212,7 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
         }
 
         public DeletedRowFamilyColumn<T, I> family(byte[] name) {
-            return new DeletedRowFamilyColumn<T, I>(hBase, tableName, name,
-                    delete, deleteRow);
+            return new DeletedRowFamilyColumn<T, I>(row, name);
         }
 
         public DeletedRowFamilyColumn<T, I> col(String name) {
@@ -129,18 +223,30 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
             if (currentFamily == null) {
                 throw new RuntimeException("not implemented");
             } else {
-                delete.deleteColumn(currentFamily, name);
+                synchronized (row.deleteRow) {
+                    checkOpen(row.delete);
+                    row.delete.deleteColumn(currentFamily, name);
+                }
             }
             return this;
         }
 
         public DeletedRowFamily<T, I> row(I id) {
-            return deleteRow.row(id);
+            return row.row(id);
+        }
+
+        public DeletedRowFamilyColumn<T, I> commit() {
+            row.commit();
+            return this;
         }
 
         public DeletedRowFamilyColumn<T, I> flush() {
-            hBase.flush(tableName);
+            row.flush();
             return this;
         }
+
+        public ListenableFuture<Void> flushAsync() {
+            return row.flushAsync();
+        }
     }
-}
\ No newline at end of file
+}
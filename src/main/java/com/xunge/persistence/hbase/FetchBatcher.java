@@ -0,0 +1,217 @@
+package com.xunge.persistence.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 单行查询自动合并为multi-get(micro-batching)
+ * <p/>
+ * 每张表同时只有一个收集中的批次: 第一个到达的线程负责收集, 等待windowNanos或收集到maxBatch个后,
+ * 把整批按RegionServer分组提交, 再逐个唤醒等待的线程. 没有后台线程;
+ * 低并发时每次查询多等待一个窗口
+ *
+ * @author stereo
+ */
+public final class FetchBatcher {
+
+    private static final class Request {
+        final Get get;
+        final CountDownLatch done = new CountDownLatch(1);
+        Result result;
+        Throwable error;
+
+        Request(Get get) {
+            this.get = get;
+        }
+    }
+
+    /**
+     * 一张表正在收集的批次
+     * <p/>
+     * Object.wait(long, int)按毫秒取整, 窗口为微秒级时用Condition.awaitNanos
+     */
+    private static final class Slot {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition full = lock.newCondition();
+        /**
+         * lock保护
+         */
+        List<Request> requests;
+    }
+
+    private final HbaseAccessor<?, ?> hBase;
+
+    private final long windowNanos;
+
+    private final int maxBatch;
+
+    private final ConcurrentMap<byte[], Slot> slots = new ConcurrentSkipListMap<byte[], Slot>(
+            Bytes.BYTES_COMPARATOR);
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    FetchBatcher(HbaseAccessor<?, ?> hBase, long windowMicros, int maxBatch) {
+        this.hBase = hBase;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * @param tableName
+     * @param get
+     * @return
+     */
+    Result get(byte[] tableName, Get get) {
+        Slot slot = slot(tableName);
+        Request request = new Request(get);
+        List<Request> batch;
+        boolean collector = false;
+        slot.lock.lock();
+        try {
+            if (slot.requests == null) {
+                slot.requests = new ArrayList<Request>();
+                collector = true;
+            }
+            batch = slot.requests;
+            batch.add(request);
+            if (batch.size() >= maxBatch) {
+                // 批次已满, 之后的请求开始新批次
+                slot.requests = null;
+                slot.full.signalAll();
+            }
+        } finally {
+            slot.lock.unlock();
+        }
+        if (collector) {
+            collect(slot, batch);
+            execute(tableName, batch);
+        }
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (request.error != null) {
+            throw new RuntimeException(request.error);
+        }
+        return request.result;
+    }
+
+    private Slot slot(byte[] tableName) {
+        Slot slot = slots.get(tableName);
+        if (slot == null) {
+            Slot created = new Slot();
+            slot = slots.putIfAbsent(tableName, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * 等到窗口结束或批次已满
+     */
+    private void collect(Slot slot, List<Request> batch) {
+        long left = windowNanos;
+        slot.lock.lock();
+        try {
+            while (slot.requests == batch && left > 0) {
+                left = slot.full.awaitNanos(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (slot.requests == batch) {
+                slot.requests = null;
+            }
+            slot.lock.unlock();
+        }
+    }
+
+    private void execute(byte[] tableName, List<Request> batch) {
+        batches.incrementAndGet();
+        requests.addAndGet(batch.size());
+        List<Get> gets = new ArrayList<Get>(batch.size());
+        Map<Get, Request> owners = new IdentityHashMap<Get, Request>(
+                batch.size());
+        for (Request request : batch) {
+            gets.add(request.get);
+            owners.put(request.get, request);
+        }
+        try {
+            for (RegionDispatcher.Batch<Get> server : hBase.dispatch(
+                    tableName, gets)) {
+                for (int i = 0; i < server.actions.size(); i++) {
+                    Request request = owners.get(server.actions.get(i));
+                    Object result = server.results[i];
+                    if (result instanceof Result) {
+                        request.result = (Result) result;
+                    } else {
+                        request.error = result == null ? server.error
+                                : (Throwable) result;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            for (Request request : batch) {
+                request.error = e;
+            }
+        } catch (RuntimeException e) {
+            for (Request request : batch) {
+                request.error = e;
+            }
+        } finally {
+            for (Request request : batch) {
+                if (request.result == null && request.error == null) {
+                    request.error = new IOException("no result for row "
+                            + Bytes.toStringBinary(request.get.getRow()));
+                }
+                request.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * @return 提交的multi-get次数
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return 经过合并的单行查询数
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public double getAverageBatchSize() {
+        long n = batches.get();
+        return n == 0 ? 0 : (double) requests.get() / n;
+    }
+
+    @Override
+    public String toString() {
+        return "FetchBatcher[batches=" + batches + ", requests=" + requests
+                + ", windowMicros="
+                + TimeUnit.NANOSECONDS.toMicros(windowNanos) + ", maxBatch="
+                + maxBatch + "]";
+    }
+}
@@ -1,14 +1,24 @@
 package com.xunge.persistence.hbase;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.xunge.persistence.hbase.api.ForEach;
 import com.xunge.persistence.hbase.api.Row;
 
 /**
@@ -21,10 +31,13 @@ public class FetchRow<ROW_ID_TYPE> {
 
     private static final Log LOG = LogFactory.getLog(FetchRow.class);
     private byte[] currentFamily;
-    private Get get;
+    /**
+     * 查询的列族/列, 列集合为null表示整个列族
+     */
+    private Map<byte[], NavigableSet<byte[]>> projection = new TreeMap<byte[], NavigableSet<byte[]>>(
+            Bytes.BYTES_COMPARATOR);
     private byte[] tableName;
     private HbaseAccessor<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase;
-    private Result result;
 
     FetchRow(HbaseAccessor<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase,
              byte[] tableName) {
@@ -33,12 +46,69 @@ public class FetchRow<ROW_ID_TYPE> {
     }
 
     public Row<ROW_ID_TYPE> row(ROW_ID_TYPE id) {
-        get = newGet(id);
-        fetch();
-        if (result.getRow() == null) {
-            return null;
+        return fetch(newGet(id));
+    }
+
+    /**
+     * 异步查询, 列族/列在调用时确定
+     *
+     * @param id
+     * @return 不存在时为null
+     */
+    public ListenableFuture<Row<ROW_ID_TYPE>> rowAsync(ROW_ID_TYPE id) {
+        final Get get = newGet(id);
+        return hBase.submit(new Callable<Row<ROW_ID_TYPE>>() {
+            @Override
+            public Row<ROW_ID_TYPE> call() {
+                return fetch(get);
+            }
+        });
+    }
+
+    /**
+     * 批量查询: 一次multi-get, 按RegionServer分组并行
+     *
+     * @param ids
+     * @return 与ids顺序一致, 不存在的行为null
+     */
+    public List<Row<ROW_ID_TYPE>> rows(Collection<ROW_ID_TYPE> ids) {
+        List<Get> gets = new ArrayList<Get>(ids.size());
+        for (ROW_ID_TYPE id : ids) {
+            gets.add(newGet(id));
+        }
+        return fetch(gets);
+    }
+
+    /**
+     * 流式批量查询: 每次取一批(hbase.accessor.fetch.batch), 按ids顺序回调, 不存在的行跳过
+     *
+     * @param ids
+     * @param forEach
+     * @return
+     */
+    public FetchRow<ROW_ID_TYPE> rows(Iterable<ROW_ID_TYPE> ids,
+                                      ForEach<Row<ROW_ID_TYPE>> forEach) {
+        int batch = hBase.getFetchBatch();
+        List<Get> gets = new ArrayList<Get>(batch);
+        for (ROW_ID_TYPE id : ids) {
+            gets.add(newGet(id));
+            if (gets.size() >= batch) {
+                process(fetch(gets), forEach);
+                gets = new ArrayList<Get>(batch);
+            }
+        }
+        if (!gets.isEmpty()) {
+            process(fetch(gets), forEach);
+        }
+        return this;
+    }
+
+    private static <I> void process(List<Row<I>> rows, ForEach<Row<I>> forEach) {
+        for (Row<I> row : rows) {
+            if (row != null) {
+                forEach.process(row);
+            }
         }
-        return new ResultRow<ROW_ID_TYPE>(hBase, result);
     }
 
     public FetchRow<ROW_ID_TYPE> select() {
@@ -51,7 +121,9 @@ public class FetchRow<ROW_ID_TYPE> {
 
     public FetchRow<ROW_ID_TYPE> family(byte[] family) {
         currentFamily = family;
-        get.addFamily(currentFamily);
+        if (!projection.containsKey(family)) {
+            projection.put(family, null);
+        }
         return this;
     }
 
@@ -60,31 +132,186 @@ public class FetchRow<ROW_ID_TYPE> {
     }
 
     public FetchRow<ROW_ID_TYPE> col(byte[] name) {
-        get.addColumn(currentFamily, name);
+        if (currentFamily == null) {
+            throw new RuntimeException("not implemented");
+        }
+        NavigableSet<byte[]> qualifiers = projection.get(currentFamily);
+        if (qualifiers == null) {
+            qualifiers = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+            projection.put(currentFamily, qualifiers);
+        }
+        qualifiers.add(name);
         return this;
     }
 
-    private void fetch() {
-        if (result == null) {
-            LOG.debug("Fetching row with id [" + Bytes.toString(get.getRow())
-                    + "]");
-            result = hBase.getResult(tableName, get);
+    private Row<ROW_ID_TYPE> fetch(Get get) {
+        LOG.debug("Fetching row with id [" + Bytes.toString(get.getRow())
+                + "]");
+        RowCache cache = cache();
+        NegativeCache absent = absent();
+        RowCache.RowId id = null;
+        ByteBuffer projection = null;
+        long stamp = 0;
+        long absentStamp = 0;
+        if (cache != null || absent != null) {
+            id = new RowCache.RowId(tableName, get.getRow());
+            projection = RowCache.projection(get);
+            if (absent != null) {
+                if (absent.isAbsent(id, projection)) {
+                    return null;
+                }
+                absentStamp = absent.stamp(id);
+            }
+            if (cache != null) {
+                Result cached = cache.get(id, projection);
+                if (cached != null) {
+                    return new ResultRow<ROW_ID_TYPE>(hBase, cached);
+                }
+                // 先取失效计数再查询: 期间的写入使这次结果不进缓存
+                stamp = cache.stamp(id);
+            }
+        }
+        List<Mutation> pending = null;
+        if (hBase.isReadOverlay()) {
+            // 先取缓冲再查询: 期间刷入完成的数据至少在一边
+            pending = hBase.pending(tableName, get.getRow());
+        }
+        Result result = hBase.getResult(tableName, get);
+        if (pending != null && !pending.isEmpty()) {
+            result = ReadOverlay.apply(result, get, pending);
+        } else {
+            cache(id, projection, result, stamp, absentStamp);
+        }
+        if (result.getRow() == null) {
+            return null;
+        }
+        return new ResultRow<ROW_ID_TYPE>(hBase, result);
+    }
+
+    private List<Row<ROW_ID_TYPE>> fetch(List<Get> gets) {
+        LOG.debug("Fetching " + gets.size() + " rows");
+        List<Row<ROW_ID_TYPE>> rows = new ArrayList<Row<ROW_ID_TYPE>>(
+                gets.size());
+        RowCache cache = cache();
+        NegativeCache absent = absent();
+        List<Get> misses = gets;
+        List<Integer> positions = null;
+        RowCache.RowId[] ids = null;
+        ByteBuffer[] projections = null;
+        long[] stamps = null;
+        long[] absentStamps = null;
+        if (cache != null || absent != null) {
+            misses = new ArrayList<Get>();
+            positions = new ArrayList<Integer>();
+            ids = new RowCache.RowId[gets.size()];
+            projections = new ByteBuffer[gets.size()];
+            stamps = new long[gets.size()];
+            absentStamps = new long[gets.size()];
+            for (int i = 0; i < gets.size(); i++) {
+                Get get = gets.get(i);
+                ids[i] = new RowCache.RowId(tableName, get.getRow());
+                projections[i] = RowCache.projection(get);
+                rows.add(null);
+                if (absent != null) {
+                    if (absent.isAbsent(ids[i], projections[i])) {
+                        continue;
+                    }
+                    absentStamps[i] = absent.stamp(ids[i]);
+                }
+                if (cache != null) {
+                    Result cached = cache.get(ids[i], projections[i]);
+                    if (cached != null) {
+                        rows.set(i, new ResultRow<ROW_ID_TYPE>(hBase, cached));
+                        continue;
+                    }
+                    stamps[i] = cache.stamp(ids[i]);
+                }
+                misses.add(get);
+                positions.add(i);
+            }
+            if (misses.isEmpty()) {
+                return rows;
+            }
+        } else {
+            for (int i = 0; i < gets.size(); i++) {
+                rows.add(null);
+            }
+        }
+        List<List<Mutation>> pending = null;
+        if (hBase.isReadOverlay()) {
+            pending = new ArrayList<List<Mutation>>(misses.size());
+            for (Get get : misses) {
+                pending.add(hBase.pending(tableName, get.getRow()));
+            }
         }
+        Result[] results = hBase.getResults(tableName, misses);
+        for (int i = 0; i < results.length; i++) {
+            int position = positions == null ? i : positions.get(i);
+            Result result = results[i];
+            if (pending != null && !pending.get(i).isEmpty()) {
+                result = ReadOverlay.apply(result, misses.get(i),
+                        pending.get(i));
+            } else if (ids != null) {
+                cache(ids[position], projections[position], result,
+                        stamps[position], absentStamps[position]);
+            }
+            if (result.getRow() != null) {
+                rows.set(position, new ResultRow<ROW_ID_TYPE>(hBase, result));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 存在的行放入行缓存, 不存在的记入不存在的行缓存
+     */
+    private void cache(RowCache.RowId id, ByteBuffer projection,
+                       Result result, long stamp, long absentStamp) {
+        if (id == null) {
+            return;
+        }
+        if (result.getRow() != null) {
+            RowCache cache = cache();
+            if (cache != null) {
+                cache.put(id, projection, result, stamp);
+            }
+        } else {
+            NegativeCache absent = absent();
+            if (absent != null) {
+                absent.absent(id, projection, absentStamp);
+            }
+        }
+    }
+
+    /**
+     * @return 未开启或该表不缓存时为null
+     */
+    private RowCache cache() {
+        RowCache cache = hBase.getRowCache();
+        return cache == null || cache.getTtl(tableName) <= 0 ? null : cache;
+    }
+
+    /**
+     * @return 未开启或该表不缓存时为null
+     */
+    private NegativeCache absent() {
+        NegativeCache absent = hBase.getNegativeCache();
+        return absent == null || absent.getTtl(tableName) <= 0 ? null : absent;
     }
 
     private Get newGet(ROW_ID_TYPE id) {
         Get newGet = new Get(hBase.toBytes(id));
-        Map<byte[], NavigableSet<byte[]>> familyMap = get.getFamilyMap();
-        for (byte[] family : familyMap.keySet()) {
-            NavigableSet<byte[]> qualifiers = familyMap.get(family);
+        for (Map.Entry<byte[], NavigableSet<byte[]>> family : projection
+                .entrySet()) {
+            NavigableSet<byte[]> qualifiers = family.getValue();
             if (qualifiers == null) {
-                newGet.addFamily(family);
+                newGet.addFamily(family.getKey());
             } else {
                 for (byte[] qualifier : qualifiers) {
-                    newGet.addColumn(family, qualifier);
+                    newGet.addColumn(family.getKey(), qualifier);
                 }
             }
         }
         return newGet;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 后台刷入线程
+ * <p/>
+ * 写入线程只负责入队, 缓冲达到条数/字节阈值时唤醒刷入线程;
+ * 刷入线程每隔滞留时间的1/4检查一次超过最大滞留时间的缓冲
+ *
+ * @author stereo
+ */
+class Flusher implements Runnable {
+
+    private static final Log LOG = LogFactory.getLog(Flusher.class);
+
+    private final HbaseAccessor<?, ?> hBase;
+
+    private final BlockingQueue<TableBuffer> ready = new LinkedBlockingQueue<TableBuffer>();
+
+    private final long lingerMillis;
+
+    private final long tickMillis;
+
+    private final Thread[] threads;
+
+    private volatile boolean running;
+
+    Flusher(HbaseAccessor<?, ?> hBase, int threads, long lingerMillis) {
+        this.hBase = hBase;
+        this.lingerMillis = lingerMillis;
+        this.tickMillis = Math.max(1, lingerMillis / 4);
+        this.threads = new Thread[threads];
+    }
+
+    void start() {
+        running = true;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Daemon(this);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * 停止刷入线程并等待正在进行的刷入(含重试)结束, 剩余数据由调用方flush;
+     * 不中断线程, 刷入中的数据不会因为关闭被放弃
+     */
+    void stop() {
+        running = false;
+        for (Thread thread : threads) {
+            if (thread == null || thread == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 请求刷入指定表
+     *
+     * @param buffer
+     */
+    void request(TableBuffer buffer) {
+        if (buffer.markFlushRequested()) {
+            ready.offer(buffer);
+        }
+    }
+
+    /**
+     * 每个tick检查一次滞留时间, 与是否有表持续达到阈值无关,
+     * 否则写入频繁的表会让其它表一直得不到刷入
+     */
+    @Override
+    public void run() {
+        long nextCheck = System.currentTimeMillis() + tickMillis;
+        while (running) {
+            try {
+                long wait = nextCheck - System.currentTimeMillis();
+                TableBuffer buffer = wait > 0 ? ready.poll(wait,
+                        TimeUnit.MILLISECONDS) : ready.poll();
+                if (buffer != null) {
+                    flush(buffer);
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextCheck) {
+                    flushLingering();
+                    nextCheck = now + tickMillis;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void flushLingering() {
+        long now = System.currentTimeMillis();
+        for (TableBuffer buffer : hBase.getBuffers()) {
+            if (buffer.lingerMillis(now) >= lingerMillis) {
+                flush(buffer);
+            }
+        }
+    }
+
+    private void flush(TableBuffer buffer) {
+        buffer.clearFlushRequested();
+        try {
+            hBase.flushBackground(buffer.getTableName());
+        } catch (RuntimeException e) {
+            LOG.error("background flush failed", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HbaseAccessor-Flusher";
+    }
+}
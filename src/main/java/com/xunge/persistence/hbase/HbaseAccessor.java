@@ -1,28 +1,51 @@
 package com.xunge.persistence.hbase;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
-import com.xunge.persistence.hbase.api.ForEach;
+import org.apache.hadoop.hbase.util.Pair;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.xunge.persistence.hbase.api.DeadLetterSink;
+import com.xunge.persistence.hbase.exc.BufferFullException;
 import com.xunge.persistence.hbase.api.Row;
 import com.xunge.persistence.hbase.api.Table;
 import com.xunge.persistence.hbase.api.TypeConverter;
@@ -40,6 +63,32 @@ import com.xunge.persistence.hbase.api.TypeConverter;
  * @Log4 多线程处理暂时采用读写锁保证并发
  * @Log5 暂时HConnection代替HTablePool(2014.9.18)
  * @Log6 save(row原子)、delete、scan(复杂而低效)、fetch(高性能)、count(原子)
+ * @Log7 去掉全局读写锁, 改为按表的无锁写缓冲, 刷入时不持锁
+ * @Log8 后台刷入线程, 按条数/字节/滞留时间触发, 写入线程只入队
+ * @Log9 写缓冲按heapSize计量, 所有表共享内存上限(BufferFullPolicy)
+ * @Log10 刷入按RegionServer分组并行提交
+ * @Log11 刷入前合并同一行的Put/Delete
+ * @Log12 Put/Delete放入同一个有序队列, 同一行先后的Put和Delete组成RowMutations一次提交;
+ * 先删后写同一列时改用客户端时间戳, 要求客户端与RegionServer时钟同步
+ * @Log13 可选本地预写日志, 组提交落盘后返回, 启动时重放; 删除与写入一样在提交时写入日志
+ * @Log14 异步接口(ListenableFuture): fetch/flush/increment/scan在独立线程池执行
+ * @Log15 fetch/scan只刷入本表; 可选读取时合并未写入的数据而不刷入
+ * @Log16 刷入失败只重试失败的数据(指数退避+抖动), 用尽后交给DeadLetterSink
+ * @Log17 可选计数器延迟写入: 本地分段累加, 按数量/时间批量提交Increment
+ * @Log18 分片计数器(CountRow.sharded), 读取时multi-get求和
+ * @Log19 批量递增(CountRow.batch), 按RegionServer分组提交并逐行回调
+ * @Log20 离线批量导入(bulkIngest): 本地外排序, 按Region切分后批量写入(可选SKIP_WAL)
+ * @Log21 按操作/按表设置持久化级别(Durability), 不同级别分批提交
+ * @Log22 条件写入(ConditionalRow): check-and-put/check-and-delete按RegionServer并行提交
+ * @Log23 truncateTable优先使用Admin.truncateTable, 无权限时按Region并行只扫描行键删除
+ * @Log24 批量查询(FetchRow.rows), multi-get按RegionServer分组并行
+ * @Log25 可选客户端行缓存(RowCache): 按频率准入, 按表TTL, 本进程写入时失效
+ * @Log26 可选不存在的行缓存(NegativeCache), 本进程写入时清除
+ * @Log27 可选合并并发的相同查询(SingleFlight)
+ * @Log28 可选单行查询自动合并为multi-get(FetchBatcher)
+ * @Log29 去掉HTablePool和扫描时新建HTable, 所有读写共用连接上的表句柄(TableHandles)
+ * @Log30 ResultRow直接在单元格数组上二分查找和迭代版本, 不再构造Result.getMap()
+ * @Log31 Row/Family/Column增加getLong/getInt/getDouble/getBoolean及多版本数组, 直接从单元格解码不装箱
  */
 public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 
@@ -48,29 +97,218 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
     private static final int MAX_QUEUE_SIZE = 1024;
 
     /**
-     * put Queue
+     * 缓冲条数达到该值触发刷入
      */
-    private Map<byte[], Queue<Put>> putsMap = new TreeMap<byte[], Queue<Put>>(
-            Bytes.BYTES_COMPARATOR);
+    public static final String FLUSH_COUNT_KEY = "hbase.accessor.flush.count";
+
+    /**
+     * 缓冲字节数(heapSize)达到该值触发刷入
+     */
+    public static final String FLUSH_BYTES_KEY = "hbase.accessor.flush.bytes";
+
+    /**
+     * 缓冲最长滞留时间(毫秒)
+     */
+    public static final String FLUSH_LINGER_KEY = "hbase.accessor.flush.linger.ms";
+
+    /**
+     * 后台刷入线程数, 0表示在写入线程内同步刷入
+     */
+    public static final String FLUSH_THREADS_KEY = "hbase.accessor.flush.threads";
+
+    /**
+     * 所有表写缓冲的内存上限(字节)
+     */
+    public static final String BUFFER_MAX_BYTES_KEY = "hbase.accessor.buffer.max.bytes";
+
+    /**
+     * 达到内存上限时的处理方式, 见BufferFullPolicy
+     */
+    public static final String BUFFER_FULL_POLICY_KEY = "hbase.accessor.buffer.full.policy";
+
+    /**
+     * 刷入时单台RegionServer每批最大条数
+     */
+    public static final String FLUSH_SERVER_BATCH_KEY = "hbase.accessor.flush.server.batch";
+
+    /**
+     * 按RegionServer并行提交的线程数
+     */
+    public static final String FLUSH_DISPATCH_THREADS_KEY = "hbase.accessor.flush.dispatch.threads";
+
+    /**
+     * 本地预写日志目录, 不配置则不开启
+     */
+    public static final String JOURNAL_DIR_KEY = "hbase.accessor.journal.dir";
+
+    /**
+     * 日志分段文件大小(字节)
+     */
+    public static final String JOURNAL_SEGMENT_BYTES_KEY = "hbase.accessor.journal.segment.bytes";
+
+    /**
+     * 日志组提交间隔(毫秒)
+     */
+    public static final String JOURNAL_SYNC_MS_KEY = "hbase.accessor.journal.sync.ms";
+
+    /**
+     * 写入是否等待日志落盘后返回, false时最多丢失一个组提交间隔的数据
+     */
+    public static final String JOURNAL_SYNC_WAIT_KEY = "hbase.accessor.journal.sync.wait";
+
+    /**
+     * 异步接口的线程数
+     */
+    public static final String ASYNC_THREADS_KEY = "hbase.accessor.async.threads";
+
+    /**
+     * fetch时不刷入, 把缓冲中该行的数据合并到查询结果(read-your-writes)
+     */
+    public static final String READ_OVERLAY_KEY = "hbase.accessor.read.overlay";
+
+    /**
+     * 刷入失败的重试次数(Hbase客户端自身重试用尽之后)
+     */
+    public static final String FLUSH_RETRIES_KEY = "hbase.accessor.flush.retries";
+
+    /**
+     * 首次重试等待(毫秒), 之后逐次翻倍
+     */
+    public static final String FLUSH_RETRY_BACKOFF_KEY = "hbase.accessor.flush.retry.backoff.ms";
+
+    /**
+     * 重试最长等待(毫秒)
+     */
+    public static final String FLUSH_RETRY_MAX_BACKOFF_KEY = "hbase.accessor.flush.retry.max.backoff.ms";
+
+    /**
+     * CountRow增量先在本地累加, 后台批量提交
+     */
+    public static final String COUNTER_WRITE_BEHIND_KEY = "hbase.accessor.counter.write.behind";
+
+    /**
+     * 有增量的计数器达到该数量时提交
+     */
+    public static final String COUNTER_FLUSH_SIZE_KEY = "hbase.accessor.counter.flush.size";
+
+    /**
+     * 计数器提交间隔(毫秒)
+     */
+    public static final String COUNTER_FLUSH_MS_KEY = "hbase.accessor.counter.flush.ms";
+
+    /**
+     * 批量导入内存排序上限(字节), 超过后写入本地run文件
+     */
+    public static final String BULK_SPILL_BYTES_KEY = "hbase.accessor.bulk.spill.bytes";
+
+    /**
+     * 批量导入load时的持久化级别(Durability名称), 默认USE_DEFAULT(按表定义);
+     * 设为SKIP_WAL时RegionServer在MemStore刷盘前宕机会丢失已导入的数据
+     */
+    public static final String BULK_DURABILITY_KEY = "hbase.accessor.bulk.durability";
+
+    /**
+     * 未单独设置的表的默认持久化级别(Durability名称), 默认使用表定义
+     */
+    public static final String DURABILITY_KEY = "hbase.accessor.durability";
+
+    /**
+     * truncateTable是否先尝试Admin.truncateTable(需要ADMIN/CREATE权限)
+     */
+    public static final String TRUNCATE_ADMIN_KEY = "hbase.accessor.truncate.admin";
+
+    /**
+     * 扫描删除时并行处理的Region数
+     */
+    public static final String TRUNCATE_THREADS_KEY = "hbase.accessor.truncate.threads";
+
+    /**
+     * 扫描删除时每批删除的行数
+     */
+    public static final String TRUNCATE_BATCH_KEY = "hbase.accessor.truncate.batch";
+
+    /**
+     * 流式批量查询每批的行数
+     */
+    public static final String FETCH_BATCH_KEY = "hbase.accessor.fetch.batch";
+
+    /**
+     * 行缓存容量(字节), 0表示不开启
+     */
+    public static final String ROW_CACHE_BYTES_KEY = "hbase.accessor.row.cache.bytes";
+
+    /**
+     * 行缓存默认过期时间(毫秒), 可按表设置
+     */
+    public static final String ROW_CACHE_TTL_KEY = "hbase.accessor.row.cache.ttl.ms";
+
+    /**
+     * 不存在的行缓存条数, 0表示不开启
+     */
+    public static final String NEGATIVE_CACHE_SIZE_KEY = "hbase.accessor.negative.cache.size";
+
+    /**
+     * 不存在的行缓存默认过期时间(毫秒), 可按表设置
+     */
+    public static final String NEGATIVE_CACHE_TTL_KEY = "hbase.accessor.negative.cache.ttl.ms";
+
+    /**
+     * 是否合并并发的相同查询
+     */
+    public static final String FETCH_COALESCE_KEY = "hbase.accessor.fetch.coalesce";
+
+    /**
+     * 合并查询时等待首个查询的最长时间(毫秒), 超时后自行查询
+     */
+    public static final String FETCH_COALESCE_WAIT_KEY = "hbase.accessor.fetch.coalesce.wait.ms";
+
+    /**
+     * 单行查询合并窗口(微秒), 0表示不合并
+     */
+    public static final String FETCH_BATCH_WINDOW_KEY = "hbase.accessor.fetch.batch.window.us";
+
+    /**
+     * 单行查询合并的最大批次
+     */
+    public static final String FETCH_BATCH_MAX_KEY = "hbase.accessor.fetch.batch.max";
 
     /**
-     * delete Queue
+     * 按表的写缓冲
      */
-    private Map<byte[], Queue<Delete>> deletesMap = new TreeMap<byte[], Queue<Delete>>(
+    private final ConcurrentMap<byte[], TableBuffer> buffers = new ConcurrentSkipListMap<byte[], TableBuffer>(
             Bytes.BYTES_COMPARATOR);
 
     /**
-     * fair true
+     * 已开始尚未入队的删除行, flush时一并提交
      */
-    private ReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final Set<DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE>> openDeletes = Collections
+            .newSetFromMap(new ConcurrentHashMap<DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE>, Boolean>());
 
-    private Configuration conf;
+    /**
+     * 按表的持久化级别
+     */
+    private final ConcurrentMap<byte[], Durability> durabilities = new ConcurrentSkipListMap<byte[], Durability>(
+            Bytes.BYTES_COMPARATOR);
+
+    private Durability defaultDurability;
+
+    private RowCache rowCache;
+
+    private NegativeCache negativeCache;
+
+    private SingleFlight singleFlight;
 
-    // 0.94以后废弃
-    private HTablePool pool;
+    private FetchBatcher fetchBatcher;
+
+    private Configuration conf;
 
     private Connection connection;
 
+    /**
+     * 随连接创建和关闭
+     */
+    private TableHandles tables;
+
     private Class<?> whereClauseType;
 
     private Class<ROW_ID_TYPE> idType;
@@ -81,6 +319,41 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
 
     private TransactionManager<ROW_ID_TYPE> transactionManager;
 
+    private int flushCount;
+
+    private long flushBytes;
+
+    private long flushLingerMillis;
+
+    private Flusher flusher;
+
+    private BufferMemory memory;
+
+    private BufferFullPolicy bufferFullPolicy;
+
+    private RegionDispatcher dispatcher;
+
+    private MutationJournal journal;
+
+    private boolean journalSyncWait;
+
+    private ListeningExecutorService asyncExecutor;
+
+    private boolean readOverlay;
+
+    private RetryPolicy retryPolicy;
+
+    private CounterBuffer counterBuffer;
+
+    private volatile DeadLetterSink deadLetterSink = new DeadLetterSink() {
+        @Override
+        public void accept(byte[] tableName,
+                           org.apache.hadoop.hbase.client.Row action, Throwable cause) {
+            LOG.error("drop [" + Bytes.toString(tableName) + "] row ["
+                    + Bytes.toStringBinary(action.getRow()) + "]", cause);
+        }
+    };
+
     public HbaseAccessor(Class<ROW_ID_TYPE> idType) {
         this(idType, poolMaxSize);
     }
@@ -112,9 +385,68 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
         this.idType = idType;
         this.conf = conf;
         HbaseAccessor.poolMaxSize = poolMaxSize;
-        this.pool = new HTablePool(conf, poolMaxSize);
+        this.flushCount = conf.getInt(FLUSH_COUNT_KEY, MAX_QUEUE_SIZE);
+        this.flushBytes = conf.getLong(FLUSH_BYTES_KEY, 2 * 1024 * 1024);
+        this.flushLingerMillis = conf.getLong(FLUSH_LINGER_KEY, 1000);
+        this.memory = new BufferMemory(conf.getLong(BUFFER_MAX_BYTES_KEY,
+                64 * 1024 * 1024));
+        this.bufferFullPolicy = conf.getEnum(BUFFER_FULL_POLICY_KEY,
+                BufferFullPolicy.BLOCK);
+        // 不能与连接共用线程池: 批次任务会阻塞等待连接池里的RPC任务
+        this.dispatcher = new RegionDispatcher(new ThreadPoolExecutor(0,
+                conf.getInt(FLUSH_DISPATCH_THREADS_KEY, poolCoreSize), 60L,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new Daemon.DaemonFactory(), new CallerRunsPolicy()),
+                conf.getInt(FLUSH_SERVER_BATCH_KEY, MAX_QUEUE_SIZE));
+        this.defaultDurability = Durability.valueOf(conf.get(DURABILITY_KEY,
+                Durability.USE_DEFAULT.name()));
+        long rowCacheBytes = conf.getLong(ROW_CACHE_BYTES_KEY, 0);
+        if (rowCacheBytes > 0) {
+            this.rowCache = new RowCache(rowCacheBytes, conf.getLong(
+                    ROW_CACHE_TTL_KEY, 60000));
+        }
+        long fetchBatchWindow = conf.getLong(FETCH_BATCH_WINDOW_KEY, 0);
+        if (fetchBatchWindow > 0) {
+            this.fetchBatcher = new FetchBatcher(this, fetchBatchWindow,
+                    conf.getInt(FETCH_BATCH_MAX_KEY, 100));
+        }
+        if (conf.getBoolean(FETCH_COALESCE_KEY, false)) {
+            this.singleFlight = new SingleFlight(conf.getLong(
+                    FETCH_COALESCE_WAIT_KEY, 1000));
+        }
+        int negativeCacheSize = conf.getInt(NEGATIVE_CACHE_SIZE_KEY, 0);
+        if (negativeCacheSize > 0) {
+            this.negativeCache = new NegativeCache(negativeCacheSize,
+                    conf.getLong(NEGATIVE_CACHE_TTL_KEY, 10000));
+        }
+        this.readOverlay = conf.getBoolean(READ_OVERLAY_KEY, false);
+        this.retryPolicy = new RetryPolicy(conf.getInt(FLUSH_RETRIES_KEY, 3),
+                conf.getLong(FLUSH_RETRY_BACKOFF_KEY, 200), conf.getLong(
+                FLUSH_RETRY_MAX_BACKOFF_KEY, 10000));
+        // 同样不能用连接的线程池; 任务排队等待, 不占用调用方线程
+        int asyncThreads = conf.getInt(ASYNC_THREADS_KEY, poolCoreSize);
+        ThreadPoolExecutor asyncPool = new ThreadPoolExecutor(asyncThreads,
+                asyncThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new Daemon.DaemonFactory());
+        asyncPool.allowCoreThreadTimeOut(true);
+        this.asyncExecutor = MoreExecutors.listeningDecorator(asyncPool);
         openConnection();
+        String journalDir = conf.get(JOURNAL_DIR_KEY);
+        if (journalDir != null) {
+            openJournal(new File(journalDir));
+        }
         setTransactionManager(new TransactionManager<ROW_ID_TYPE>(this));
+        if (conf.getBoolean(COUNTER_WRITE_BEHIND_KEY, false)) {
+            counterBuffer = new CounterBuffer(this, conf.getInt(
+                    COUNTER_FLUSH_SIZE_KEY, 10000), conf.getLong(
+                    COUNTER_FLUSH_MS_KEY, 1000));
+            counterBuffer.start();
+        }
+        int flushThreads = conf.getInt(FLUSH_THREADS_KEY, 1);
+        if (flushThreads > 0) {
+            flusher = new Flusher(this, flushThreads, flushLingerMillis);
+            flusher.start();
+        }
         setupAutoFlushOnShutdown();
     }
 
@@ -128,20 +460,147 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
     }
 
     /**
-     * 全表删除
+     * 全表删除(保留分区)
      *
      * @param tableName
      */
     public void truncateTable(final byte[] tableName) {
-        lock.writeLock().lock();
-        scan(tableName).foreach(new ForEach<Row<ROW_ID_TYPE>>() {
-            @Override
-            public void process(Row<ROW_ID_TYPE> row) {
-                delete(tableName).row(row.getId());
-            }
-        });
+        truncateTable(tableName, true);
+    }
+
+    /**
+     * 全表删除
+     * <p/>
+     * 先刷入该表的缓冲数据; 有权限时disable后Admin.truncateTable, 否则按Region并行
+     * 只扫描行键(KeyOnly + FirstKeyOnly), 分批删除. 不影响其他表的读写
+     *
+     * @param tableName
+     * @param preserveSplits 是否保留分区(仅Admin.truncateTable)
+     */
+    public void truncateTable(String tableName, boolean preserveSplits) {
+        truncateTable(Bytes.toBytes(tableName), preserveSplits);
+    }
+
+    public void truncateTable(byte[] tableName, boolean preserveSplits) {
         flush(tableName);
-        lock.writeLock().unlock();
+        TableName name = tables.name(tableName);
+        try {
+            if (conf.getBoolean(TRUNCATE_ADMIN_KEY, true)
+                    && adminTruncate(name, preserveSplits)) {
+                return;
+            }
+            scanTruncate(tableName);
+        } finally {
+            invalidateTable(tableName);
+        }
+    }
+
+    /**
+     * @return 是否成功, 失败时保证表恢复为enable
+     */
+    private boolean adminTruncate(TableName name, boolean preserveSplits) {
+        Admin admin = null;
+        try {
+            admin = connection.getAdmin();
+            if (!admin.isTableDisabled(name)) {
+                admin.disableTable(name);
+            }
+            admin.truncateTable(name, preserveSplits);
+            LOG.info("truncated [" + name + "] by admin");
+            return true;
+        } catch (IOException e) {
+            LOG.warn("admin truncate [" + name
+                    + "] failed, fall back to scan and delete", e);
+            try {
+                if (admin != null && admin.isTableDisabled(name)) {
+                    admin.enableTable(name);
+                }
+            } catch (IOException ex) {
+                LOG.error("enable [" + name + "] failed", ex);
+            }
+            return false;
+        } finally {
+            if (admin != null) {
+                try {
+                    admin.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 每个Region一个任务, 只取行键, 按批删除
+     */
+    private void scanTruncate(final byte[] tableName) {
+        final TableName name = tables.name(tableName);
+        final int batch = conf.getInt(TRUNCATE_BATCH_KEY, 1000);
+        Pair<byte[][], byte[][]> keys;
+        try {
+            keys = tables.locator(tableName).getStartEndKeys();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        int regions = keys.getFirst().length;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Math.max(1,
+                Math.min(regions, conf.getInt(TRUNCATE_THREADS_KEY, 8))), 60L,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new Daemon.DaemonFactory());
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(regions);
+        try {
+            for (int i = 0; i < regions; i++) {
+                final byte[] startKey = keys.getFirst()[i];
+                final byte[] endKey = keys.getSecond()[i];
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return truncateRegion(tableName, startKey, endKey,
+                                batch);
+                    }
+                }));
+            }
+            int dropped = 0;
+            for (Future<Integer> future : futures) {
+                dropped += future.get();
+            }
+            LOG.info("truncated [" + name + "] by scan, " + regions
+                    + " regions, " + dropped + " deletes dropped");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int truncateRegion(byte[] tableName, byte[] startKey,
+                               byte[] endKey, int batch) throws IOException {
+        Scan scan = new Scan(startKey, endKey);
+        scan.setFilter(new FilterList(new FirstKeyOnlyFilter(),
+                new KeyOnlyFilter()));
+        scan.setCaching(batch);
+        scan.setCacheBlocks(false);
+        int dropped = 0;
+        List<Delete> deletes = new ArrayList<Delete>(batch);
+        ResultScanner scanner = getScanner(tableName, scan);
+        try {
+            for (Result result : scanner) {
+                deletes.add(new Delete(result.getRow()));
+                if (deletes.size() >= batch) {
+                    dropped += flushMutations(tableName, deletes);
+                    deletes = new ArrayList<Delete>(batch);
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        if (!deletes.isEmpty()) {
+            dropped += flushMutations(tableName, deletes);
+        }
+        return dropped;
     }
 
     /**
@@ -162,12 +621,7 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      */
     public CountRow<QUERY_OP_TYPE, ROW_ID_TYPE> count(byte[] tableName) {
         LOG.debug("count [" + tableName + "]");
-        lock.writeLock().lock();
-        try {
-            return new CountRow<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        return new CountRow<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName);
     }
 
     /**
@@ -188,12 +642,34 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      */
     public SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE> save(byte[] tableName) {
         LOG.debug("save [" + tableName + "]");
-        lock.writeLock().lock();
-        try {
-            return new SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        return new SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName);
+    }
+
+    /**
+     * 离线批量导入, 数据先在本地目录排序, load时写入Hbase
+     *
+     * @param tableName
+     * @param dir       本地工作目录
+     * @return
+     */
+    public BulkIngest<QUERY_OP_TYPE, ROW_ID_TYPE> bulkIngest(String tableName,
+                                                             File dir) {
+        return bulkIngest(Bytes.toBytes(tableName), dir);
+    }
+
+    /**
+     * 离线批量导入, 数据先在本地目录排序, load时写入Hbase
+     *
+     * @param tableName
+     * @param dir       本地工作目录
+     * @return
+     */
+    public BulkIngest<QUERY_OP_TYPE, ROW_ID_TYPE> bulkIngest(byte[] tableName,
+                                                             File dir) {
+        return new BulkIngest<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName, dir,
+                conf.getLong(BULK_SPILL_BYTES_KEY, 64 * 1024 * 1024),
+                Durability.valueOf(conf.get(BULK_DURABILITY_KEY,
+                        Durability.USE_DEFAULT.name())));
     }
 
     /**
@@ -213,14 +689,11 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      * @return
      */
     public FetchRow<ROW_ID_TYPE> fetch(byte[] tableName) {
-        flush();
-        LOG.debug("fetch [" + tableName + "]");
-        lock.readLock().lock();
-        try {
-            return new FetchRow<ROW_ID_TYPE>(this, tableName);
-        } finally {
-            lock.readLock().unlock();
+        if (!readOverlay) {
+            flush(tableName);
         }
+        LOG.debug("fetch [" + tableName + "]");
+        return new FetchRow<ROW_ID_TYPE>(this, tableName);
     }
 
     /**
@@ -340,19 +813,11 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      */
     public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> scan(byte[] tableName,
                                                     ROW_ID_TYPE startId, ROW_ID_TYPE endId) {
-        flush();
+        flush(tableName);
         LOG.debug("scan [" + tableName + "] startId [" + startId + "] endId ["
                 + endId + "]");
-        lock.readLock().lock();
-        try {
-            HTable hTable = new HTable(conf, tableName);
-            return new Scanner<QUERY_OP_TYPE, ROW_ID_TYPE>(this, hTable,
-                    startId, endId);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return new Scanner<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName,
+                startId, endId);
     }
 
     /**
@@ -373,12 +838,7 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      */
     public DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> delete(byte[] tableName) {
         LOG.debug("delete [" + tableName + "]");
-        lock.writeLock().lock();
-        try {
-            return new DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        return new DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName);
     }
 
     /**
@@ -468,16 +928,12 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      * @param put
      */
     protected void savePut(byte[] tableName, Put put) {
-        lock.writeLock().lock();
-        try {
-            Queue<Put> puts = getPuts(tableName);
-            if (puts.size() >= MAX_QUEUE_SIZE) {
-                flushPuts(tableName, puts);
-            }
-            puts.add(put);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        TableBuffer buffer = getBuffer(tableName);
+        invalidateRow(tableName, put.getRow());
+        long heapSize = put.heapSize();
+        reserve(buffer, heapSize);
+        awaitJournal(buffer.add(put, heapSize));
+        checkFlush(buffer);
     }
 
     /**
@@ -487,42 +943,139 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      * @param delete
      */
     protected void saveDelete(byte[] tableName, Delete delete) {
-        lock.writeLock().lock();
-        try {
-            Queue<Delete> deletes = getDeletes(tableName);
-            if (deletes.size() >= MAX_QUEUE_SIZE) {
-                flushDeletes(tableName, deletes);
-            }
-            deletes.add(delete);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        TableBuffer buffer = getBuffer(tableName);
+        invalidateRow(tableName, delete.getRow());
+        long heapSize = delete.heapSize();
+        reserve(buffer, heapSize);
+        awaitJournal(buffer.add(delete, heapSize));
+        checkFlush(buffer);
     }
 
     /**
-     * Object ==> byte[]
+     * DeletedRow开始一行
      *
-     * @param o
-     * @return
+     * @param row
      */
-    protected byte[] toBytes(Object o) {
-        if (o == null) {
-            return null;
-        }
-        return Converter.toBytes(o);
+    void opened(DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> row) {
+        openDeletes.add(row);
     }
 
     /**
-     * value ==> <U> U
+     * DeletedRow当前行已入队
      *
-     * @param value
-     * @param c
-     * @return
+     * @param row
      */
-    protected <U> U fromBytes(byte[] value, Class<U> c) {
-        if (value == null) {
-            return null;
-        }
+    void committed(DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> row) {
+        openDeletes.remove(row);
+    }
+
+    /**
+     * 提交未结束的删除行, 与delete(t).row(id)即入队的语义一致
+     *
+     * @param tableName 为null时提交所有表
+     */
+    private void commitOpenDeletes(byte[] tableName) {
+        for (DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> row : openDeletes) {
+            if (tableName == null || Bytes.equals(tableName, row.getTableName())) {
+                row.commit();
+            }
+        }
+    }
+
+    /**
+     * 等待日志落盘
+     *
+     * @param entry
+     */
+    private void awaitJournal(TableBuffer.Entry entry) {
+        if (journal != null && journalSyncWait && entry.getSeq() >= 0) {
+            journal.awaitDurable(entry.getSeq());
+        }
+    }
+
+    /**
+     * 占用写缓冲内存额度, 超出上限时按bufferFullPolicy处理
+     *
+     * @param buffer
+     * @param heapSize
+     */
+    private void reserve(TableBuffer buffer, long heapSize) {
+        if (memory.tryReserve(heapSize)) {
+            return;
+        }
+        switch (bufferFullPolicy) {
+            case FAIL:
+                throw new BufferFullException("write buffer full ["
+                        + memory.used() + "/" + memory.maxBytes() + "]");
+            case FLUSH:
+                flushBuffer(buffer.getTableName());
+                if (!memory.tryReserve(heapSize)) {
+                    flushBuffers();
+                    memory.forceReserve(heapSize);
+                }
+                return;
+            default:
+                while (!memory.tryReserve(heapSize)) {
+                    if (flusher == null) {
+                        flushBuffers();
+                        continue;
+                    }
+                    for (TableBuffer b : buffers.values()) {
+                        if (!b.isEmpty()) {
+                            flusher.request(b);
+                        }
+                    }
+                    try {
+                        memory.awaitRelease(heapSize, flushLingerMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new BufferFullException(
+                                "interrupted while waiting for write buffer", e);
+                    }
+                }
+        }
+    }
+
+    /**
+     * 达到阈值时交给后台刷入(未开启后台刷入则同步刷入)
+     *
+     * @param buffer
+     */
+    private void checkFlush(TableBuffer buffer) {
+        if (buffer.size() < flushCount && buffer.heapSize() < flushBytes) {
+            return;
+        }
+        if (flusher != null) {
+            flusher.request(buffer);
+        } else {
+            flushBuffer(buffer.getTableName());
+        }
+    }
+
+    /**
+     * Object ==> byte[]
+     *
+     * @param o
+     * @return
+     */
+    protected byte[] toBytes(Object o) {
+        if (o == null) {
+            return null;
+        }
+        return Converter.toBytes(o);
+    }
+
+    /**
+     * value ==> <U> U
+     *
+     * @param value
+     * @param c
+     * @return
+     */
+    protected <U> U fromBytes(byte[] value, Class<U> c) {
+        if (value == null) {
+            return null;
+        }
         return Converter.fromBytes(value, c);
     }
 
@@ -566,19 +1119,80 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      * @param get
      * @return
      */
-    protected Result getResult(byte[] tableName, Get get) {
-        HTableInterface table = pool.getTable(tableName);
+    protected Result getResult(final byte[] tableName, final Get get) {
+        if (singleFlight == null) {
+            return loadResult(tableName, get);
+        }
+        return singleFlight.get(tableName, get, new Callable<Result>() {
+            @Override
+            public Result call() {
+                return loadResult(tableName, get);
+            }
+        });
+    }
+
+    private Result loadResult(byte[] tableName, Get get) {
+        if (fetchBatcher != null) {
+            return fetchBatcher.get(tableName, get);
+        }
+        org.apache.hadoop.hbase.client.Table table = null;
         try {
+            table = tables.table(tableName);
             return table.get(get);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            try {
-                pool.putTable(table);
-            } catch (IOException e) {
-                e.printStackTrace();
+            tables.release(tableName, table);
+        }
+    }
+
+    /**
+     * 打开扫描; ResultScanner只使用连接, 取得后即归还Table
+     *
+     * @param tableName
+     * @param scan
+     * @return
+     * @throws IOException
+     */
+    ResultScanner getScanner(byte[] tableName, Scan scan) throws IOException {
+        org.apache.hadoop.hbase.client.Table table = tables.table(tableName);
+        try {
+            return table.getScanner(scan);
+        } finally {
+            tables.release(tableName, table);
+        }
+    }
+
+    /**
+     * 一次multi-get获取多行结果, 按RegionServer分组并行
+     *
+     * @param tableName
+     * @param gets
+     * @return 与gets顺序一致
+     */
+    protected Result[] getResults(byte[] tableName, List<Get> gets) {
+        Map<Get, Integer> positions = new IdentityHashMap<Get, Integer>(
+                gets.size());
+        for (int i = 0; i < gets.size(); i++) {
+            positions.put(gets.get(i), i);
+        }
+        Result[] results = new Result[gets.size()];
+        try {
+            for (RegionDispatcher.Batch<Get> batch : dispatch(tableName, gets)) {
+                for (int i = 0; i < batch.actions.size(); i++) {
+                    Object result = batch.results[i];
+                    if (!(result instanceof Result)) {
+                        throw new IOException("get failed ["
+                                + Bytes.toString(tableName) + "]",
+                                result == null ? batch.error : (Throwable) result);
+                    }
+                    results[positions.get(batch.actions.get(i))] = (Result) result;
+                }
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+        return results;
     }
 
     /**
@@ -586,11 +1200,64 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      */
     public void flush() {
         LOG.debug("flush");
-        for (byte[] tableName : putsMap.keySet()) {
-            flush(tableName);
+        commitOpenDeletes(null);
+        flushBuffers();
+        if (counterBuffer != null) {
+            counterBuffer.flush();
         }
     }
 
+    /**
+     * 异步刷入所有表
+     *
+     * @return
+     */
+    public ListenableFuture<Void> flushAsync() {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                flush();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 异步刷入指定表
+     *
+     * @param tableName
+     * @return
+     */
+    public ListenableFuture<Void> flushAsync(String tableName) {
+        return flushAsync(Bytes.toBytes(tableName));
+    }
+
+    /**
+     * 异步刷入指定表
+     *
+     * @param tableName
+     * @return
+     */
+    public ListenableFuture<Void> flushAsync(final byte[] tableName) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                flush(tableName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 在异步线程池中执行
+     *
+     * @param task
+     * @return
+     */
+    <V> ListenableFuture<V> submit(Callable<V> task) {
+        return asyncExecutor.submit(task);
+    }
+
     /**
      * 指定tableName刷入Hbase
      *
@@ -606,87 +1273,388 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      * @param tableName
      */
     public void flush(byte[] tableName) {
-        lock.writeLock().lock();
-        try {
+        commitOpenDeletes(tableName);
+        flushBuffer(tableName, true);
+        if (counterBuffer != null) {
+            counterBuffer.flush(tableName);
+        }
+    }
+
+    /**
+     * 后台刷入线程调用: 不提交未结束的删除行, 也不等待其它线程更早摘取的数据
+     *
+     * @param tableName
+     */
+    void flushBackground(byte[] tableName) {
+        flushBuffer(tableName, false);
+        if (counterBuffer != null) {
+            counterBuffer.flush(tableName);
+        }
+    }
+
+    /**
+     * 刷入单表写缓冲(不含计数器), 返回前等待更早摘取的数据写完
+     *
+     * @param tableName
+     */
+    private void flushBuffer(byte[] tableName) {
+        flushBuffer(tableName, true);
+    }
+
+    /**
+     * 刷入所有表的写缓冲(不含计数器, 写入线程内部调用, 不提交未结束的删除行)
+     */
+    private void flushBuffers() {
+        for (byte[] tableName : buffers.keySet()) {
+            flushBuffer(tableName);
+        }
+    }
+
+    /**
+     * 刷入单表写缓冲(不含计数器)
+     * <p/>
+     * 网络调用期间不持有锁, 同一张表可以并行刷入多批数据; 只有更早的批次中还有未写完的行
+     * (包括重试退避中的)才等待, 其余的行先提交, 保证同一行按入队顺序写入
+     *
+     * @param tableName
+     * @param await     是否等待其它线程更早摘取的数据写完(后台刷入和写入线程达到阈值时不需要)
+     */
+    private void flushBuffer(byte[] tableName, boolean await) {
+        TableBuffer buffer = buffers.get(tableName);
+        if (buffer == null) {
+            return;
+        }
+        TableBuffer.Drain drain = buffer.drain();
+        if (!drain.isEmpty()) {
             LOG.debug("flush [" + tableName + "]");
-            Queue<Put> puts = getPuts(tableName);
-            if (puts != null) {
-                flushPuts(tableName, puts);
-            }
-            Queue<Delete> deletes = getDeletes(tableName);
-            if (deletes != null) {
-                flushDeletes(tableName, deletes);
+            try {
+                NavigableSet<byte[]> blocked = buffer.blockedRows(drain);
+                if (blocked.isEmpty()) {
+                    flushDurable(tableName, drain.mutations);
+                } else {
+                    List<Mutation> ready = new ArrayList<Mutation>();
+                    List<Mutation> later = new ArrayList<Mutation>();
+                    for (Mutation mutation : drain.mutations) {
+                        (blocked.contains(mutation.getRow()) ? later : ready)
+                                .add(mutation);
+                    }
+                    if (!ready.isEmpty()) {
+                        flushDurable(tableName, ready);
+                    }
+                    buffer.awaitRows(drain, blocked);
+                    flushDurable(tableName, later);
+                }
+                // 交给DeadLetterSink的数据已另存到日志的dead文件
+                if (journal != null) {
+                    journal.complete(drain.sequences);
+                }
+            } finally {
+                buffer.completed(drain);
+                // 入队后到写入前的查询可能缓存了旧值
+                if (rowCache != null || negativeCache != null
+                        || singleFlight != null) {
+                    for (Mutation mutation : drain.mutations) {
+                        invalidateRow(tableName, mutation.getRow());
+                    }
+                }
             }
-        } finally {
-            lock.writeLock().unlock();
+        }
+        if (await) {
+            buffer.awaitEarlier(drain);
         }
     }
 
     /**
-     * Hbase刷入deletes
+     * 按持久化级别分批刷入
+     * <p/>
+     * 未指定级别的数据使用表的级别; RegionServer对一批数据取其中最高的级别写WAL,
+     * 所以不同级别的数据分开提交
      *
      * @param tableName
-     * @param deletes
+     * @param mutations 按入队顺序
+     * @return 交给DeadLetterSink的条数
      */
-    protected void flushDeletes(byte[] tableName, Queue<Delete> deletes) {
-        // 废弃pool
-        // HTableInterface table = pool.getTable(tableName);
-        org.apache.hadoop.hbase.client.Table table = null;
-        Connection connection = this.connection;
-        lock.writeLock().lock();
+    private int flushDurable(byte[] tableName, List<Mutation> mutations) {
+        Durability tableDurability = getDurability(tableName);
+        if (tableDurability != Durability.USE_DEFAULT) {
+            for (Mutation mutation : mutations) {
+                if (mutation.getDurability() == Durability.USE_DEFAULT) {
+                    mutation.setDurability(tableDurability);
+                }
+            }
+        }
+        List<org.apache.hadoop.hbase.client.Row> rows = Coalescer
+                .coalesce(mutations);
+        Map<Durability, List<org.apache.hadoop.hbase.client.Row>> groups = new EnumMap<Durability, List<org.apache.hadoop.hbase.client.Row>>(
+                Durability.class);
+        for (org.apache.hadoop.hbase.client.Row row : rows) {
+            Durability durability = durability(row);
+            List<org.apache.hadoop.hbase.client.Row> group = groups
+                    .get(durability);
+            if (group == null) {
+                group = new ArrayList<org.apache.hadoop.hbase.client.Row>();
+                groups.put(durability, group);
+            }
+            group.add(row);
+        }
+        int dropped = 0;
+        for (List<org.apache.hadoop.hbase.client.Row> group : groups.values()) {
+            dropped += flushMutations(tableName, group);
+        }
+        return dropped;
+    }
+
+    /**
+     * RowMutations取其中最高的级别
+     */
+    private static Durability durability(org.apache.hadoop.hbase.client.Row row) {
+        if (row instanceof Mutation) {
+            return ((Mutation) row).getDurability();
+        }
+        Durability durability = Durability.USE_DEFAULT;
+        for (Mutation mutation : ((RowMutations) row).getMutations()) {
+            if (mutation.getDurability().ordinal() > durability.ordinal()) {
+                durability = mutation.getDurability();
+            }
+        }
+        return durability;
+    }
+
+    /**
+     * 关闭时刷入所有表
+     */
+    private void flushAll() {
         try {
-            // connection = HConnectionManager.createConnection(conf);
-            table = connection.getTable(TableName.valueOf(tableName));
-            table.delete(new ArrayList<Delete>(deletes));
-            // table.flushCommits();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
+            commitOpenDeletes(null);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        for (byte[] tableName : buffers.keySet()) {
             try {
-                // pool.putTable(table);
-                if (table != null)
-                    table.close();
-                // if (connection != null)
-                // connection.close();
-            } catch (IOException e) {
+                flushBuffer(tableName);
+            } catch (RuntimeException e) {
                 e.printStackTrace();
             }
-            deletes.clear();
-            lock.writeLock().unlock();
         }
     }
 
     /**
-     * Hbase刷入puts
+     * Hbase刷入puts/deletes/RowMutations
+     * <p/>
+     * 按RegionServer分组并行提交; 失败的数据(RetriesExhaustedWithDetailsException中
+     * 对应结果为异常的)退避后单独重试, 不可重试或次数用尽的交给DeadLetterSink.
+     * 重试期间的中断(关闭时)不放弃数据, 返回前再恢复中断状态
      *
      * @param tableName
-     * @param puts
+     * @param actions
+     * @return 交给DeadLetterSink的条数
      */
-    protected void flushPuts(byte[] tableName, Queue<Put> puts) {
-        // 废弃pool
-        // HTableInterface table = pool.getTable(tableName);
-        org.apache.hadoop.hbase.client.Table table = null;
-        Connection connection = this.connection;
-        lock.writeLock().lock();
+    protected <R extends org.apache.hadoop.hbase.client.Row> int flushMutations(
+            byte[] tableName, List<R> actions) {
+        List<R> remaining = actions;
+        int dropped = 0;
+        boolean interrupted = false;
         try {
-            // connection = HConnectionManager.createConnection(conf);
-            table = connection.getTable(TableName.valueOf(tableName));
-            table.put(new ArrayList<Put>(puts));
-            // table.flushCommits();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            for (int attempt = 0; !remaining.isEmpty(); attempt++) {
+                // 中断状态会让本次提交立即失败, 先清除
+                interrupted |= Thread.interrupted();
+                List<R> failed = new ArrayList<R>();
+                List<Throwable> causes = new ArrayList<Throwable>();
+                try {
+                    for (RegionDispatcher.Batch<R> batch : dispatcher
+                            .dispatch(tables, tableName, remaining)) {
+                        if (!batch.isFailed()) {
+                            continue;
+                        }
+                        LOG.warn("flush [" + Bytes.toString(tableName)
+                                + "] to [" + batch.serverName
+                                + "] failed, attempt " + attempt, batch.error);
+                        for (int i = 0; i < batch.actions.size(); i++) {
+                            Object result = batch.results[i];
+                            if (result == null
+                                    || result instanceof Throwable) {
+                                failed.add(batch.actions.get(i));
+                                causes.add(result == null ? batch.error
+                                        : (Throwable) result);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    failed = remaining;
+                    causes = new ArrayList<Throwable>(Collections.nCopies(
+                            remaining.size(), (Throwable) e));
+                }
+                remaining = new ArrayList<R>(failed.size());
+                for (int i = 0; i < failed.size(); i++) {
+                    if (retryPolicy.canRetry(attempt, causes.get(i))) {
+                        remaining.add(failed.get(i));
+                    } else {
+                        deadLetter(tableName, failed.get(i), causes.get(i));
+                        dropped++;
+                    }
+                }
+                if (remaining.isEmpty()) {
+                    break;
+                }
+                interrupted |= backoff(retryPolicy.backoffMillis(attempt));
+            }
         } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * 退避等待, 不响应中断
+     *
+     * @param millis
+     * @return 期间是否被中断
+     */
+    private static boolean backoff(long millis) {
+        boolean interrupted = false;
+        long deadline = System.currentTimeMillis() + millis;
+        for (long left = millis; left > 0; left = deadline
+                - System.currentTimeMillis()) {
             try {
-                // pool.putTable(table);
-                if (table != null)
-                    table.close();
-                // if (connection != null)
-                // connection.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                Thread.sleep(left);
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
-            puts.clear();
-            lock.writeLock().unlock();
+        }
+        return interrupted;
+    }
+
+    /**
+     * 按RegionServer分组提交, 不重试
+     *
+     * @param tableName
+     * @param actions
+     * @return
+     * @throws IOException
+     */
+    <R extends org.apache.hadoop.hbase.client.Row> List<RegionDispatcher.Batch<R>> dispatch(
+            byte[] tableName, List<R> actions) throws IOException {
+        return dispatcher.dispatch(tables, tableName, actions);
+    }
+
+    /**
+     * 按RegionServer分组并行执行call, 不重试
+     *
+     * @param tableName
+     * @param actions
+     * @param call
+     * @return
+     * @throws IOException
+     */
+    <R extends org.apache.hadoop.hbase.client.Row> List<RegionDispatcher.Batch<R>> dispatch(
+            byte[] tableName, List<R> actions, RegionDispatcher.BatchCall<R> call)
+            throws IOException {
+        return dispatcher.dispatch(tables, tableName, actions, call);
+    }
+
+    /**
+     * 计数器当前值: 延迟写入模式下为存储值加上本地未提交的增量, 否则查询Hbase
+     *
+     * @param tableName
+     * @param row
+     * @param family
+     * @param qualifier
+     * @return
+     */
+    long currentCount(byte[] tableName, byte[] row, byte[] family,
+                      byte[] qualifier) {
+        if (counterBuffer != null) {
+            return counterBuffer.current(tableName, row, family, qualifier);
+        }
+        Get get = new Get(row);
+        get.addColumn(family, qualifier);
+        Cell cell = getResult(tableName, get).getColumnLatestCell(family,
+                qualifier);
+        return cell == null ? 0 : Bytes.toLong(CellUtil.cloneValue(cell));
+    }
+
+    /**
+     * 表当前各Region的起始行
+     *
+     * @param tableName
+     * @return
+     * @throws IOException
+     */
+    byte[][] getStartKeys(byte[] tableName) throws IOException {
+        return tables.locator(tableName).getStartKeys();
+    }
+
+    /**
+     * 本进程写入某行后使行缓存、不存在的行缓存失效, 之后的查询不再合并到进行中的查询
+     *
+     * @param tableName
+     * @param row
+     */
+    void invalidateRow(byte[] tableName, byte[] row) {
+        if (rowCache != null) {
+            rowCache.invalidate(tableName, row);
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidate(tableName, row);
+        }
+        if (singleFlight != null) {
+            singleFlight.invalidate(tableName, row);
+        }
+    }
+
+    void invalidateTable(byte[] tableName) {
+        if (rowCache != null) {
+            rowCache.invalidate(tableName);
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidate(tableName);
+        }
+        if (singleFlight != null) {
+            singleFlight.invalidate();
+        }
+    }
+
+    /**
+     * 本地尚未提交的计数器增量(未开启延迟写入时为0)
+     *
+     * @param tableName
+     * @param row
+     * @param family
+     * @param qualifier
+     * @return
+     */
+    long pendingCount(byte[] tableName, byte[] row, byte[] family,
+                      byte[] qualifier) {
+        if (counterBuffer == null) {
+            return 0;
+        }
+        return counterBuffer.pending(tableName, row, family, qualifier);
+    }
+
+    /**
+     * 交给DeadLetterSink, sink自身的异常只记录; 开启日志时先另存到dead文件
+     *
+     * @param tableName
+     * @param action
+     * @param cause
+     */
+    void deadLetter(byte[] tableName,
+                            org.apache.hadoop.hbase.client.Row action, Throwable cause) {
+        if (journal != null) {
+            if (action instanceof Put || action instanceof Delete) {
+                journal.dead(tableName, (Mutation) action);
+            } else if (action instanceof RowMutations) {
+                for (Mutation mutation : ((RowMutations) action).getMutations()) {
+                    journal.dead(tableName, mutation);
+                }
+            }
+        }
+        try {
+            deadLetterSink.accept(tableName, action, cause);
+        } catch (RuntimeException e) {
+            LOG.error("dead letter sink failed", e);
         }
     }
 
@@ -697,22 +1665,48 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      * @param increment
      */
     protected void flushCount(byte[] tableName, Increment increment) {
+        invalidateRow(tableName, increment.getRow());
+        if (counterBuffer != null) {
+            counterBuffer.add(tableName, increment);
+            return;
+        }
+        try {
+            increment(tableName, increment);
+        } catch (IOException e) {
+            // 递增不幂等, 结果未知时不能重试
+            deadLetter(tableName, increment, e);
+        }
+    }
+
+    /**
+     * Hbase递增并返回新值
+     *
+     * @param tableName
+     * @param increment
+     * @return
+     * @throws IOException
+     */
+    Result increment(byte[] tableName, Increment increment) throws IOException {
         org.apache.hadoop.hbase.client.Table table = null;
-        Connection connection = this.connection;
-        lock.writeLock().lock();
         try {
-            table = connection.getTable(TableName.valueOf(tableName));
-            table.increment(increment);
-        } catch (Exception e) {
-            e.printStackTrace();
+            table = tables.table(tableName);
+            return table.increment(increment);
         } finally {
-            if (table != null)
-                try {
-                    table.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            lock.writeLock().unlock();
+            incremented(tableName, increment);
+            tables.release(tableName, table);
+        }
+    }
+
+    /**
+     * 绕过计数器缓冲直接递增之后(无论成功与否)调用: 清除行缓存, 计数器缓冲重新查询存储值
+     *
+     * @param tableName
+     * @param increment
+     */
+    void incremented(byte[] tableName, Increment increment) {
+        invalidateRow(tableName, increment.getRow());
+        if (counterBuffer != null) {
+            counterBuffer.forget(tableName, increment);
         }
     }
 
@@ -726,29 +1720,205 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
     }
 
     /**
+     * 所有表的写缓冲
+     *
+     * @return
+     */
+    Collection<TableBuffer> getBuffers() {
+        return buffers.values();
+    }
+
+    /**
+     * 指定行尚未写入Hbase的数据
+     *
      * @param tableName
+     * @param row
      * @return
      */
-    private Queue<Put> getPuts(byte[] tableName) {
-        Queue<Put> queue = putsMap.get(tableName);
-        if (queue == null) {
-            queue = new ConcurrentLinkedQueue<Put>();
-            putsMap.put(tableName, queue);
+    List<Mutation> pending(byte[] tableName, byte[] row) {
+        TableBuffer buffer = buffers.get(tableName);
+        if (buffer == null) {
+            return new ArrayList<Mutation>(0);
         }
-        return queue;
+        return buffer.pending(row);
     }
 
     /**
+     * 获取表的写缓冲(不存在则创建)
+     *
      * @param tableName
      * @return
      */
-    private Queue<Delete> getDeletes(byte[] tableName) {
-        Queue<Delete> queue = deletesMap.get(tableName);
-        if (queue == null) {
-            queue = new ConcurrentLinkedQueue<Delete>();
-            deletesMap.put(tableName, queue);
+    private TableBuffer getBuffer(byte[] tableName) {
+        TableBuffer buffer = buffers.get(tableName);
+        if (buffer == null) {
+            TableBuffer created = new TableBuffer(tableName, memory, journal);
+            buffer = buffers.putIfAbsent(tableName, created);
+            if (buffer == null) {
+                buffer = created;
+            }
         }
-        return queue;
+        return buffer;
+    }
+
+    public int getFlushCount() {
+        return flushCount;
+    }
+
+    public long getFlushBytes() {
+        return flushBytes;
+    }
+
+    public long getFlushLingerMillis() {
+        return flushLingerMillis;
+    }
+
+    public BufferFullPolicy getBufferFullPolicy() {
+        return bufferFullPolicy;
+    }
+
+    public boolean isCounterWriteBehind() {
+        return counterBuffer != null;
+    }
+
+    /**
+     * 设置表的持久化级别, 对之后刷入的数据生效; SaveRow/DeletedRow单独设置的优先
+     *
+     * @param tableName
+     * @param durability
+     */
+    public void setDurability(String tableName, Durability durability) {
+        setDurability(Bytes.toBytes(tableName), durability);
+    }
+
+    public void setDurability(byte[] tableName, Durability durability) {
+        durabilities.put(tableName, durability);
+    }
+
+    public Durability getDurability(byte[] tableName) {
+        Durability durability = durabilities.get(tableName);
+        return durability == null ? defaultDurability : durability;
+    }
+
+    /**
+     * 行缓存及命中率、淘汰数、内存占用等统计
+     *
+     * @return 未开启时为null
+     */
+    public RowCache getRowCache() {
+        return rowCache;
+    }
+
+    /**
+     * 设置表的行缓存时间, 0表示不缓存该表
+     *
+     * @param tableName
+     * @param ttlMillis
+     */
+    public void setRowCacheTtl(String tableName, long ttlMillis) {
+        setRowCacheTtl(Bytes.toBytes(tableName), ttlMillis);
+    }
+
+    public void setRowCacheTtl(byte[] tableName, long ttlMillis) {
+        if (rowCache != null) {
+            rowCache.setTtl(tableName, ttlMillis);
+        }
+    }
+
+    /**
+     * @return 未开启时为null
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * 设置表的不存在行缓存时间, 0表示该表不缓存
+     *
+     * @param tableName
+     * @param ttlMillis
+     */
+    public void setNegativeCacheTtl(String tableName, long ttlMillis) {
+        setNegativeCacheTtl(Bytes.toBytes(tableName), ttlMillis);
+    }
+
+    public void setNegativeCacheTtl(byte[] tableName, long ttlMillis) {
+        if (negativeCache != null) {
+            negativeCache.setTtl(tableName, ttlMillis);
+        }
+    }
+
+    /**
+     * 合并查询的统计
+     *
+     * @return 未开启时为null
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * 单行查询合并的统计
+     *
+     * @return 未开启时为null
+     */
+    public FetchBatcher getFetchBatcher() {
+        return fetchBatcher;
+    }
+
+    public int getFetchBatch() {
+        return conf.getInt(FETCH_BATCH_KEY, 1000);
+    }
+
+    public boolean isReadOverlay() {
+        return readOverlay;
+    }
+
+    /**
+     * 设置刷入失败数据的处理方式(默认记录错误日志后丢弃)
+     *
+     * @param deadLetterSink
+     */
+    public void setDeadLetterSink(DeadLetterSink deadLetterSink) {
+        this.deadLetterSink = deadLetterSink;
+    }
+
+    public DeadLetterSink getDeadLetterSink() {
+        return deadLetterSink;
+    }
+
+    public boolean isJournalEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * 所有表缓冲中的字节数
+     *
+     * @return
+     */
+    public long getBufferedBytes() {
+        return memory.used();
+    }
+
+    /**
+     * 指定表缓冲中的字节数
+     *
+     * @param tableName
+     * @return
+     */
+    public long getBufferedBytes(String tableName) {
+        return getBufferedBytes(Bytes.toBytes(tableName));
+    }
+
+    /**
+     * 指定表缓冲中的字节数
+     *
+     * @param tableName
+     * @return
+     */
+    public long getBufferedBytes(byte[] tableName) {
+        TableBuffer buffer = buffers.get(tableName);
+        return buffer == null ? 0 : buffer.heapSize();
     }
 
     /**
@@ -785,6 +1955,7 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
                             new ArrayBlockingQueue<Runnable>(MAX_QUEUE_SIZE),
                             // new LinkedBlockingQueue<Runnable>(),
                             new Daemon.DaemonFactory(), new CallerRunsPolicy()));
+            tables = new TableHandles(connection, poolCoreSize);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -794,6 +1965,9 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
      * 关闭连接
      */
     public void closeConnection() {
+        if (tables != null) {
+            tables.close();
+        }
         if (!connection.isClosed())
             try {
                 connection.close();
@@ -802,19 +1976,105 @@ public final class HbaseAccessor<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, RO
             }
     }
 
+    /**
+     * 打开本地日志, 先重放上次未刷入的数据
+     *
+     * @param dir
+     */
+    private void openJournal(File dir) {
+        journal = new MutationJournal(dir, conf.getInt(
+                JOURNAL_SEGMENT_BYTES_KEY, 64 * 1024 * 1024), conf.getLong(
+                JOURNAL_SYNC_MS_KEY, 5));
+        journalSyncWait = conf.getBoolean(JOURNAL_SYNC_WAIT_KEY, true);
+        try {
+            List<MutationJournal.Record> records = journal.recover();
+            if (replay(records)) {
+                journal.recovered();
+            }
+            journal.start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 重放日志, 失败时保留旧分段等下次启动
+     *
+     * @param records
+     * @return 是否全部成功
+     */
+    private boolean replay(List<MutationJournal.Record> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+        LOG.info("replay " + records.size() + " journal records");
+        Map<byte[], List<Mutation>> byTable = new TreeMap<byte[], List<Mutation>>(
+                Bytes.BYTES_COMPARATOR);
+        for (MutationJournal.Record record : records) {
+            List<Mutation> mutations = byTable.get(record.tableName);
+            if (mutations == null) {
+                mutations = new ArrayList<Mutation>();
+                byTable.put(record.tableName, mutations);
+            }
+            mutations.add(record.mutation);
+        }
+        boolean replayed = true;
+        for (Map.Entry<byte[], List<Mutation>> table : byTable.entrySet()) {
+            if (flushDurable(table.getKey(), table.getValue()) > 0) {
+                LOG.error("replay journal for [" + Bytes.toString(table.getKey())
+                        + "] failed");
+                replayed = false;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * 停止计数器后台提交并提交剩余增量
+     */
+    private void stopCounters() {
+        if (counterBuffer != null) {
+            counterBuffer.stop();
+            try {
+                counterBuffer.flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
     private void setupAutoFlushOnShutdown() {
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             @Override
             public void run() {
-                flush();
+                stopFlusher();
+                flushAll();
+                closeJournal();
+                stopCounters();
+                asyncExecutor.shutdown();
                 closeConnection();
             }
         }));
     }
 
+    private void stopFlusher() {
+        if (flusher != null) {
+            flusher.stop();
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
-        flush();
+        stopFlusher();
+        flushAll();
+        closeJournal();
+        stopCounters();
         closeConnection();
     }
 
@@ -0,0 +1,520 @@
+package com.xunge.persistence.hbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos.MutationProto;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos.MutationProto.MutationType;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 写缓冲本地预写日志(可选)
+ * <p/>
+ * Put/Delete入队前追加到内存映射的分段文件; 后台线程统一force(组提交): 有写入线程等待时
+ * 立即force, force期间追加的记录进入下一次, 否则每syncMillis一次. 写入线程等待所在批次落盘后返回. 刷入Hbase成功后删除记录已全部完成的分段,
+ * 启动时重放剩余分段.
+ * <p/>
+ * 交给DeadLetterSink的数据另存到dead文件(落盘后)再完成, 不会占住分段, 也不会在启动时重放.
+ * <p/>
+ * 记录里保存追加时间, 重放时未指定时间戳的单元格使用该时间, 重复重放不会覆盖之后的写入.
+ * 删除最新版本的标记无法这样固定, 这类记录启动时另存到dead文件, 不重放.
+ * 记录格式: length(int) crc32(int) | seq(long) timestamp(long) type(byte)
+ * tableLength(short) table mutationProto
+ *
+ * @author stereo
+ */
+class MutationJournal implements Runnable {
+
+    private static final Log LOG = LogFactory.getLog(MutationJournal.class);
+
+    private static final String SUFFIX = ".journal";
+
+    private static final String DEAD_FILE = "dead.letters";
+
+    private static final byte PUT = 0;
+
+    private static final byte DELETE = 1;
+
+    private static final int HEADER = 8;
+
+    /**
+     * 重放记录
+     */
+    static class Record {
+        final long seq;
+        final byte[] tableName;
+        final Mutation mutation;
+
+        Record(long seq, byte[] tableName, Mutation mutation) {
+            this.seq = seq;
+            this.tableName = tableName;
+            this.mutation = mutation;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        long lastSeq = -1;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.raf.setLength(size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, size);
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.warn("close journal segment [" + file + "] failed", e);
+            }
+        }
+    }
+
+    private final File dir;
+
+    private final int segmentBytes;
+
+    private final long syncMillis;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * 已写满的分段, appendLock保护
+     */
+    private final LinkedList<Segment> sealed = new LinkedList<Segment>();
+
+    private Segment active;
+
+    private long nextSeq;
+
+    /**
+     * 最后一条已写入映射内存的记录, appendLock保护
+     */
+    private long appended = -1;
+
+    private volatile long synced = -1;
+
+    /**
+     * 已追加尚未刷入Hbase的记录
+     */
+    private final ConcurrentSkipListSet<Long> outstanding = new ConcurrentSkipListSet<Long>();
+
+    private final Object syncMonitor = new Object();
+
+    /**
+     * 有写入线程在等待落盘, syncMonitor保护
+     */
+    private boolean syncRequested;
+
+    private final List<File> recovered = new ArrayList<File>();
+
+    private final Object deadLock = new Object();
+
+    private volatile boolean running;
+
+    private Thread syncer;
+
+    MutationJournal(File dir, int segmentBytes, long syncMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.syncMillis = syncMillis;
+    }
+
+    /**
+     * 读取上次未完成的记录(start之前调用)
+     *
+     * @return 按追加顺序
+     * @throws IOException
+     */
+    List<Record> recover() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create journal dir [" + dir + "]");
+        }
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        List<Record> records = new ArrayList<Record>();
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            read(file, records);
+            recovered.add(file);
+        }
+        return replayable(records);
+    }
+
+    /**
+     * 未指定时间戳的单版本删除(Delete.addColumn)删的是执行时的最新版本: 已刷入的记录再重放会多删一个旧版本,
+     * 重放前有新写入时会删掉新版本; 这类记录另存到dead文件
+     *
+     * @param records
+     * @return 可以重放的记录
+     */
+    private List<Record> replayable(List<Record> records) {
+        List<Record> replayable = new ArrayList<Record>(records.size());
+        for (Record record : records) {
+            if (record.mutation instanceof Delete
+                    && Coalescer.deletesLatestVersion((Delete) record.mutation)) {
+                LOG.warn("journal record " + record.seq + " for ["
+                        + Bytes.toString(record.tableName)
+                        + "] deletes the latest version and cannot be replayed, moved to "
+                        + DEAD_FILE);
+                dead(record.tableName, record.mutation);
+                continue;
+            }
+            replayable.add(record);
+        }
+        return replayable;
+    }
+
+    /**
+     * 重放成功后删除旧分段
+     */
+    void recovered() {
+        for (File file : recovered) {
+            if (!file.delete()) {
+                LOG.warn("delete journal segment [" + file + "] failed");
+            }
+        }
+        recovered.clear();
+    }
+
+    void start() throws IOException {
+        active = new Segment(segmentFile(nextSeq), segmentBytes);
+        running = true;
+        syncer = new Daemon(this);
+        syncer.start();
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param tableName
+     * @param mutation
+     * @return 记录序号
+     */
+    long append(byte[] tableName, Mutation mutation) {
+        byte[] body = encode(tableName, mutation);
+        byte[] seqBytes;
+        long seq;
+        appendLock.lock();
+        try {
+            seq = nextSeq++;
+            seqBytes = Bytes.toBytes(seq);
+            int length = seqBytes.length + body.length;
+            if (active.buffer.remaining() < HEADER + length) {
+                roll(HEADER + length, seq);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(seqBytes);
+            crc.update(body);
+            active.buffer.putInt(length);
+            active.buffer.putInt((int) crc.getValue());
+            active.buffer.put(seqBytes);
+            active.buffer.put(body);
+            active.lastSeq = seq;
+            outstanding.add(seq);
+            appended = seq;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            appendLock.unlock();
+        }
+        return seq;
+    }
+
+    /**
+     * 等待记录落盘
+     *
+     * @param seq
+     */
+    void awaitDurable(long seq) {
+        if (synced >= seq) {
+            return;
+        }
+        synchronized (syncMonitor) {
+            if (!syncRequested) {
+                syncRequested = true;
+                syncMonitor.notifyAll();
+            }
+            while (synced < seq && running) {
+                try {
+                    syncMonitor.wait(syncMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(
+                            "interrupted while waiting for journal sync", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 刷入失败的数据追加到dead文件并落盘, 之后对应记录可以完成
+     *
+     * @param tableName
+     * @param mutation
+     */
+    void dead(byte[] tableName, Mutation mutation) {
+        byte[] body = encode(tableName, mutation);
+        byte[] seqBytes = Bytes.toBytes(-1L);
+        CRC32 crc = new CRC32();
+        crc.update(seqBytes);
+        crc.update(body);
+        synchronized (deadLock) {
+            try {
+                FileOutputStream file = new FileOutputStream(new File(dir,
+                        DEAD_FILE), true);
+                try {
+                    DataOutputStream out = new DataOutputStream(file);
+                    out.writeInt(seqBytes.length + body.length);
+                    out.writeInt((int) crc.getValue());
+                    out.write(seqBytes);
+                    out.write(body);
+                    out.flush();
+                    file.getFD().sync();
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * 读取dead文件
+     *
+     * @return 按追加顺序
+     * @throws IOException
+     */
+    List<Record> deadLetters() throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        File file = new File(dir, DEAD_FILE);
+        synchronized (deadLock) {
+            if (file.isFile()) {
+                read(file, records);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * 记录已刷入Hbase或已另存到dead文件, 删除记录全部完成的分段
+     *
+     * @param seqs
+     */
+    void complete(long[] seqs) {
+        for (long seq : seqs) {
+            outstanding.remove(seq);
+        }
+        long lowWater = outstanding.isEmpty() ? Long.MAX_VALUE : outstanding
+                .first();
+        appendLock.lock();
+        try {
+            for (Iterator<Segment> it = sealed.iterator(); it.hasNext(); ) {
+                Segment segment = it.next();
+                if (segment.lastSeq >= lowWater) {
+                    break;
+                }
+                it.remove();
+                segment.close();
+                if (!segment.file.delete()) {
+                    LOG.warn("delete journal segment [" + segment.file
+                            + "] failed");
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * 停止并落盘; 所有记录都已完成时删除全部分段
+     */
+    void close() {
+        running = false;
+        if (syncer != null) {
+            syncer.interrupt();
+            try {
+                syncer.join(syncMillis * 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        appendLock.lock();
+        try {
+            if (active == null) {
+                return;
+            }
+            active.buffer.force();
+            sealed.add(active);
+            boolean done = outstanding.isEmpty();
+            for (Segment segment : sealed) {
+                segment.close();
+                if (done && !segment.file.delete()) {
+                    LOG.warn("delete journal segment [" + segment.file
+                            + "] failed");
+                }
+            }
+            sealed.clear();
+            active = null;
+        } finally {
+            appendLock.unlock();
+        }
+        synchronized (syncMonitor) {
+            syncMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * 组提交: force活动分段, 唤醒等待落盘的写入线程
+     */
+    @Override
+    public void run() {
+        while (running) {
+            synchronized (syncMonitor) {
+                try {
+                    if (!syncRequested) {
+                        syncMonitor.wait(syncMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                syncRequested = false;
+            }
+            long target;
+            Segment segment;
+            appendLock.lock();
+            try {
+                target = appended;
+                segment = active;
+            } finally {
+                appendLock.unlock();
+            }
+            if (target <= synced || segment == null) {
+                continue;
+            }
+            segment.buffer.force();
+            synced = target;
+            synchronized (syncMonitor) {
+                syncMonitor.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HbaseAccessor-JournalSyncer";
+    }
+
+    /**
+     * 活动分段写满, 落盘后换新分段(appendLock内)
+     */
+    private void roll(int needed, long seq) throws IOException {
+        active.buffer.force();
+        sealed.add(active);
+        active = new Segment(segmentFile(seq), Math.max(segmentBytes, needed
+                + HEADER));
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%020d", seq) + SUFFIX);
+    }
+
+    private static byte[] encode(byte[] tableName, Mutation mutation) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    (int) Math.min(Integer.MAX_VALUE, mutation.heapSize()));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(System.currentTimeMillis());
+            boolean put = mutation instanceof Put;
+            out.writeByte(put ? PUT : DELETE);
+            out.writeShort(tableName.length);
+            out.write(tableName);
+            ProtobufUtil.toMutation(put ? MutationType.PUT : MutationType.DELETE,
+                    mutation).writeTo(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 读取分段, 遇到未写完或校验失败的记录即停止
+     */
+    private void read(File file, List<Record> records) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            while (buffer.remaining() >= HEADER) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("corrupt journal record in [" + file + "]");
+                    break;
+                }
+                records.add(decode(record));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private Record decode(byte[] record) throws IOException {
+        long seq = Bytes.toLong(record, 0);
+        long timestamp = Bytes.toLong(record, 8);
+        byte type = record[16];
+        int tableLength = Bytes.toShort(record, 17);
+        byte[] tableName = Arrays.copyOfRange(record, 19, 19 + tableLength);
+        int offset = 19 + tableLength;
+        MutationProto proto = MutationProto.parseFrom(Arrays.copyOfRange(
+                record, offset, record.length));
+        nextSeq = Math.max(nextSeq, seq + 1);
+        Mutation mutation;
+        if (type == PUT) {
+            mutation = Coalescer.pin(ProtobufUtil.toPut(proto), timestamp,
+                    new HashMap<String, Long>());
+        } else {
+            mutation = Coalescer.pin(ProtobufUtil.toDelete(proto), timestamp,
+                    new HashMap<String, Long>());
+        }
+        return new Record(seq, tableName, mutation);
+    }
+}
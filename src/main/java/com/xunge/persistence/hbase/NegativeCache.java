@@ -0,0 +1,254 @@
+package com.xunge.persistence.hbase;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 不存在的行缓存
+ * <p/>
+ * 查询结果为空的(表, 行, 查询列)记录一段时间, 期间再查直接返回null. 按条数LRU淘汰;
+ * 本进程写入该行时清除, 其他进程的写入最多在过期时间后可见.
+ * 不用布隆过滤器: 写入时需要逐个删除, 且误判会把存在的行当成不存在.
+ * 按行哈希分为SEGMENTS段各自加锁和LRU(近似全局LRU)
+ *
+ * @author stereo
+ */
+public final class NegativeCache {
+
+    private static final int STAMPS = 1024;
+
+    /**
+     * 锁分段数, 每段最多maxEntries/SEGMENTS条
+     */
+    private static final int SEGMENTS = 16;
+
+    private final int maxEntries;
+
+    private final long defaultTtlMillis;
+
+    private final ConcurrentMap<byte[], Long> ttls = new ConcurrentSkipListMap<byte[], Long>(
+            Bytes.BYTES_COMPARATOR);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+
+    NegativeCache(int maxEntries, long defaultTtlMillis) {
+        this.maxEntries = maxEntries;
+        this.defaultTtlMillis = defaultTtlMillis;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS));
+        }
+    }
+
+    private Segment segment(RowCache.RowId id) {
+        int h = id.hashCode();
+        // 低位已用于失效计数分段, 这里取高位
+        return segments[(h ^ (h >>> 16)) >>> 12 & (SEGMENTS - 1)];
+    }
+
+    long stamp(RowCache.RowId id) {
+        return stamps.get(id.hashCode() & (STAMPS - 1));
+    }
+
+    /**
+     * @param id
+     * @param projection
+     * @return 是否已知不存在
+     */
+    boolean isAbsent(RowCache.RowId id, ByteBuffer projection) {
+        return segment(id).isAbsent(id, projection);
+    }
+
+    /**
+     * 记录查询结果为空
+     *
+     * @param id
+     * @param projection
+     * @param stamp      查询前的失效计数
+     */
+    void absent(RowCache.RowId id, ByteBuffer projection, long stamp) {
+        long ttl = getTtl(id.tableName);
+        if (ttl <= 0 || stamp(id) != stamp) {
+            return;
+        }
+        segment(id).absent(id, projection, ttl, stamp);
+    }
+
+    void invalidate(byte[] tableName, byte[] row) {
+        RowCache.RowId id = new RowCache.RowId(tableName, row);
+        stamps.incrementAndGet(id.hashCode() & (STAMPS - 1));
+        segment(id).remove(id);
+    }
+
+    void invalidate(byte[] tableName) {
+        for (int i = 0; i < STAMPS; i++) {
+            stamps.incrementAndGet(i);
+        }
+        for (Segment segment : segments) {
+            segment.remove(tableName);
+        }
+    }
+
+    /**
+     * 设置表的缓存时间, 0表示该表不缓存
+     *
+     * @param tableName
+     * @param ttlMillis
+     */
+    public void setTtl(byte[] tableName, long ttlMillis) {
+        ttls.put(tableName, ttlMillis);
+        if (ttlMillis <= 0) {
+            invalidate(tableName);
+        }
+    }
+
+    public long getTtl(byte[] tableName) {
+        Long ttl = ttls.get(tableName);
+        return ttl == null ? defaultTtlMillis : ttl;
+    }
+
+    public long getHitCount() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMissCount() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCache[size=" + size() + "/" + maxEntries + ", hits="
+                + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * 按行哈希分段, 每段独立加锁和LRU
+     */
+    private final class Segment {
+
+        final int maxEntries;
+
+        /**
+         * 行 ==> 查询列 ==> 过期时间
+         */
+        final LinkedHashMap<RowCache.RowId, Map<ByteBuffer, Long>> rows = new LinkedHashMap<RowCache.RowId, Map<ByteBuffer, Long>>(
+                16, 0.75f, true);
+
+        int size;
+        long hits;
+        long misses;
+        long evictions;
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        synchronized boolean isAbsent(RowCache.RowId id, ByteBuffer projection) {
+            Map<ByteBuffer, Long> projections = rows.get(id);
+            Long expires = projections == null ? null : projections
+                    .get(projection);
+            if (expires == null) {
+                misses++;
+                return false;
+            }
+            if (expires <= System.currentTimeMillis()) {
+                projections.remove(projection);
+                size--;
+                if (projections.isEmpty()) {
+                    rows.remove(id);
+                }
+                misses++;
+                return false;
+            }
+            hits++;
+            return true;
+        }
+
+        synchronized void absent(RowCache.RowId id, ByteBuffer projection,
+                                 long ttl, long stamp) {
+            // 与invalidate的顺序: 先改失效计数再进段锁删除, 这里在段锁内校验
+            if (stamp(id) != stamp) {
+                return;
+            }
+            Map<ByteBuffer, Long> projections = rows.get(id);
+            if (projections == null) {
+                projections = new HashMap<ByteBuffer, Long>(2);
+                rows.put(id, projections);
+            }
+            if (projections.put(projection, System.currentTimeMillis() + ttl) == null) {
+                size++;
+            }
+            Iterator<Map<ByteBuffer, Long>> it = rows.values().iterator();
+            while (size > maxEntries && it.hasNext()) {
+                Map<ByteBuffer, Long> eldest = it.next();
+                if (eldest == projections) {
+                    continue;
+                }
+                it.remove();
+                size -= eldest.size();
+                evictions++;
+            }
+        }
+
+        synchronized void remove(RowCache.RowId id) {
+            Map<ByteBuffer, Long> projections = rows.remove(id);
+            if (projections != null) {
+                size -= projections.size();
+            }
+        }
+
+        synchronized void remove(byte[] tableName) {
+            for (Iterator<Map.Entry<RowCache.RowId, Map<ByteBuffer, Long>>> it = rows
+                    .entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<RowCache.RowId, Map<ByteBuffer, Long>> entry = it
+                        .next();
+                if (Bytes.equals(tableName, entry.getKey().tableName)) {
+                    it.remove();
+                    size -= entry.getValue().size();
+                }
+            }
+        }
+    }
+}
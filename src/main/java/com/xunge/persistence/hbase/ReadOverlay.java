@@ -0,0 +1,197 @@
+package com.xunge.persistence.hbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * 读取时合并尚未写入Hbase的数据(read-your-writes)
+ * <p/>
+ * 按入队顺序把Put/Delete应用到查询结果上: 未指定时间戳的数据按当前时间依次递增取时间,
+ * 与服务端写入时取时间的效果一致; 只保留Get指定的列族/列和版本数
+ *
+ * @author stereo
+ */
+final class ReadOverlay {
+
+    private ReadOverlay() {
+    }
+
+    /**
+     * @param result  Hbase查询结果
+     * @param get     查询条件
+     * @param pending 该行未写入的数据, 按入队顺序
+     * @return
+     */
+    static Result apply(Result result, Get get, List<Mutation> pending) {
+        List<Cell> cells = result.isEmpty() ? new ArrayList<Cell>()
+                : new ArrayList<Cell>(Arrays.asList(result.rawCells()));
+        long clock = System.currentTimeMillis();
+        for (Mutation mutation : pending) {
+            if (mutation instanceof Put) {
+                put(cells, (Put) mutation, get.getFamilyMap(), clock);
+            } else if (mutation instanceof Delete) {
+                delete(cells, (Delete) mutation, clock);
+            }
+            clock++;
+        }
+        Collections.sort(cells, KeyValue.COMPARATOR);
+        trimVersions(cells, get.getMaxVersions());
+        return Result.create(cells);
+    }
+
+    private static void put(List<Cell> cells, Put put,
+                            Map<byte[], NavigableSet<byte[]>> projection, long clock) {
+        for (List<Cell> family : put.getFamilyCellMap().values()) {
+            for (Cell cell : family) {
+                if (!selected(cell, projection)) {
+                    continue;
+                }
+                long ts = cell.getTimestamp() == HConstants.LATEST_TIMESTAMP ? clock
+                        : cell.getTimestamp();
+                for (Iterator<Cell> it = cells.iterator(); it.hasNext(); ) {
+                    Cell old = it.next();
+                    if (old.getTimestamp() == ts && sameColumn(old, cell)) {
+                        it.remove();
+                    }
+                }
+                cells.add(new KeyValue(CellUtil.cloneRow(cell), CellUtil
+                        .cloneFamily(cell), CellUtil.cloneQualifier(cell), ts,
+                        KeyValue.Type.Put, CellUtil.cloneValue(cell)));
+            }
+        }
+    }
+
+    private static void delete(List<Cell> cells, Delete delete, long clock) {
+        if (delete.isEmpty()) {
+            long bound = bound(delete.getTimeStamp(), clock);
+            for (Iterator<Cell> it = cells.iterator(); it.hasNext(); ) {
+                if (it.next().getTimestamp() <= bound) {
+                    it.remove();
+                }
+            }
+            return;
+        }
+        for (List<Cell> markers : delete.getFamilyCellMap().values()) {
+            for (Cell marker : markers) {
+                long ts = marker.getTimestamp();
+                KeyValue.Type type = KeyValue.Type.codeToType(marker
+                        .getTypeByte());
+                if (type == KeyValue.Type.Delete) {
+                    deleteVersion(cells, marker, ts);
+                    continue;
+                }
+                for (Iterator<Cell> it = cells.iterator(); it.hasNext(); ) {
+                    Cell cell = it.next();
+                    if (!CellUtil.matchingFamily(cell, marker)) {
+                        continue;
+                    }
+                    boolean masked;
+                    switch (type) {
+                        case DeleteFamily:
+                            masked = cell.getTimestamp() <= bound(ts, clock);
+                            break;
+                        case DeleteFamilyVersion:
+                            masked = cell.getTimestamp() == ts;
+                            break;
+                        case DeleteColumn:
+                            masked = CellUtil.matchingQualifier(cell, marker)
+                                    && cell.getTimestamp() <= bound(ts, clock);
+                            break;
+                        default:
+                            masked = false;
+                    }
+                    if (masked) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除单个版本: 未指定时间戳时删除最新版本
+     */
+    private static void deleteVersion(List<Cell> cells, Cell marker, long ts) {
+        Cell target = null;
+        for (Cell cell : cells) {
+            if (!sameColumn(cell, marker)) {
+                continue;
+            }
+            if (ts == HConstants.LATEST_TIMESTAMP) {
+                if (target == null || cell.getTimestamp() > target.getTimestamp()) {
+                    target = cell;
+                }
+            } else if (cell.getTimestamp() == ts) {
+                target = cell;
+            }
+        }
+        if (target != null) {
+            cells.remove(target);
+        }
+    }
+
+    private static long bound(long ts, long clock) {
+        return ts == HConstants.LATEST_TIMESTAMP ? clock : ts;
+    }
+
+    private static boolean sameColumn(Cell a, Cell b) {
+        return CellUtil.matchingFamily(a, b) && CellUtil.matchingQualifier(a, b);
+    }
+
+    private static boolean selected(Cell cell,
+                                    Map<byte[], NavigableSet<byte[]>> projection) {
+        if (projection.isEmpty()) {
+            return true;
+        }
+        for (Map.Entry<byte[], NavigableSet<byte[]>> family : projection
+                .entrySet()) {
+            if (!CellUtil.matchingFamily(cell, family.getKey())) {
+                continue;
+            }
+            NavigableSet<byte[]> qualifiers = family.getValue();
+            if (qualifiers == null || qualifiers.isEmpty()) {
+                return true;
+            }
+            for (byte[] qualifier : qualifiers) {
+                if (CellUtil.matchingQualifier(cell, qualifier)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * 已按列、时间戳倒序排列, 每列保留最新的maxVersions个版本
+     */
+    private static void trimVersions(List<Cell> cells, int maxVersions) {
+        Cell column = null;
+        int versions = 0;
+        for (Iterator<Cell> it = cells.iterator(); it.hasNext(); ) {
+            Cell cell = it.next();
+            if (column == null || !sameColumn(column, cell)) {
+                column = cell;
+                versions = 0;
+            }
+            if (++versions > maxVersions) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.xunge.persistence.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 按RegionServer分组并行提交
+ * <p/>
+ * 刷入前用RegionLocator(客户端缓存)定位每行所在的RegionServer, 每台服务器
+ * 按maxBatchSize切分后各自调用Table.batch(), 单台慢服务器只拖慢自己的批次;
+ * RowMutations不能放进batch(), 在同一批次里逐行调用Table.mutateRow()
+ *
+ * @author stereo
+ */
+class RegionDispatcher {
+
+    private static final Log LOG = LogFactory.getLog(RegionDispatcher.class);
+
+    /**
+     * 单个批次的提交结果
+     */
+    static class Batch<R extends Row> {
+
+        final ServerName serverName;
+        final List<R> actions;
+        final Object[] results;
+        IOException error;
+
+        Batch(ServerName serverName, List<R> actions) {
+            this.serverName = serverName;
+            this.actions = actions;
+            this.results = new Object[actions.size()];
+        }
+
+        boolean isFailed() {
+            return error != null;
+        }
+    }
+
+    /**
+     * 在一个批次上执行的调用, 结果写入batch.results
+     */
+    interface BatchCall<R extends Row> {
+        void call(Table table, Batch<R> batch) throws IOException,
+                InterruptedException;
+    }
+
+    private static final BatchCall<Row> TABLE_BATCH = new BatchCall<Row>() {
+        @Override
+        public void call(Table table, Batch<Row> batch) throws IOException,
+                InterruptedException {
+            submit(table, batch);
+        }
+    };
+
+    private final ExecutorService executor;
+
+    private final int maxBatchSize;
+
+    RegionDispatcher(ExecutorService executor, int maxBatchSize) {
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * 分组提交并等待所有批次完成
+     *
+     * @param tables
+     * @param tableName
+     * @param actions
+     * @return 每个批次的结果
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    <R extends Row> List<Batch<R>> dispatch(TableHandles tables,
+                                            byte[] tableName, List<R> actions) throws IOException {
+        return dispatch(tables, tableName, actions,
+                (BatchCall<R>) (BatchCall<?>) TABLE_BATCH);
+    }
+
+    /**
+     * 分组后在每个批次上执行call, 并等待所有批次完成
+     *
+     * @param tables
+     * @param tableName
+     * @param actions
+     * @param call
+     * @return 每个批次的结果
+     * @throws IOException
+     */
+    <R extends Row> List<Batch<R>> dispatch(final TableHandles tables,
+                                            final byte[] tableName, List<R> actions,
+                                            final BatchCall<R> call) throws IOException {
+        List<Batch<R>> batches = group(tables, tableName, actions);
+        if (batches.size() == 1) {
+            execute(tables, tableName, batches.get(0), call);
+            return batches;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(batches.size());
+        for (final Batch<R> batch : batches) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    execute(tables, tableName, batch, call);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while flushing ["
+                        + Bytes.toString(tableName) + "]", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        return batches;
+    }
+
+    private <R extends Row> List<Batch<R>> group(TableHandles tables,
+                                                 byte[] tableName, List<R> actions) throws IOException {
+        Map<ServerName, List<R>> servers = new HashMap<ServerName, List<R>>();
+        RegionLocator locator = tables.locator(tableName);
+        for (R action : actions) {
+            ServerName serverName = null;
+            try {
+                HRegionLocation location = locator.getRegionLocation(action
+                        .getRow());
+                if (location != null) {
+                    serverName = location.getServerName();
+                }
+            } catch (IOException e) {
+                // 定位失败的交给Table.batch()自行重试
+                LOG.debug("locate region failed [" + Bytes.toString(tableName)
+                        + "]", e);
+            }
+            List<R> list = servers.get(serverName);
+            if (list == null) {
+                list = new ArrayList<R>();
+                servers.put(serverName, list);
+            }
+            list.add(action);
+        }
+        List<Batch<R>> batches = new ArrayList<Batch<R>>();
+        for (Map.Entry<ServerName, List<R>> entry : servers.entrySet()) {
+            List<R> list = entry.getValue();
+            for (int from = 0; from < list.size(); from += maxBatchSize) {
+                int to = Math.min(list.size(), from + maxBatchSize);
+                batches.add(new Batch<R>(entry.getKey(), new ArrayList<R>(
+                        list.subList(from, to))));
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Table非线程安全, 每个批次单独取用并归还
+     */
+    private <R extends Row> void execute(TableHandles tables,
+                                         byte[] tableName, Batch<R> batch, BatchCall<R> call) {
+        Table table = null;
+        try {
+            table = tables.table(tableName);
+            call.call(table, batch);
+        } catch (IOException e) {
+            batch.error = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.error = new IOException(e);
+        } catch (RuntimeException e) {
+            // 只让本批次失败重试, 不影响其他批次的结果
+            batch.error = new IOException(e);
+        } finally {
+            tables.release(tableName, table);
+        }
+    }
+
+    /**
+     * Put/Delete用Table.batch()提交; multi请求不支持RowMutations(cellblock方式直接忽略,
+     * 否则抛UnsupportedOperationException), 逐行用Table.mutateRow()提交
+     */
+    private static <R extends Row> void submit(Table table, Batch<R> batch)
+            throws IOException, InterruptedException {
+        List<Row> actions = new ArrayList<Row>(batch.actions.size());
+        List<Integer> indexes = new ArrayList<Integer>(batch.actions.size());
+        IOException error = null;
+        for (int i = 0; i < batch.actions.size(); i++) {
+            Row action = batch.actions.get(i);
+            if (!(action instanceof RowMutations)) {
+                actions.add(action);
+                indexes.add(i);
+                continue;
+            }
+            try {
+                table.mutateRow((RowMutations) action);
+                batch.results[i] = Result.EMPTY_RESULT;
+            } catch (IOException e) {
+                // 与batch()一致: 失败的数据结果为异常, 批次整体报错
+                batch.results[i] = e;
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (!actions.isEmpty()) {
+            Object[] results = new Object[actions.size()];
+            try {
+                table.batch(actions, results);
+            } finally {
+                for (int i = 0; i < results.length; i++) {
+                    batch.results[indexes.get(i)] = results[i];
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
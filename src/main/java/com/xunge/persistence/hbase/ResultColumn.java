@@ -1,5 +1,8 @@
 package com.xunge.persistence.hbase;
 
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.xunge.persistence.hbase.api.Column;
@@ -7,23 +10,72 @@ import com.xunge.persistence.hbase.api.Column;
 public class ResultColumn implements Column {
 
     private byte[] qualifier;
+    private int qualifierOffset;
+    private int qualifierLength;
     private byte[] value;
+    private int valueOffset;
+    private int valueLength;
     private HbaseAccessor<?, ?> hBase;
 
     public ResultColumn(HbaseAccessor<?, ?> hBase, byte[] qualifier,
                         byte[] value) {
         this.hBase = hBase;
         this.qualifier = qualifier;
+        this.qualifierLength = qualifier.length;
         this.value = value;
+        this.valueLength = value == null ? 0 : value.length;
+    }
+
+    /**
+     * 直接引用单元格的数组, 读取时才复制
+     *
+     * @param hBase
+     * @param cell
+     */
+    ResultColumn(HbaseAccessor<?, ?> hBase, Cell cell) {
+        this.hBase = hBase;
+        this.qualifier = cell.getQualifierArray();
+        this.qualifierOffset = cell.getQualifierOffset();
+        this.qualifierLength = cell.getQualifierLength();
+        this.value = cell.getValueArray();
+        this.valueOffset = cell.getValueOffset();
+        this.valueLength = cell.getValueLength();
     }
 
     @Override
     public String qualifier() {
-        return Bytes.toString(qualifier);
+        return Bytes.toString(qualifier, qualifierOffset, qualifierLength);
     }
 
     @Override
     public <U> U value(Class<U> c) {
-        return hBase.fromBytes(value, c);
+        if (value == null) {
+            return null;
+        }
+        if (valueOffset == 0 && valueLength == value.length) {
+            return hBase.fromBytes(value, c);
+        }
+        return hBase.fromBytes(Arrays.copyOfRange(value, valueOffset,
+                valueOffset + valueLength), c);
+    }
+
+    @Override
+    public long getLong() {
+        return Converter.toLong(value, valueOffset, valueLength);
+    }
+
+    @Override
+    public int getInt() {
+        return Converter.toInt(value, valueOffset, valueLength);
+    }
+
+    @Override
+    public double getDouble() {
+        return Converter.toDouble(value, valueOffset, valueLength);
+    }
+
+    @Override
+    public boolean getBoolean() {
+        return Converter.toBoolean(value, valueOffset, valueLength);
     }
-}
\ No newline at end of file
+}
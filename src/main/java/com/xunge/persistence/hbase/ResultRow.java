@@ -2,10 +2,11 @@ package com.xunge.persistence.hbase;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 
@@ -16,13 +17,20 @@ import com.xunge.persistence.hbase.api.Row;
 
 /**
  * 查询返回的KeyRow
+ * <p/>
+ * 直接在Result的有序单元格数组上读取: 按列族/列二分查找, 同一列的多个版本相邻且时间戳降序,
+ * 原地迭代, 不构造Result.getMap()的多层TreeMap
  *
  * @param <ROW_ID_TYPE>
  * @author stereo
  */
 public class ResultRow<ROW_ID_TYPE> implements Row<ROW_ID_TYPE> {
 
-    private Result result;
+    private static final Cell[] EMPTY_CELLS = new Cell[0];
+
+    private static final byte[] EMPTY_QUALIFIER = new byte[0];
+
+    private Cell[] cells;
     private byte[] id;
     private HbaseAccessor<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase;
 
@@ -30,21 +38,80 @@ public class ResultRow<ROW_ID_TYPE> implements Row<ROW_ID_TYPE> {
             HbaseAccessor<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase,
             Result result) {
         this.hBase = hBase;
-        this.result = result;
+        Cell[] cells = result.rawCells();
+        this.cells = cells == null ? EMPTY_CELLS : cells;
         this.id = result.getRow();
     }
 
+    /**
+     * 第一个列不小于(family, qualifier)的单元格位置
+     */
+    private int seek(byte[] family, byte[] qualifier) {
+        int low = 0;
+        int high = cells.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(cells[mid], family, qualifier) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(Cell cell, byte[] family, byte[] qualifier) {
+        int c = Bytes.compareTo(cell.getFamilyArray(), cell.getFamilyOffset(),
+                cell.getFamilyLength(), family, 0, family.length);
+        if (c != 0) {
+            return c;
+        }
+        return Bytes.compareTo(cell.getQualifierArray(),
+                cell.getQualifierOffset(), cell.getQualifierLength(),
+                qualifier, 0, qualifier.length);
+    }
+
+    /**
+     * @return 该列最新版本的位置, 没有时为-1
+     */
+    private int first(byte[] family, byte[] qualifier) {
+        int i = seek(family, qualifier);
+        return i < cells.length && compare(cells[i], family, qualifier) == 0 ? i
+                : -1;
+    }
+
+    /**
+     * @return 从from开始同一列的单元格结束位置
+     */
+    private int end(int from) {
+        int to = from + 1;
+        while (to < cells.length
+                && CellUtil.matchingColumn(cells[from], cells[to])) {
+            to++;
+        }
+        return to;
+    }
+
+    private static boolean matchingFamily(Cell cell, byte[] family) {
+        return Bytes.equals(cell.getFamilyArray(), cell.getFamilyOffset(),
+                cell.getFamilyLength(), family, 0, family.length);
+    }
+
+    private <U> U value(Cell cell, Class<U> c) {
+        return hBase.fromBytes(CellUtil.cloneValue(cell), c);
+    }
+
     public <U> U value(String family, String qualifier, Class<U> c) {
         return value(Bytes.toBytes(family), Bytes.toBytes(qualifier), c);
     }
 
     @Override
     public <U> U value(byte[] family, byte[] qualifier, Class<U> c) {
-        byte[] value = result.getValue(family, qualifier);
-        if (value == null) {
+        int i = first(family, qualifier);
+        if (i < 0) {
             return null;
         }
-        return hBase.fromBytes(value, c);
+        return value(cells[i], c);
     }
 
     @Override
@@ -104,14 +171,111 @@ public class ResultRow<ROW_ID_TYPE> implements Row<ROW_ID_TYPE> {
                 return ResultRow.this.valuesDescTimestamp(family, qualifier, c);
             }
 
+            @Override
+            public long getLong(String qualifier, long defaultValue) {
+                return ResultRow.this.getLong(family, Bytes.toBytes(qualifier),
+                        defaultValue);
+            }
+
+            @Override
+            public long getLong(byte[] qualifier, long defaultValue) {
+                return ResultRow.this.getLong(family, qualifier, defaultValue);
+            }
+
+            @Override
+            public int getInt(String qualifier, int defaultValue) {
+                return ResultRow.this.getInt(family, Bytes.toBytes(qualifier),
+                        defaultValue);
+            }
+
+            @Override
+            public int getInt(byte[] qualifier, int defaultValue) {
+                return ResultRow.this.getInt(family, qualifier, defaultValue);
+            }
+
+            @Override
+            public double getDouble(String qualifier, double defaultValue) {
+                return ResultRow.this.getDouble(family, Bytes.toBytes(qualifier),
+                        defaultValue);
+            }
+
+            @Override
+            public double getDouble(byte[] qualifier, double defaultValue) {
+                return ResultRow.this.getDouble(family, qualifier, defaultValue);
+            }
+
+            @Override
+            public boolean getBoolean(String qualifier, boolean defaultValue) {
+                return ResultRow.this.getBoolean(family, Bytes.toBytes(qualifier),
+                        defaultValue);
+            }
+
+            @Override
+            public boolean getBoolean(byte[] qualifier, boolean defaultValue) {
+                return ResultRow.this.getBoolean(family, qualifier, defaultValue);
+            }
+
+            @Override
+            public long[] getLongs(String qualifier) {
+                return ResultRow.this.getLongs(family, Bytes.toBytes(qualifier));
+            }
+
+            @Override
+            public long[] getLongs(byte[] qualifier) {
+                return ResultRow.this.getLongs(family, qualifier);
+            }
+
+            @Override
+            public int[] getInts(String qualifier) {
+                return ResultRow.this.getInts(family, Bytes.toBytes(qualifier));
+            }
+
+            @Override
+            public int[] getInts(byte[] qualifier) {
+                return ResultRow.this.getInts(family, qualifier);
+            }
+
+            @Override
+            public double[] getDoubles(String qualifier) {
+                return ResultRow.this.getDoubles(family, Bytes.toBytes(qualifier));
+            }
+
+            @Override
+            public double[] getDoubles(byte[] qualifier) {
+                return ResultRow.this.getDoubles(family, qualifier);
+            }
+
+            @Override
+            public boolean[] getBooleans(String qualifier) {
+                return ResultRow.this.getBooleans(family, Bytes.toBytes(qualifier));
+            }
+
+            @Override
+            public boolean[] getBooleans(byte[] qualifier) {
+                return ResultRow.this.getBooleans(family, qualifier);
+            }
+
+            @Override
+            public long[] timestamps(String qualifier) {
+                return ResultRow.this.timestamps(family,
+                        Bytes.toBytes(qualifier));
+            }
+
+            @Override
+            public long[] timestamps(byte[] qualifier) {
+                return ResultRow.this.timestamps(family, qualifier);
+            }
+
+            /**
+             * 每列只取最新版本
+             */
             @Override
             public void foreach(ForEach<Column> forEach) {
-                NavigableMap<byte[], byte[]> familyMap = result
-                        .getFamilyMap(family);
-                for (Map.Entry<byte[], byte[]> entry : familyMap.entrySet()) {
-                    Column column = new ResultColumn(ResultRow.this.hBase,
-                            entry.getKey(), entry.getValue());
-                    forEach.process(column);
+                int i = seek(family, EMPTY_QUALIFIER);
+                while (i < cells.length && matchingFamily(cells[i], family)) {
+                    forEach.process(new ResultColumn(ResultRow.this.hBase,
+                            cells[i]));
+                    i = end(i);
                 }
             }
         };
@@ -126,25 +290,13 @@ public class ResultRow<ROW_ID_TYPE> implements Row<ROW_ID_TYPE> {
     @Override
     public <U> NavigableMap<Long, U> values(byte[] family, byte[] qualifier,
                                             Class<U> c) {
-        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowMap = result
-                .getMap();
-        if (rowMap == null) {
-            return new TreeMap<Long, U>();
-        }
-        NavigableMap<byte[], NavigableMap<Long, byte[]>> familyMap = rowMap
-                .get(family);
-        if (familyMap == null) {
-            return new TreeMap<Long, U>();
-        }
-        NavigableMap<Long, byte[]> navigableMap = familyMap.get(qualifier);
-        return convert(navigableMap, c);
-    }
-
-    private <U> NavigableMap<Long, U> convert(
-            NavigableMap<Long, byte[]> navigableMap, Class<U> c) {
         TreeMap<Long, U> map = new TreeMap<Long, U>();
-        for (Long timestamp : navigableMap.keySet()) {
-            map.put(timestamp, hBase.fromBytes(navigableMap.get(timestamp), c));
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return map;
+        }
+        for (int i = from, to = end(from); i < to; i++) {
+            map.put(cells[i].getTimestamp(), value(cells[i], c));
         }
         return map;
     }
@@ -159,10 +311,14 @@ public class ResultRow<ROW_ID_TYPE> implements Row<ROW_ID_TYPE> {
     @Override
     public <U> List<U> valuesAscTimestamp(byte[] family, byte[] qualifier,
                                           Class<U> c) {
-        NavigableMap<Long, U> values = values(family, qualifier, c);
-        List<U> result = new ArrayList<U>();
-        for (Long timestamp : values.keySet()) {
-            result.add(values.get(timestamp));
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return new ArrayList<U>(0);
+        }
+        int to = end(from);
+        List<U> result = new ArrayList<U>(to - from);
+        for (int i = to - 1; i >= from; i--) {
+            result.add(value(cells[i], c));
         }
         return result;
     }
@@ -177,11 +333,173 @@ public class ResultRow<ROW_ID_TYPE> implements Row<ROW_ID_TYPE> {
     @Override
     public <U> List<U> valuesDescTimestamp(byte[] family, byte[] qualifier,
                                            Class<U> c) {
-        NavigableMap<Long, U> values = values(family, qualifier, c);
-        List<U> result = new ArrayList<U>();
-        for (Long timestamp : values.descendingKeySet()) {
-            result.add(values.get(timestamp));
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return new ArrayList<U>(0);
+        }
+        int to = end(from);
+        List<U> result = new ArrayList<U>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(value(cells[i], c));
         }
         return result;
     }
+
+    @Override
+    public long getLong(String family, String qualifier, long defaultValue) {
+        return getLong(Bytes.toBytes(family), Bytes.toBytes(qualifier),
+                defaultValue);
+    }
+
+    @Override
+    public long getLong(byte[] family, byte[] qualifier, long defaultValue) {
+        int i = first(family, qualifier);
+        return i < 0 ? defaultValue : toLong(cells[i]);
+    }
+
+    @Override
+    public int getInt(String family, String qualifier, int defaultValue) {
+        return getInt(Bytes.toBytes(family), Bytes.toBytes(qualifier),
+                defaultValue);
+    }
+
+    @Override
+    public int getInt(byte[] family, byte[] qualifier, int defaultValue) {
+        int i = first(family, qualifier);
+        return i < 0 ? defaultValue : toInt(cells[i]);
+    }
+
+    @Override
+    public double getDouble(String family, String qualifier, double defaultValue) {
+        return getDouble(Bytes.toBytes(family), Bytes.toBytes(qualifier),
+                defaultValue);
+    }
+
+    @Override
+    public double getDouble(byte[] family, byte[] qualifier, double defaultValue) {
+        int i = first(family, qualifier);
+        return i < 0 ? defaultValue : toDouble(cells[i]);
+    }
+
+    @Override
+    public boolean getBoolean(String family, String qualifier, boolean defaultValue) {
+        return getBoolean(Bytes.toBytes(family), Bytes.toBytes(qualifier),
+                defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(byte[] family, byte[] qualifier, boolean defaultValue) {
+        int i = first(family, qualifier);
+        return i < 0 ? defaultValue : toBoolean(cells[i]);
+    }
+
+    @Override
+    public long[] getLongs(String family, String qualifier) {
+        return getLongs(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+    }
+
+    @Override
+    public long[] getLongs(byte[] family, byte[] qualifier) {
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return new long[0];
+        }
+        long[] values = new long[end(from) - from];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = toLong(cells[from + i]);
+        }
+        return values;
+    }
+
+    @Override
+    public int[] getInts(String family, String qualifier) {
+        return getInts(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+    }
+
+    @Override
+    public int[] getInts(byte[] family, byte[] qualifier) {
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return new int[0];
+        }
+        int[] values = new int[end(from) - from];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = toInt(cells[from + i]);
+        }
+        return values;
+    }
+
+    @Override
+    public double[] getDoubles(String family, String qualifier) {
+        return getDoubles(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+    }
+
+    @Override
+    public double[] getDoubles(byte[] family, byte[] qualifier) {
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return new double[0];
+        }
+        double[] values = new double[end(from) - from];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = toDouble(cells[from + i]);
+        }
+        return values;
+    }
+
+    @Override
+    public boolean[] getBooleans(String family, String qualifier) {
+        return getBooleans(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+    }
+
+    @Override
+    public boolean[] getBooleans(byte[] family, byte[] qualifier) {
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return new boolean[0];
+        }
+        boolean[] values = new boolean[end(from) - from];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = toBoolean(cells[from + i]);
+        }
+        return values;
+    }
+
+    @Override
+    public long[] timestamps(String family, String qualifier) {
+        return timestamps(Bytes.toBytes(family), Bytes.toBytes(qualifier));
+    }
+
+    @Override
+    public long[] timestamps(byte[] family, byte[] qualifier) {
+        int from = first(family, qualifier);
+        if (from < 0) {
+            return new long[0];
+        }
+        long[] timestamps = new long[end(from) - from];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = cells[from + i].getTimestamp();
+        }
+        return timestamps;
+    }
+
+    private static long toLong(Cell cell) {
+        return Converter.toLong(cell.getValueArray(), cell.getValueOffset(),
+                cell.getValueLength());
+    }
+
+    private static int toInt(Cell cell) {
+        return Converter.toInt(cell.getValueArray(), cell.getValueOffset(),
+                cell.getValueLength());
+    }
+
+    private static double toDouble(Cell cell) {
+        return Converter.toDouble(cell.getValueArray(), cell.getValueOffset(),
+                cell.getValueLength());
+    }
+
+    private static boolean toBoolean(Cell cell) {
+        return Converter.toBoolean(cell.getValueArray(), cell.getValueOffset(),
+                cell.getValueLength());
+    }
 }
@@ -0,0 +1,50 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+
+/**
+ * 刷入失败重试策略: 指数退避加随机抖动
+ * <p/>
+ * 第n次重试等待 [d/2, d], d = min(baseMillis * 2^n, maxMillis);
+ * 抖动避免大量客户端在Region迁移后同时重试
+ *
+ * @author stereo
+ */
+class RetryPolicy {
+
+    private final int retries;
+
+    private final long baseMillis;
+
+    private final long maxMillis;
+
+    RetryPolicy(int retries, long baseMillis, long maxMillis) {
+        this.retries = retries;
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param attempt 已重试次数
+     * @param cause
+     * @return 是否还可以重试
+     */
+    boolean canRetry(int attempt, Throwable cause) {
+        return attempt < retries && !(cause instanceof DoNotRetryIOException);
+    }
+
+    /**
+     * @param attempt 已重试次数
+     * @return 等待毫秒数
+     */
+    long backoffMillis(int attempt) {
+        long delay = baseMillis << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxMillis) {
+            delay = maxMillis;
+        }
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+}
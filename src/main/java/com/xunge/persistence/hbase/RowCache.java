@@ -0,0 +1,531 @@
+package com.xunge.persistence.hbase;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 客户端行缓存
+ * <p/>
+ * 按(表, 行)做LRU, 同一行不同的查询列分别缓存. 超过容量时用访问频率(count-min sketch,
+ * 定期减半)决定是否淘汰最久未用的行: 新行的频率不高于被淘汰行时不缓存.
+ * 本进程的写入在入队和刷入完成时使该行失效; 查询期间发生失效的结果不缓存.
+ * 按行哈希分为SEGMENTS段各自加锁, LRU和频率统计都在段内进行(近似全局LRU)
+ *
+ * @author stereo
+ */
+public final class RowCache {
+
+    /**
+     * 每个缓存单元格估算的对象开销
+     */
+    private static final int CELL_OVERHEAD = 64;
+
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final int STAMPS = 1024;
+
+    /**
+     * 锁分段数, 每段容量为总容量的1/SEGMENTS
+     */
+    private static final int SEGMENTS = 16;
+
+    static final class RowId {
+        final byte[] tableName;
+        final byte[] row;
+        private final int hash;
+
+        RowId(byte[] tableName, byte[] row) {
+            this.tableName = tableName;
+            this.row = row;
+            this.hash = 31 * Bytes.hashCode(tableName) + Bytes.hashCode(row);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RowId)) {
+                return false;
+            }
+            RowId id = (RowId) o;
+            return hash == id.hash && Bytes.equals(row, id.row)
+                    && Bytes.equals(tableName, id.tableName);
+        }
+    }
+
+    private static final class Cached {
+        final Result result;
+        final long expires;
+        final long bytes;
+
+        Cached(Result result, long expires, long bytes) {
+            this.result = result;
+            this.expires = expires;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * 一行的所有查询列缓存
+     */
+    private static final class Node {
+        final Map<ByteBuffer, Cached> projections = new HashMap<ByteBuffer, Cached>(
+                2);
+        long bytes;
+    }
+
+    private final long capacity;
+
+    private final long defaultTtlMillis;
+
+    private final ConcurrentMap<byte[], Long> ttls = new ConcurrentSkipListMap<byte[], Long>(
+            Bytes.BYTES_COMPARATOR);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * 失效计数, 按行哈希分段
+     */
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+
+    RowCache(long capacity, long defaultTtlMillis) {
+        this.capacity = capacity;
+        this.defaultTtlMillis = defaultTtlMillis;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity / SEGMENTS);
+        }
+    }
+
+    private Segment segment(RowId id) {
+        int h = id.hash;
+        // 低位已用于失效计数分段, 这里取高位
+        return segments[(h ^ (h >>> 16)) >>> 12 & (SEGMENTS - 1)];
+    }
+
+    /**
+     * 查询列的缓存键
+     *
+     * @param get
+     * @return
+     */
+    static ByteBuffer projection(Get get) {
+        int length = 4;
+        for (Map.Entry<byte[], NavigableSet<byte[]>> family : get
+                .getFamilyMap().entrySet()) {
+            length += 8 + family.getKey().length;
+            if (family.getValue() != null) {
+                for (byte[] qualifier : family.getValue()) {
+                    length += 4 + qualifier.length;
+                }
+            }
+        }
+        ByteBuffer key = ByteBuffer.allocate(length);
+        key.putInt(get.getMaxVersions());
+        for (Map.Entry<byte[], NavigableSet<byte[]>> family : get
+                .getFamilyMap().entrySet()) {
+            key.putInt(family.getKey().length).put(family.getKey());
+            NavigableSet<byte[]> qualifiers = family.getValue();
+            key.putInt(qualifiers == null ? -1 : qualifiers.size());
+            if (qualifiers != null) {
+                for (byte[] qualifier : qualifiers) {
+                    key.putInt(qualifier.length).put(qualifier);
+                }
+            }
+        }
+        key.flip();
+        return key;
+    }
+
+    /**
+     * 查询前取失效计数, 放入缓存时校验
+     *
+     * @param id
+     * @return
+     */
+    long stamp(RowId id) {
+        return stamps.get(id.hash & (STAMPS - 1));
+    }
+
+    /**
+     * @param id
+     * @param projection
+     * @return 未命中或过期时为null
+     */
+    Result get(RowId id, ByteBuffer projection) {
+        return segment(id).get(id, projection);
+    }
+
+    /**
+     * @param id
+     * @param projection
+     * @param result
+     * @param stamp      查询前的失效计数
+     */
+    void put(RowId id, ByteBuffer projection, Result result, long stamp) {
+        long ttl = getTtl(id.tableName);
+        if (ttl <= 0 || stamp(id) != stamp) {
+            return;
+        }
+        long size = ENTRY_OVERHEAD + projection.capacity() + id.row.length;
+        if (!result.isEmpty()) {
+            for (Cell cell : result.rawCells()) {
+                size += CELL_OVERHEAD + cell.getRowLength()
+                        + cell.getFamilyLength() + cell.getQualifierLength()
+                        + cell.getValueLength();
+            }
+        }
+        segment(id).put(id, projection, result, size, ttl, stamp);
+    }
+
+    /**
+     * 使一行失效
+     *
+     * @param tableName
+     * @param row
+     */
+    void invalidate(byte[] tableName, byte[] row) {
+        RowId id = new RowId(tableName, row);
+        stamps.incrementAndGet(id.hash & (STAMPS - 1));
+        segment(id).remove(id);
+    }
+
+    /**
+     * 使整表失效
+     *
+     * @param tableName
+     */
+    void invalidate(byte[] tableName) {
+        for (int i = 0; i < STAMPS; i++) {
+            stamps.incrementAndGet(i);
+        }
+        for (Segment segment : segments) {
+            segment.remove(tableName);
+        }
+    }
+
+    /**
+     * 设置表的缓存时间, 0表示不缓存该表
+     *
+     * @param tableName
+     * @param ttlMillis
+     */
+    public void setTtl(byte[] tableName, long ttlMillis) {
+        ttls.put(tableName, ttlMillis);
+        if (ttlMillis <= 0) {
+            invalidate(tableName);
+        }
+    }
+
+    public long getTtl(byte[] tableName) {
+        Long ttl = ttls.get(tableName);
+        return ttl == null ? defaultTtlMillis : ttl;
+    }
+
+    public long getHitCount() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMissCount() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    public double getHitRatio() {
+        long hits = 0;
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+            }
+        }
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * @return 因频率不够或超过容量未缓存的次数
+     */
+    public long getRejectionCount() {
+        long rejections = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                rejections += segment.rejections;
+            }
+        }
+        return rejections;
+    }
+
+    public long getExpirationCount() {
+        long expirations = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                expirations += segment.expirations;
+            }
+        }
+        return expirations;
+    }
+
+    /**
+     * @return 估算的内存占用(字节)
+     */
+    public long getSizeBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public long getCapacityBytes() {
+        return capacity;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.rows.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "RowCache[rows=" + size() + ", bytes=" + getSizeBytes() + "/"
+                + capacity + ", hitRatio=" + getHitRatio() + ", evictions="
+                + getEvictionCount() + ", rejections=" + getRejectionCount()
+                + ", expirations=" + getExpirationCount() + "]";
+    }
+
+    /**
+     * 按行哈希分段, 每段独立加锁, 各自做LRU和频率统计
+     */
+    private final class Segment {
+
+        final long capacity;
+
+        final LinkedHashMap<RowId, Node> rows = new LinkedHashMap<RowId, Node>(
+                16, 0.75f, true);
+
+        final FrequencySketch sketch;
+
+        long bytes;
+        long hits;
+        long misses;
+        long evictions;
+        long rejections;
+        long expirations;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch((int) Math.min(1 << 20,
+                    Math.max(64, capacity / 1024)));
+        }
+
+        synchronized Result get(RowId id, ByteBuffer projection) {
+            sketch.increment(id.hash);
+            Node node = rows.get(id);
+            Cached cached = node == null ? null : node.projections
+                    .get(projection);
+            if (cached == null) {
+                misses++;
+                return null;
+            }
+            if (cached.expires <= System.currentTimeMillis()) {
+                node.projections.remove(projection);
+                node.bytes -= cached.bytes;
+                bytes -= cached.bytes;
+                if (node.projections.isEmpty()) {
+                    rows.remove(id);
+                }
+                expirations++;
+                misses++;
+                return null;
+            }
+            hits++;
+            return cached.result;
+        }
+
+        synchronized void put(RowId id, ByteBuffer projection, Result result,
+                              long size, long ttl, long stamp) {
+            // 与invalidate的顺序: 先改失效计数再进段锁删除, 这里在段锁内校验
+            if (stamp(id) != stamp) {
+                return;
+            }
+            if (size > capacity) {
+                rejections++;
+                return;
+            }
+            Node node = rows.get(id);
+            if (node == null) {
+                if (!admit(id, size)) {
+                    rejections++;
+                    return;
+                }
+                node = new Node();
+                rows.put(id, node);
+            }
+            Cached old = node.projections.put(projection, new Cached(result,
+                    System.currentTimeMillis() + ttl, size));
+            if (old != null) {
+                node.bytes -= old.bytes;
+                bytes -= old.bytes;
+            }
+            node.bytes += size;
+            bytes += size;
+            // 已有行增加查询列后超出容量
+            Iterator<Map.Entry<RowId, Node>> it = rows.entrySet().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                Map.Entry<RowId, Node> eldest = it.next();
+                if (eldest.getValue() == node) {
+                    continue;
+                }
+                it.remove();
+                bytes -= eldest.getValue().bytes;
+                evictions++;
+            }
+        }
+
+        /**
+         * 容量不足时逐个比较最久未用的行, 新行更常用才淘汰
+         */
+        private boolean admit(RowId id, long size) {
+            if (bytes + size <= capacity) {
+                return true;
+            }
+            int frequency = sketch.frequency(id.hash);
+            long freed = 0;
+            Iterator<Map.Entry<RowId, Node>> it = rows.entrySet().iterator();
+            while (bytes - freed + size > capacity && it.hasNext()) {
+                Map.Entry<RowId, Node> victim = it.next();
+                if (sketch.frequency(victim.getKey().hash) >= frequency) {
+                    return false;
+                }
+                freed += victim.getValue().bytes;
+            }
+            it = rows.entrySet().iterator();
+            while (bytes + size > capacity && it.hasNext()) {
+                Node victim = it.next().getValue();
+                it.remove();
+                bytes -= victim.bytes;
+                evictions++;
+            }
+            return true;
+        }
+
+        synchronized void remove(RowId id) {
+            Node node = rows.remove(id);
+            if (node != null) {
+                bytes -= node.bytes;
+            }
+        }
+
+        synchronized void remove(byte[] tableName) {
+            for (Iterator<Map.Entry<RowId, Node>> it = rows.entrySet()
+                    .iterator(); it.hasNext(); ) {
+                Map.Entry<RowId, Node> entry = it.next();
+                if (Bytes.equals(tableName, entry.getKey().tableName)) {
+                    it.remove();
+                    bytes -= entry.getValue().bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * 4行count-min sketch, 计数上限15, 总计数达到10倍宽度时全部减半
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0xb4b82e4b,
+                0xd6d5af3b, 0x8a2b8e3d};
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(width - 1) << 1;
+            this.table = new byte[DEPTH][size];
+            this.mask = size - 1;
+            this.sampleSize = 10 * size;
+        }
+
+        private int index(int hash, int i) {
+            int h = (hash ^ SEEDS[i]) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (table[i][index] < 15) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, table[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
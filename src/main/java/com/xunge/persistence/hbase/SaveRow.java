@@ -2,6 +2,9 @@ package com.xunge.persistence.hbase;
 
 import java.util.Date;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 
@@ -18,17 +21,36 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 
     private HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
     private byte[] tableName;
+    private BulkIngest<QUERY_OP_TYPE, ROW_ID_TYPE> bulk;
+    private Durability durability;
 
     SaveRow(HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName) {
         this.hBase = hBase;
         this.tableName = tableName;
     }
 
+    SaveRow(HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName,
+            BulkIngest<QUERY_OP_TYPE, ROW_ID_TYPE> bulk) {
+        this(hBase, tableName);
+        this.bulk = bulk;
+    }
+
     public SaveFamilyCol<QUERY_OP_TYPE, ROW_ID_TYPE> row(ROW_ID_TYPE id) {
         return new SaveFamilyCol<QUERY_OP_TYPE, ROW_ID_TYPE>(tableName, id,
                 this, hBase);
     }
 
+    /**
+     * 之后创建的行使用的持久化级别(默认使用表的级别)
+     *
+     * @param durability
+     * @return
+     */
+    public SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE> durability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
     public <U> SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE> rows(Iterable<U> it,
                                                         ForEach<U> process) {
         for (U u : it) {
@@ -42,6 +64,19 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
         return this;
     }
 
+    public ListenableFuture<Void> flushAsync() {
+        return hBase.flushAsync(tableName);
+    }
+
+    /**
+     * 条件写入: 满足条件的行才写入/删除
+     *
+     * @return
+     */
+    public ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE> conditional() {
+        return new ConditionalRow<QUERY_OP_TYPE, ROW_ID_TYPE>(hBase, tableName);
+    }
+
     public static class SaveFamilyCol<T extends QueryOps<I>, I> {
 
         private Put put;
@@ -53,6 +88,9 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
         SaveFamilyCol(byte[] tableName, I id, SaveRow<T, I> saveRow,
                       HbaseAccessor<T, I> hBase) {
             this.put = new Put(hBase.toBytes(id));
+            if (saveRow.durability != null) {
+                this.put.setDurability(saveRow.durability);
+            }
             this.saveRow = saveRow;
             this.hBase = hBase;
             this.tableName = tableName;
@@ -67,6 +105,20 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
             return this;
         }
 
+        /**
+         * 当前行的持久化级别
+         *
+         * @param durability
+         * @return
+         */
+        public SaveFamilyCol<T, I> durability(Durability durability) {
+            if (put == null) {
+                throw new RuntimeException("row already committed");
+            }
+            put.setDurability(durability);
+            return this;
+        }
+
         public SaveFamilyCol<T, I> col(String qualifier, Object o) {
             return col(Bytes.toBytes(qualifier), o);
         }
@@ -115,7 +167,11 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 
         public SaveFamilyCol<T, I> commit() {
             if (put != null) {
-                this.hBase.savePut(tableName, put);
+                if (saveRow.bulk != null) {
+                    saveRow.bulk.add(put);
+                } else {
+                    this.hBase.savePut(tableName, put);
+                }
                 put = null;
             }
             return this;
@@ -126,5 +182,10 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
             hBase.flush(tableName);
             return this;
         }
+
+        public ListenableFuture<Void> flushAsync() {
+            commit();
+            return hBase.flushAsync(tableName);
+        }
     }
 }
\ No newline at end of file
@@ -2,13 +2,14 @@ package com.xunge.persistence.hbase;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
 
-import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.Filter;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.xunge.persistence.hbase.api.ForEach;
 import com.xunge.persistence.hbase.api.Row;
 
@@ -25,13 +26,13 @@ import com.xunge.persistence.hbase.api.Row;
 public class Scanner<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
         implements Iterable<Row<ROW_ID_TYPE>> {
 
-    private HTable hTable;
+    private byte[] tableName;
     private Scan scan;
     private HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
 
-    Scanner(HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, HTable hTable,
+    Scanner(HbaseAccessor<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName,
             ROW_ID_TYPE startId, ROW_ID_TYPE endId) {
-        this.hTable = hTable;
+        this.tableName = tableName;
         this.hBase = hBase;
         if (startId != null && endId != null) {
             this.scan = new Scan(hBase.toBytes(startId), hBase.toBytes(endId));
@@ -48,7 +49,7 @@ public class Scanner<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
     @Override
     public Iterator<Row<ROW_ID_TYPE>> iterator() {
         try {
-            ResultScanner scanner = hTable.getScanner(scan);
+            ResultScanner scanner = hBase.getScanner(tableName, scan);
             final Iterator<Result> iterator = scanner.iterator();
             return new Iterator<Row<ROW_ID_TYPE>>() {
                 @Override
@@ -80,6 +81,23 @@ public class Scanner<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
         }
     }
 
+    /**
+     * 在异步线程中扫描, 回调在该线程执行
+     *
+     * @param forEach
+     * @return
+     */
+    public ListenableFuture<Void> foreachAsync(
+            final ForEach<Row<ROW_ID_TYPE>> forEach) {
+        return hBase.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                foreach(forEach);
+                return null;
+            }
+        });
+    }
+
     /**
      * @return
      */
@@ -0,0 +1,179 @@
+package com.xunge.persistence.hbase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * 合并并发的相同查询(single-flight)
+ * <p/>
+ * 同一(表, 行, 查询列)同时只发一次Get, 其余线程等待并共享结果. 本进程在查询开始后写入该行的,
+ * 之后的线程不再合并, 保证读到自己的写入; 等待超时或首个查询失败时各自查询.
+ * 带过滤器或时间范围的Get不合并
+ *
+ * @author stereo
+ */
+public final class SingleFlight {
+
+    private static final int STAMPS = 1024;
+
+    private static final class Key {
+        final RowCache.RowId id;
+        final ByteBuffer projection;
+
+        Key(RowCache.RowId id, ByteBuffer projection) {
+            this.id = id;
+            this.projection = projection;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id.hashCode() + projection.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return id.equals(k.id) && projection.equals(k.projection);
+        }
+    }
+
+    private static final class Call {
+        final long stamp;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Result result;
+
+        Call(long stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    private final ConcurrentMap<Key, Call> calls = new ConcurrentHashMap<Key, Call>();
+
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+
+    private final long waitMillis;
+
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+
+    SingleFlight(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * @param tableName
+     * @param get
+     * @param loader    实际的查询, 只抛RuntimeException
+     * @return
+     */
+    Result get(byte[] tableName, Get get, Callable<Result> loader) {
+        if (get.getFilter() != null || !get.getTimeRange().isAllTime()) {
+            bypassed.incrementAndGet();
+            return load(loader);
+        }
+        RowCache.RowId id = new RowCache.RowId(tableName, get.getRow());
+        Key key = new Key(id, RowCache.projection(get));
+        long stamp = stamps.get(id.hashCode() & (STAMPS - 1));
+        Call call = new Call(stamp);
+        Call existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            // 查询开始后本进程写入过该行的不合并
+            if (existing.stamp == stamp) {
+                try {
+                    if (existing.done.await(waitMillis, TimeUnit.MILLISECONDS)) {
+                        Result result = existing.result;
+                        if (result != null) {
+                            coalesced.incrementAndGet();
+                            return result;
+                        }
+                    } else {
+                        timeouts.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            bypassed.incrementAndGet();
+            return load(loader);
+        }
+        leaders.incrementAndGet();
+        try {
+            Result result = load(loader);
+            call.result = result;
+            return result;
+        } finally {
+            calls.remove(key, call);
+            call.done.countDown();
+        }
+    }
+
+    private static Result load(Callable<Result> loader) {
+        try {
+            return loader.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void invalidate(byte[] tableName, byte[] row) {
+        stamps.incrementAndGet(new RowCache.RowId(tableName, row).hashCode()
+                & (STAMPS - 1));
+    }
+
+    void invalidate() {
+        for (int i = 0; i < STAMPS; i++) {
+            stamps.incrementAndGet(i);
+        }
+    }
+
+    /**
+     * @return 实际发出的查询数
+     */
+    public long getLeaderCount() {
+        return leaders.get();
+    }
+
+    /**
+     * @return 共享了其他线程结果的查询数
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return 等待超时后自行查询的次数
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return 未参与合并的查询数(带过滤器、期间有写入、超时或首个查询失败)
+     */
+    public long getBypassedCount() {
+        return bypassed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight[leaders=" + leaders + ", coalesced=" + coalesced
+                + ", timeouts=" + timeouts + ", bypassed=" + bypassed + "]";
+    }
+}
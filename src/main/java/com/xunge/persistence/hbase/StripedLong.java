@@ -0,0 +1,84 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段累加器(Java7没有LongAdder)
+ * <p/>
+ * 无竞争时只CAS base; 第一次CAS失败后按线程分散到多个槽, 槽之间间隔一个缓存行
+ *
+ * @author stereo
+ */
+final class StripedLong {
+
+    private static final int STRIPES = stripes();
+
+    /**
+     * 每个槽占8个long(64字节), 避免伪共享
+     */
+    private static final int PAD = 8;
+
+    private final AtomicLong base = new AtomicLong();
+
+    private volatile AtomicLongArray cells;
+
+    private static int stripes() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    void add(long x) {
+        AtomicLongArray as = cells;
+        if (as == null) {
+            long v = base.get();
+            if (base.compareAndSet(v, v + x)) {
+                return;
+            }
+            as = expand();
+        }
+        as.addAndGet(index() * PAD, x);
+    }
+
+    long sum() {
+        long sum = base.get();
+        AtomicLongArray as = cells;
+        if (as != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += as.get(i * PAD);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 取出当前值并清零, 并发add不会丢失或重复计算
+     *
+     * @return
+     */
+    long sumThenReset() {
+        long sum = base.getAndSet(0);
+        AtomicLongArray as = cells;
+        if (as != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += as.getAndSet(i * PAD, 0);
+            }
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray expand() {
+        if (cells == null) {
+            cells = new AtomicLongArray(STRIPES * PAD);
+        }
+        return cells;
+    }
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,372 @@
+package com.xunge.persistence.hbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 单表写缓冲(无锁入队)
+ * <p/>
+ * 每张表独立一个缓冲, 不同表的写入互不竞争; 刷入时先把队列摘取到本地列表,
+ * 网络调用期间不持有任何锁. Put和Delete按入队顺序放在同一个队列里, 入队后不再修改.
+ * 同一张表可以同时有多批数据在刷入, 每批按摘取顺序编号: 同一行的数据要等更早摘取的批次写完再提交
+ * 开启本地日志时数据在入队前写入日志
+ *
+ * @author stereo
+ */
+class TableBuffer {
+
+    /**
+     * 入队项, 记录入队时的heapSize(出队时按原值扣减)
+     */
+    static final class Entry {
+        final Mutation mutation;
+        final long heapSize;
+        /**
+         * 日志序号, 未写日志为-1
+         */
+        final long seq;
+
+        Entry(Mutation mutation, long heapSize, long seq) {
+            this.mutation = mutation;
+            this.heapSize = heapSize;
+            this.seq = seq;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+    }
+
+    /**
+     * 一次摘取的数据
+     */
+    static final class Drain {
+        final List<Mutation> mutations;
+        final long[] sequences;
+        /**
+         * 占用的内存额度, 刷入结束时释放
+         */
+        final long heapSize;
+        /**
+         * 摘取顺序(空的摘取也编号)
+         */
+        final long order;
+        /**
+         * 涉及的行
+         */
+        final NavigableSet<byte[]> rows;
+
+        Drain(List<Mutation> mutations, long[] sequences, long heapSize,
+              long order) {
+            this.mutations = mutations;
+            this.sequences = sequences;
+            this.heapSize = heapSize;
+            this.order = order;
+            this.rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+            for (Mutation mutation : mutations) {
+                rows.add(mutation.getRow());
+            }
+        }
+
+        boolean isEmpty() {
+            return mutations.isEmpty();
+        }
+    }
+
+    private final byte[] tableName;
+
+    private final BufferMemory memory;
+
+    private final MutationJournal journal;
+
+    private final Queue<Entry> mutations = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * ConcurrentLinkedQueue.size()为O(n), 单独计数
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final AtomicLong heapSize = new AtomicLong();
+
+    /**
+     * 缓冲由空变为非空的时间, 0表示为空
+     */
+    private final AtomicLong firstMillis = new AtomicLong();
+
+    /**
+     * 已提交给后台刷入线程, 避免重复唤醒
+     */
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    /**
+     * 多个刷入线程摘取时互斥, 读取合并时不会漏看摘取中的数据(只在内存中出队时持有)
+     */
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    /**
+     * 有批次刷入结束, 等待更早批次的线程重新检查
+     */
+    private final Condition completedCondition = drainLock.newCondition();
+
+    /**
+     * 下一次摘取的编号, 持有drainLock时修改
+     */
+    private long nextOrder;
+
+    /**
+     * 已摘取尚未完成刷入的数据, 读取合并时要包含
+     */
+    private final Queue<Drain> inFlight = new ConcurrentLinkedQueue<Drain>();
+
+    TableBuffer(byte[] tableName, BufferMemory memory) {
+        this(tableName, memory, null);
+    }
+
+    TableBuffer(byte[] tableName, BufferMemory memory,
+                MutationJournal journal) {
+        this.tableName = tableName;
+        this.memory = memory;
+        this.journal = journal;
+    }
+
+    byte[] getTableName() {
+        return tableName;
+    }
+
+    /**
+     * 入队(额度已由调用方占用), 开启日志时先写入日志
+     *
+     * @param mutation
+     * @param heapSize
+     * @return
+     */
+    Entry add(Mutation mutation, long heapSize) {
+        Entry entry = new Entry(mutation, heapSize,
+                journal == null ? -1 : journal.append(tableName, mutation));
+        mutations.add(entry);
+        this.heapSize.addAndGet(heapSize);
+        count.incrementAndGet();
+        firstMillis.compareAndSet(0, System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * 按入队顺序摘取调用时刻已入队的数据, 避免持续写入时刷入线程无法返回;
+     * 缓冲为空时也返回一个编号的空批次, 用来等待更早的批次
+     *
+     * @return
+     */
+    Drain drain() {
+        int size = count.get();
+        List<Mutation> list = new ArrayList<Mutation>(size);
+        long[] sequences = new long[size];
+        int journaled = 0;
+        long drained = 0;
+        drainLock.lock();
+        try {
+            Entry entry;
+            while (list.size() < size && (entry = mutations.poll()) != null) {
+                list.add(entry.mutation);
+                if (entry.getSeq() >= 0) {
+                    sequences[journaled++] = entry.getSeq();
+                }
+                drained += entry.heapSize;
+                count.decrementAndGet();
+            }
+            Drain drain = new Drain(list, journaled == size ? sequences
+                    : Arrays.copyOf(sequences, journaled), drained, nextOrder++);
+            if (list.isEmpty()) {
+                return drain;
+            }
+            inFlight.add(drain);
+            heapSize.addAndGet(-drained);
+            firstMillis.set(isEmpty() ? 0 : System.currentTimeMillis());
+            return drain;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * drain中还有更早批次未写完的行, 这些行要等待后再提交
+     *
+     * @param drain
+     * @return
+     */
+    NavigableSet<byte[]> blockedRows(Drain drain) {
+        NavigableSet<byte[]> blocked = new TreeSet<byte[]>(
+                Bytes.BYTES_COMPARATOR);
+        drainLock.lock();
+        try {
+            for (Drain earlier : inFlight) {
+                if (earlier.order >= drain.order) {
+                    continue;
+                }
+                for (byte[] row : drain.rows) {
+                    if (earlier.rows.contains(row)) {
+                        blocked.add(row);
+                    }
+                }
+            }
+        } finally {
+            drainLock.unlock();
+        }
+        return blocked;
+    }
+
+    /**
+     * 等待更早摘取且含有rows中任意一行的批次刷入结束; 等待期间不持有锁, 不响应中断
+     *
+     * @param drain
+     * @param rows
+     */
+    void awaitRows(Drain drain, NavigableSet<byte[]> rows) {
+        drainLock.lock();
+        try {
+            while (hasEarlier(drain.order, rows)) {
+                completedCondition.awaitUninterruptibly();
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * 等待比drain更早摘取的批次全部刷入结束(flush返回前调用方之前的数据都已提交)
+     *
+     * @param drain
+     */
+    void awaitEarlier(Drain drain) {
+        drainLock.lock();
+        try {
+            while (hasEarlier(drain.order, null)) {
+                completedCondition.awaitUninterruptibly();
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * 持有drainLock时调用
+     *
+     * @param order
+     * @param rows  为null时不限行
+     * @return
+     */
+    private boolean hasEarlier(long order, NavigableSet<byte[]> rows) {
+        for (Drain earlier : inFlight) {
+            if (earlier.order >= order) {
+                continue;
+            }
+            if (rows == null) {
+                return true;
+            }
+            for (byte[] row : rows) {
+                if (earlier.rows.contains(row)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 刷入结束(无论成功与否), 释放内存额度; 刷入期间数据仍被引用, 不能提前释放
+     *
+     * @param drain
+     */
+    void completed(Drain drain) {
+        memory.release(drain.heapSize);
+        drainLock.lock();
+        try {
+            inFlight.remove(drain);
+            completedCondition.signalAll();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * 指定行尚未写入Hbase的数据(刷入中的在前, 按入队顺序)
+     *
+     * @param row
+     * @return
+     */
+    List<Mutation> pending(byte[] row) {
+        List<Mutation> list = new ArrayList<Mutation>(0);
+        // 与drain互斥, 摘取中的数据不会两边都看不到
+        drainLock.lock();
+        try {
+            for (Drain drain : inFlight) {
+                for (Mutation mutation : drain.mutations) {
+                    if (Bytes.equals(row, mutation.getRow())) {
+                        list.add(mutation);
+                    }
+                }
+            }
+            for (Entry entry : mutations) {
+                if (Bytes.equals(row, entry.mutation.getRow())) {
+                    list.add(entry.mutation);
+                }
+            }
+        } finally {
+            drainLock.unlock();
+        }
+        return list;
+    }
+
+    int size() {
+        return count.get();
+    }
+
+    long heapSize() {
+        return heapSize.get();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 最早一条未刷入数据的滞留时间
+     *
+     * @param now
+     * @return
+     */
+    long lingerMillis(long now) {
+        long first = firstMillis.get();
+        if (first == 0) {
+            // 与drain并发时可能漏记, 这里补上
+            if (!isEmpty()) {
+                firstMillis.compareAndSet(0, now);
+            }
+            return 0;
+        }
+        return now - first;
+    }
+
+    /**
+     * @return 是否由本次调用置位
+     */
+    boolean markFlushRequested() {
+        return flushRequested.compareAndSet(false, true);
+    }
+
+    void clearFlushRequested() {
+        flushRequested.set(false);
+    }
+}
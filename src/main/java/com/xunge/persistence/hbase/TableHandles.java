@@ -0,0 +1,181 @@
+package com.xunge.persistence.hbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 共享连接上的表句柄
+ * <p/>
+ * 每张表缓存一个TableName和一个RegionLocator(线程安全, 调用方不关闭);
+ * Table非线程安全, 用完归还, 每张表最多保留maxIdle个空闲的供复用. 随连接关闭
+ *
+ * @author stereo
+ */
+final class TableHandles implements Closeable {
+
+    private static final class Handles {
+        final TableName name;
+        final ConcurrentLinkedQueue<Table> idle = new ConcurrentLinkedQueue<Table>();
+        final AtomicInteger idleCount = new AtomicInteger();
+        volatile RegionLocator locator;
+
+        Handles(TableName name) {
+            this.name = name;
+        }
+    }
+
+    private final Connection connection;
+
+    private final int maxIdle;
+
+    private final ConcurrentMap<byte[], Handles> tables = new ConcurrentSkipListMap<byte[], Handles>(
+            Bytes.BYTES_COMPARATOR);
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    private volatile boolean closed;
+
+    TableHandles(Connection connection, int maxIdle) {
+        this.connection = connection;
+        this.maxIdle = maxIdle;
+    }
+
+    private Handles handles(byte[] tableName) {
+        Handles handles = tables.get(tableName);
+        if (handles == null) {
+            Handles created = new Handles(TableName.valueOf(tableName));
+            handles = tables.putIfAbsent(tableName, created);
+            if (handles == null) {
+                handles = created;
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * @param tableName
+     * @return
+     */
+    TableName name(byte[] tableName) {
+        return handles(tableName).name;
+    }
+
+    /**
+     * 表的RegionLocator, 调用方不关闭
+     *
+     * @param tableName
+     * @return
+     * @throws IOException
+     */
+    RegionLocator locator(byte[] tableName) throws IOException {
+        Handles handles = handles(tableName);
+        RegionLocator locator = handles.locator;
+        if (locator == null) {
+            synchronized (handles) {
+                locator = handles.locator;
+                if (locator == null) {
+                    locator = connection.getRegionLocator(handles.name);
+                    handles.locator = locator;
+                }
+            }
+        }
+        return locator;
+    }
+
+    /**
+     * 取一个Table, 用完调用release归还
+     *
+     * @param tableName
+     * @return
+     * @throws IOException
+     */
+    Table table(byte[] tableName) throws IOException {
+        Handles handles = handles(tableName);
+        Table table = handles.idle.poll();
+        if (table != null) {
+            handles.idleCount.decrementAndGet();
+            reused.incrementAndGet();
+            return table;
+        }
+        created.incrementAndGet();
+        return connection.getTable(handles.name);
+    }
+
+    /**
+     * 归还Table, 空闲数已满或已关闭时直接关闭
+     *
+     * @param tableName
+     * @param table
+     */
+    void release(byte[] tableName, Table table) {
+        if (table == null) {
+            return;
+        }
+        Handles handles = handles(tableName);
+        if (!closed && handles.idleCount.incrementAndGet() <= maxIdle) {
+            handles.idle.offer(table);
+            return;
+        }
+        if (!closed) {
+            handles.idleCount.decrementAndGet();
+        }
+        close(table);
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return 新建的Table数
+     */
+    long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return 复用空闲Table的次数
+     */
+    long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * 关闭所有空闲句柄, 之后归还的Table直接关闭
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Handles handles : tables.values()) {
+            Table table;
+            while ((table = handles.idle.poll()) != null) {
+                close(table);
+            }
+            if (handles.locator != null) {
+                close(handles.locator);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TableHandles[tables=" + tables.size() + ", created=" + created
+                + ", reused=" + reused + ", maxIdle=" + maxIdle + "]";
+    }
+}
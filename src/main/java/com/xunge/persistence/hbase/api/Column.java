@@ -10,4 +10,17 @@ public interface Column {
     String qualifier();
 
     <U> U value(Class<U> c);
+
+    /**
+     * 以下按Bytes编码直接解码, 不经过Converter, 不装箱
+     *
+     * @return
+     */
+    long getLong();
+
+    int getInt();
+
+    double getDouble();
+
+    boolean getBoolean();
 }
@@ -0,0 +1,17 @@
+package com.xunge.persistence.hbase.api;
+
+/**
+ * 刷入失败(重试用尽或不可重试)的数据
+ *
+ * @author stereo
+ */
+public interface DeadLetterSink {
+
+    /**
+     * @param tableName
+     * @param action    Put/Delete/RowMutations/Increment
+     * @param cause
+     */
+    void accept(byte[] tableName, org.apache.hadoop.hbase.client.Row action,
+                Throwable cause);
+}
@@ -26,5 +26,54 @@ public interface Family {
 
     <U> List<U> valuesDescTimestamp(byte[] qualifier, Class<U> c);
 
+    /**
+     * 以下按Bytes编码直接从单元格解码, 不经过Converter, 不装箱
+     *
+     * @param qualifier
+     * @param defaultValue 该列不存在时返回
+     * @return 最新版本的值
+     */
+    long getLong(String qualifier, long defaultValue);
+
+    long getLong(byte[] qualifier, long defaultValue);
+
+    int getInt(String qualifier, int defaultValue);
+
+    int getInt(byte[] qualifier, int defaultValue);
+
+    double getDouble(String qualifier, double defaultValue);
+
+    double getDouble(byte[] qualifier, double defaultValue);
+
+    boolean getBoolean(String qualifier, boolean defaultValue);
+
+    boolean getBoolean(byte[] qualifier, boolean defaultValue);
+
+    /**
+     * 以下按时间戳降序返回所有版本, 与timestamps一一对应; 该列不存在时为空数组
+     *
+     * @param qualifier
+     * @return
+     */
+    long[] getLongs(String qualifier);
+
+    long[] getLongs(byte[] qualifier);
+
+    int[] getInts(String qualifier);
+
+    int[] getInts(byte[] qualifier);
+
+    double[] getDoubles(String qualifier);
+
+    double[] getDoubles(byte[] qualifier);
+
+    boolean[] getBooleans(String qualifier);
+
+    boolean[] getBooleans(byte[] qualifier);
+
+    long[] timestamps(String qualifier);
+
+    long[] timestamps(byte[] qualifier);
+
     void foreach(ForEach<Column> forEach);
 }
@@ -0,0 +1,24 @@
+package com.xunge.persistence.hbase.api;
+
+/**
+ * 批量递增的单行结果
+ *
+ * @param <ROW_ID_TYPE>
+ * @author stereo
+ */
+public interface IncrementCallback<ROW_ID_TYPE> {
+
+    /**
+     * @param row 递增后的值
+     */
+    void onSuccess(Row<ROW_ID_TYPE> row);
+
+    /**
+     * 递增不幂等, 失败的行不会重试
+     *
+     * @param increment
+     * @param cause
+     */
+    void onFailure(org.apache.hadoop.hbase.client.Increment increment,
+                   Throwable cause);
+}
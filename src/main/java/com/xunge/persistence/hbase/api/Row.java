@@ -30,4 +30,55 @@ public interface Row<ROW_ID_TYPE> {
     <U> List<U> valuesDescTimestamp(String family, String qualifier, Class<U> c);
 
     <U> List<U> valuesDescTimestamp(byte[] family, byte[] qualifier, Class<U> c);
-}
\ No newline at end of file
+
+    /**
+     * 以下按Bytes编码直接从单元格解码, 不经过Converter, 不装箱
+     *
+     * @param family
+     * @param qualifier
+     * @param defaultValue 该列不存在时返回
+     * @return 最新版本的值
+     */
+    long getLong(String family, String qualifier, long defaultValue);
+
+    long getLong(byte[] family, byte[] qualifier, long defaultValue);
+
+    int getInt(String family, String qualifier, int defaultValue);
+
+    int getInt(byte[] family, byte[] qualifier, int defaultValue);
+
+    double getDouble(String family, String qualifier, double defaultValue);
+
+    double getDouble(byte[] family, byte[] qualifier, double defaultValue);
+
+    boolean getBoolean(String family, String qualifier, boolean defaultValue);
+
+    boolean getBoolean(byte[] family, byte[] qualifier, boolean defaultValue);
+
+    /**
+     * 以下按时间戳降序返回所有版本, 与timestamps一一对应; 该列不存在时为空数组
+     *
+     * @param family
+     * @param qualifier
+     * @return
+     */
+    long[] getLongs(String family, String qualifier);
+
+    long[] getLongs(byte[] family, byte[] qualifier);
+
+    int[] getInts(String family, String qualifier);
+
+    int[] getInts(byte[] family, byte[] qualifier);
+
+    double[] getDoubles(String family, String qualifier);
+
+    double[] getDoubles(byte[] family, byte[] qualifier);
+
+    boolean[] getBooleans(String family, String qualifier);
+
+    boolean[] getBooleans(byte[] family, byte[] qualifier);
+
+    long[] timestamps(String family, String qualifier);
+
+    long[] timestamps(byte[] family, byte[] qualifier);
+}
@@ -0,0 +1,19 @@
+package com.xunge.persistence.hbase.exc;
+
+/**
+ * 写缓冲已满(BufferFullPolicy.FAIL)
+ *
+ * @author stereo
+ */
+public class BufferFullException extends RuntimeException {
+
+    private static final long serialVersionUID = -2378457036417216386L;
+
+    public BufferFullException(String message) {
+        super(message);
+    }
+
+    public BufferFullException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,135 @@
+package com.xunge.persistence.hbase;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.xunge.persistence.hbase.exc.BufferFullException;
+
+/**
+ * 写缓冲达到内存上限时BLOCK/FAIL/FLUSH的处理, 以及按表的内存占用(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class BufferFullPolicyTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] OTHER = Bytes.toBytes("o");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+    private static final int ROWS = 10;
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private static void save(HbaseAccessor<QueryOps<String>, String> hBase,
+                             byte[] tableName, int i) {
+        hBase.save(tableName).row("row" + i).family("f").col("q", "v" + i)
+                .commit();
+    }
+
+    /**
+     * @return 一行写入占用的额度(行名长度相同, 每行一样)
+     */
+    private long rowBytes() {
+        HbaseAccessor<QueryOps<String>, String> hBase = new InMemoryTables()
+                .accessor();
+        save(hBase, TABLE, 0);
+        return hBase.getBufferedBytes(TABLE);
+    }
+
+    private HbaseAccessor<QueryOps<String>, String> accessor(
+            BufferFullPolicy policy, long maxBytes, int flushThreads) {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setEnum(HbaseAccessor.BUFFER_FULL_POLICY_KEY, policy);
+        conf.setLong(HbaseAccessor.BUFFER_MAX_BYTES_KEY, maxBytes);
+        conf.setInt(HbaseAccessor.FLUSH_THREADS_KEY, flushThreads);
+        // 只由内存上限触发刷入
+        conf.setInt(HbaseAccessor.FLUSH_COUNT_KEY, Integer.MAX_VALUE);
+        conf.setLong(HbaseAccessor.FLUSH_BYTES_KEY, Long.MAX_VALUE);
+        conf.setLong(HbaseAccessor.FLUSH_LINGER_KEY, 60000);
+        return tables.accessor(conf);
+    }
+
+    private void assertAllRows() {
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals("v" + i, Bytes.toString(tables.value(TABLE,
+                    Bytes.toBytes("row" + i), F, Q)));
+        }
+    }
+
+    public void testBufferedBytesPerTable() {
+        long row = rowBytes();
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(
+                BufferFullPolicy.FAIL, Long.MAX_VALUE, 0);
+        save(hBase, TABLE, 0);
+        save(hBase, TABLE, 1);
+        save(hBase, OTHER, 2);
+        assertEquals(2 * row, hBase.getBufferedBytes(TABLE));
+        assertEquals(row, hBase.getBufferedBytes(OTHER));
+        assertEquals(3 * row, hBase.getBufferedBytes());
+        hBase.flush(TABLE);
+        assertEquals(0, hBase.getBufferedBytes(TABLE));
+        assertEquals(row, hBase.getBufferedBytes());
+        hBase.flush();
+        assertEquals(0, hBase.getBufferedBytes());
+    }
+
+    public void testFailRejectsWhenFull() {
+        long row = rowBytes();
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(
+                BufferFullPolicy.FAIL, 2 * row, 0);
+        save(hBase, TABLE, 0);
+        save(hBase, TABLE, 1);
+        try {
+            save(hBase, TABLE, 2);
+            fail("write buffer over limit");
+        } catch (BufferFullException e) {
+            // 未入队, 不占用额度
+        }
+        assertEquals(2 * row, hBase.getBufferedBytes(TABLE));
+        assertEquals(0, tables.getBatchCount());
+        hBase.flush();
+        save(hBase, TABLE, 2);
+        assertEquals(row, hBase.getBufferedBytes());
+    }
+
+    public void testFlushInlineWhenFull() {
+        long row = rowBytes();
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(
+                BufferFullPolicy.FLUSH, 2 * row, 0);
+        for (int i = 0; i < ROWS; i++) {
+            save(hBase, TABLE, i);
+            assertTrue(hBase.getBufferedBytes() <= 2 * row);
+        }
+        // 写入线程内已刷入
+        assertTrue(tables.getBatchCount() > 0);
+        hBase.flush();
+        assertAllRows();
+        assertEquals(0, hBase.getBufferedBytes());
+    }
+
+    public void testBlockUntilFlusherReleases() throws Exception {
+        long row = rowBytes();
+        final HbaseAccessor<QueryOps<String>, String> hBase = accessor(
+                BufferFullPolicy.BLOCK, 2 * row, 1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ROWS; i++) {
+                    save(hBase, TABLE, i);
+                }
+            }
+        });
+        writer.start();
+        writer.join(5000);
+        assertFalse("writer still blocked", writer.isAlive());
+        // 阈值和滞留时间都不会触发, 只能是达到上限后由后台刷入释放
+        assertTrue(tables.getBatchCount() > 0);
+        assertTrue(hBase.getBufferedBytes() <= 2 * row);
+        hBase.flush();
+        assertAllRows();
+        assertEquals(0, hBase.getBufferedBytes());
+    }
+}
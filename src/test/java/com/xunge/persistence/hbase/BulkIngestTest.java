@@ -0,0 +1,200 @@
+package com.xunge.persistence.hbase;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * BulkIngest: 溢写、归并、同一单元格后写覆盖、按分区点切分(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class BulkIngestTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("bulk", "");
+        assertTrue(dir.delete());
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private BulkIngest<QueryOps<String>, String> bulk(long spillBytes) {
+        return new BulkIngest<QueryOps<String>, String>(tables.accessor(),
+                TABLE, dir, spillBytes, Durability.SKIP_WAL);
+    }
+
+    private static Put put(String row, long ts, String value) {
+        Put put = new Put(Bytes.toBytes(row));
+        put.addColumn(F, Q, ts, Bytes.toBytes(value));
+        return put;
+    }
+
+    private static List<KeyValue> read(File file) throws IOException {
+        List<KeyValue> cells = new ArrayList<KeyValue>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return cells;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                cells.add(new KeyValue(bytes, 0, length));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String row(KeyValue kv) {
+        return Bytes.toString(CellUtil.cloneRow(kv));
+    }
+
+    private static String value(KeyValue kv) {
+        return Bytes.toString(CellUtil.cloneValue(kv));
+    }
+
+    public void testSpillMergeAndSplit() throws IOException {
+        // 每次写入都溢写成一个run文件
+        BulkIngest<QueryOps<String>, String> bulk = bulk(1);
+        bulk.add(put("d", 1, "d1"));
+        bulk.add(put("a", 1, "a1"));
+        bulk.add(put("m", 1, "m1"));
+        bulk.add(put("b", 1, "b1"));
+        bulk.add(put("x", 1, "x1"));
+        assertEquals(5, dir.listFiles().length);
+
+        List<File> files = bulk.prepare(new byte[][]{Bytes.toBytes("c"),
+                Bytes.toBytes("k"), Bytes.toBytes("w")});
+        assertEquals(4, files.size());
+        String[][] expected = {{"a", "b"}, {"d"}, {"m"}, {"x"}};
+        for (int i = 0; i < files.size(); i++) {
+            List<KeyValue> cells = read(files.get(i));
+            assertEquals(expected[i].length, cells.size());
+            for (int j = 0; j < cells.size(); j++) {
+                assertEquals(expected[i][j], row(cells.get(j)));
+            }
+        }
+        // run文件已在归并后删除
+        assertEquals(files.size(), dir.listFiles().length);
+        bulk.close();
+    }
+
+    public void testEmptyRegionSkipped() throws IOException {
+        BulkIngest<QueryOps<String>, String> bulk = bulk(1024 * 1024);
+        bulk.add(put("a", 1, "a1"));
+        bulk.add(put("z", 1, "z1"));
+        List<File> files = bulk.prepare(new byte[][]{Bytes.toBytes("m"),
+                Bytes.toBytes("n")});
+        assertEquals(2, files.size());
+        assertEquals("a", row(read(files.get(0)).get(0)));
+        assertEquals("z", row(read(files.get(1)).get(0)));
+        bulk.close();
+    }
+
+    public void testLastWriteWins() throws IOException {
+        // 同一run内和跨run的重复单元格都保留最后一次写入
+        BulkIngest<QueryOps<String>, String> bulk = bulk(1024 * 1024);
+        bulk.add(put("a", 1, "v1"));
+        bulk.add(put("a", 1, "v2"));
+        bulk.add(put("a", 2, "newer"));
+        List<KeyValue> cells = read(bulk.prepare(new byte[0][]).get(0));
+        assertEquals(2, cells.size());
+        // 新版本排在前面
+        assertEquals("newer", value(cells.get(0)));
+        assertEquals("v2", value(cells.get(1)));
+        bulk.close();
+
+        bulk = bulk(1);
+        bulk.add(put("a", 1, "v1"));
+        bulk.add(put("a", 1, "v2"));
+        bulk.add(put("a", 1, "v3"));
+        cells = read(bulk.prepare(new byte[0][]).get(0));
+        assertEquals(1, cells.size());
+        assertEquals("v3", value(cells.get(0)));
+        bulk.close();
+    }
+
+    public void testLoad() {
+        BulkIngest<QueryOps<String>, String> bulk = bulk(256);
+        for (int i = 0; i < 100; i++) {
+            bulk.add(put(String.format("row%03d", i), 1, "old" + i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            bulk.add(put(String.format("row%03d", i), 1, "new" + i));
+        }
+        assertEquals(150, bulk.size());
+        bulk.prepare(new byte[][]{Bytes.toBytes("row050")});
+        assertEquals(0, bulk.load());
+        for (int i = 0; i < 100; i++) {
+            byte[] value = tables.value(TABLE,
+                    Bytes.toBytes(String.format("row%03d", i)), F, Q);
+            assertEquals((i % 2 == 0 ? "new" : "old") + i,
+                    Bytes.toString(value));
+        }
+        // 全部写入成功后删除文件
+        assertEquals(0, dir.listFiles().length);
+        bulk.close();
+    }
+
+    private Set<Durability> loadDurabilities(Configuration conf) {
+        BulkIngest<QueryOps<String>, String> bulk = tables.accessor(conf)
+                .bulkIngest(TABLE, dir);
+        bulk.add(put("a", 1, "a1"));
+        bulk.prepare(new byte[0][]);
+        int batches = tables.getBatchDurabilities().size();
+        assertEquals(0, bulk.load());
+        bulk.close();
+        List<Set<Durability>> loaded = tables.getBatchDurabilities();
+        assertEquals(batches + 1, loaded.size());
+        return loaded.get(batches);
+    }
+
+    public void testDurability() {
+        // 默认按表定义写WAL, SKIP_WAL需要显式设置
+        assertEquals(EnumSet.of(Durability.USE_DEFAULT),
+                loadDurabilities(HBaseConfiguration.create()));
+        Configuration conf = HBaseConfiguration.create();
+        conf.set(HbaseAccessor.BULK_DURABILITY_KEY, Durability.SKIP_WAL.name());
+        assertEquals(EnumSet.of(Durability.SKIP_WAL), loadDurabilities(conf));
+    }
+}
@@ -0,0 +1,155 @@
+package com.xunge.persistence.hbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Coalescer合并规则: 不修改原对象, Put/Delete先后顺序; 合并出的RowMutations用mutateRow刷入
+ *
+ * @author stereo
+ */
+public class CoalescerTest extends TestCase {
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] A = Bytes.toBytes("a");
+    private static final byte[] B = Bytes.toBytes("b");
+
+    private static Put put(byte[] qualifier, long ts, String value) {
+        Put put = new Put(ROW);
+        put.addColumn(F, qualifier, ts, Bytes.toBytes(value));
+        return put;
+    }
+
+    private static List<Row> coalesce(Mutation... mutations) {
+        return Coalescer.coalesce(new ArrayList<Mutation>(Arrays
+                .asList(mutations)));
+    }
+
+    public void testInputsNotModified() {
+        Put first = put(A, 1, "a1");
+        first.addColumn(F, B, 1, Bytes.toBytes("b1"));
+        Put second = put(A, 1, "a2");
+        Delete deleteB = new Delete(ROW);
+        deleteB.addColumns(F, B, 5);
+        Delete deleteA = new Delete(ROW);
+        deleteA.addColumns(F, A, 0);
+        Delete deleteC = new Delete(ROW);
+        deleteC.addColumns(F, Bytes.toBytes("c"), 0);
+
+        coalesce(first, second, deleteB);
+        assertEquals(2, first.size());
+        assertEquals(1, second.size());
+
+        coalesce(deleteA, deleteC);
+        assertEquals(1, deleteA.size());
+        assertEquals(1, deleteC.size());
+    }
+
+    private static Put put(byte[] qualifier, String value) {
+        Put put = new Put(ROW);
+        put.addColumn(F, qualifier, Bytes.toBytes(value));
+        return put;
+    }
+
+    private static Delete deleteColumns(byte[] qualifier) {
+        Delete delete = new Delete(ROW);
+        delete.addColumns(F, qualifier);
+        return delete;
+    }
+
+    private static long timestamp(Mutation mutation) {
+        for (List<Cell> cells : mutation.getFamilyCellMap().values()) {
+            return cells.get(0).getTimestamp();
+        }
+        return mutation.getTimeStamp();
+    }
+
+    public void testAdjacentPutsLastWriteWins() {
+        List<Row> rows = coalesce(put(A, "a1"), put(B, "b1"), put(A, "a2"));
+        assertEquals(1, rows.size());
+        Put merged = (Put) rows.get(0);
+        assertEquals(2, merged.size());
+        assertEquals("a2", Bytes.toString(CellUtil.cloneValue(merged.get(F,
+                A).get(0))));
+    }
+
+    public void testPutThenDeleteDropsPut() {
+        List<Row> rows = coalesce(put(A, "a1"), deleteColumns(A));
+        assertEquals(1, rows.size());
+        assertTrue(rows.get(0) instanceof Delete);
+    }
+
+    public void testDeleteThenPutPinned() {
+        List<Row> rows = coalesce(deleteColumns(A), put(A, "a1"));
+        assertEquals(1, rows.size());
+        List<Mutation> mutations = ((RowMutations) rows.get(0))
+                .getMutations();
+        assertTrue(mutations.get(0) instanceof Delete);
+        long deleted = timestamp(mutations.get(0));
+        long written = timestamp(mutations.get(1));
+        assertTrue(deleted != HConstants.LATEST_TIMESTAMP);
+        // 写入的时间戳大于删除, 不会被覆盖
+        assertTrue(written > deleted);
+    }
+
+    public void testDisjointDeleteNotPinned() {
+        List<Row> rows = coalesce(deleteColumns(A), put(B, "b1"));
+        List<Mutation> mutations = ((RowMutations) rows.get(0))
+                .getMutations();
+        assertEquals(HConstants.LATEST_TIMESTAMP, timestamp(mutations.get(0)));
+        assertEquals(HConstants.LATEST_TIMESTAMP, timestamp(mutations.get(1)));
+    }
+
+    public void testLatestVersionDeleteAfterPutPinned() {
+        Delete delete = new Delete(ROW);
+        delete.addColumn(F, A);
+        List<Row> rows = coalesce(put(A, "a1"), delete);
+        List<Mutation> mutations = ((RowMutations) rows.get(0))
+                .getMutations();
+        // 删除的正是本次写入的版本
+        assertEquals(timestamp(mutations.get(0)), timestamp(mutations.get(1)));
+        assertTrue(timestamp(mutations.get(0)) != HConstants.LATEST_TIMESTAMP);
+    }
+
+    public void testPutThenDeleteRowFlushedWithMutateRow() {
+        InMemoryTables tables = new InMemoryTables();
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor();
+        byte[] table = Bytes.toBytes("t");
+        hBase.save(table).row("row").family("f").col("a", "a1").col("b", "b1")
+                .commit();
+        hBase.save(table).row("other").family("f").col("a", "a1").commit();
+        hBase.delete(table).row("row").family("f").col("a").commit();
+        // 两次Put持久化级别不同, 不能合并
+        hBase.save(table).row("durable").family("f").col("a", "a1").commit();
+        Put durable = new Put(Bytes.toBytes("durable"));
+        durable.addColumn(F, B, Bytes.toBytes("b1"));
+        durable.setDurability(Durability.SYNC_WAL);
+        hBase.savePut(table, durable);
+        hBase.flush(table);
+        assertNull(tables.value(table, ROW, F, A));
+        assertEquals("b1", Bytes.toString(tables.value(table, ROW, F, B)));
+        assertEquals("a1", Bytes.toString(tables.value(table,
+                Bytes.toBytes("other"), F, A)));
+        byte[] row = Bytes.toBytes("durable");
+        assertEquals("a1", Bytes.toString(tables.value(table, row, F, A)));
+        assertEquals("b1", Bytes.toString(tables.value(table, row, F, B)));
+        assertEquals(2, tables.getMutateRowCount());
+        // 只有普通Put走batch()
+        assertEquals(1, tables.getActionCount());
+    }
+}
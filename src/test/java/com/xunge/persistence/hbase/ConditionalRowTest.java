@@ -0,0 +1,97 @@
+package com.xunge.persistence.hbase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * ConditionalRow: 同一行先删后写的RowMutations时间戳
+ *
+ * @author stereo
+ */
+public class ConditionalRowTest extends TestCase {
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] A = Bytes.toBytes("a");
+    private static final byte[] B = Bytes.toBytes("b");
+
+    private static RowMutations execute(ConditionalRow.Condition condition)
+            throws Exception {
+        final AtomicReference<RowMutations> captured = new AtomicReference<RowMutations>();
+        Table table = (Table) Proxy.newProxyInstance(
+                ConditionalRowTest.class.getClassLoader(),
+                new Class<?>[]{Table.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args) {
+                        if (method.getName().equals("checkAndMutate")) {
+                            captured.set((RowMutations) args[5]);
+                            return true;
+                        }
+                        return null;
+                    }
+                });
+        assertTrue(condition.execute(table));
+        return captured.get();
+    }
+
+    private static ConditionalRow.Condition condition(Delete delete) {
+        ConditionalRow.Condition condition = new ConditionalRow.Condition(ROW, 0);
+        condition.family = F;
+        condition.qualifier = A;
+        condition.put = new Put(ROW);
+        condition.put.addColumn(F, A, Bytes.toBytes("v"));
+        condition.delete = delete;
+        return condition;
+    }
+
+    private static long timestamp(Mutation mutation) {
+        for (List<Cell> cells : mutation.getFamilyCellMap().values()) {
+            for (Cell cell : cells) {
+                return cell.getTimestamp();
+            }
+        }
+        return mutation.getTimeStamp();
+    }
+
+    public void testOverlappingDeletePinned() throws Exception {
+        Delete delete = new Delete(ROW);
+        delete.addColumns(F, A);
+        List<Mutation> mutations = execute(condition(delete)).getMutations();
+        assertEquals(2, mutations.size());
+        assertTrue(mutations.get(0) instanceof Delete);
+        long deleted = timestamp(mutations.get(0));
+        long written = timestamp(mutations.get(1));
+        assertTrue(written != HConstants.LATEST_TIMESTAMP);
+        assertEquals(written - 1, deleted);
+    }
+
+    public void testRowDeletePinned() throws Exception {
+        List<Mutation> mutations = execute(condition(new Delete(ROW)))
+                .getMutations();
+        assertEquals(timestamp(mutations.get(1)) - 1, mutations.get(0)
+                .getTimeStamp());
+    }
+
+    public void testDisjointColumnsNotPinned() throws Exception {
+        Delete delete = new Delete(ROW);
+        delete.addColumns(F, B);
+        List<Mutation> mutations = execute(condition(delete)).getMutations();
+        assertEquals(HConstants.LATEST_TIMESTAMP, timestamp(mutations.get(0)));
+        assertEquals(HConstants.LATEST_TIMESTAMP, timestamp(mutations.get(1)));
+    }
+}
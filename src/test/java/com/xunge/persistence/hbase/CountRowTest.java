@@ -0,0 +1,164 @@
+package com.xunge.persistence.hbase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.xunge.persistence.hbase.api.DeadLetterSink;
+import com.xunge.persistence.hbase.api.IncrementCallback;
+import com.xunge.persistence.hbase.api.Row;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * CountRow: 分片计数器求和, 批量递增逐行回调(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class CountRowTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+    private static final int SHARDS = 4;
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private HbaseAccessor<QueryOps<String>, String> writeBehind() {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setBoolean(HbaseAccessor.COUNTER_WRITE_BEHIND_KEY, true);
+        conf.setLong(HbaseAccessor.COUNTER_FLUSH_MS_KEY, 60000);
+        return tables.accessor(conf);
+    }
+
+    private long stored(byte[] row) {
+        byte[] value = tables.value(TABLE, row, F, Q);
+        return value == null ? 0 : Bytes.toLong(value);
+    }
+
+    /**
+     * 每个线程落在固定的分片上, 各递增一次
+     */
+    private void incrementFromThreads(
+            final HbaseAccessor<QueryOps<String>, String> hBase, int threads,
+            final long amount) throws InterruptedException {
+        List<Thread> list = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            list.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    hBase.count(TABLE).sharded("hits", SHARDS).family("f")
+                            .col("q", amount).flush();
+                }
+            }));
+        }
+        for (Thread thread : list) {
+            thread.start();
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+    }
+
+    public void testShardedSumIncludesPending() throws Exception {
+        HbaseAccessor<QueryOps<String>, String> hBase = writeBehind();
+        byte[] hits = Bytes.toBytes("hits");
+        // 已存储的分片
+        tables.put(TABLE, CountRow.ShardedCountFamilyCol.shardRow(1, hits), F,
+                Q, Bytes.toBytes(100L));
+        incrementFromThreads(hBase, 8, 3);
+        CountRow.ShardedCountFamilyCol<QueryOps<String>, String> counter = hBase
+                .count(TABLE).sharded("hits", SHARDS).family("f");
+        long pending = 0;
+        long stored = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            byte[] row = CountRow.ShardedCountFamilyCol.shardRow(i, hits);
+            pending += hBase.pendingCount(TABLE, row, F, Q);
+            stored += stored(row);
+        }
+        assertEquals(24, pending);
+        assertEquals(100, stored);
+        assertEquals(124, counter.sum("q"));
+
+        hBase.flush(TABLE);
+        stored = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            byte[] row = CountRow.ShardedCountFamilyCol.shardRow(i, hits);
+            assertEquals(0, hBase.pendingCount(TABLE, row, F, Q));
+            stored += stored(row);
+        }
+        assertEquals(124, stored);
+        assertEquals(124, counter.sum("q"));
+    }
+
+    public void testShardedSumWithoutWriteBehind() throws Exception {
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor();
+        incrementFromThreads(hBase, 8, 2);
+        assertEquals(16, hBase.count(TABLE).sharded("hits", SHARDS)
+                .family("f").sum("q"));
+        assertEquals(0, hBase.count(TABLE).sharded("hits", SHARDS)
+                .family("f").sum("other"));
+    }
+
+    public void testBatchCallbackPerRow() {
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor();
+        tables.put(TABLE, Bytes.toBytes("a"), F, Q, Bytes.toBytes(10L));
+        // 不是8字节的值不能递增, 该行失败
+        tables.put(TABLE, Bytes.toBytes("z"), F, Q, Bytes.toBytes("bad"));
+        final Map<String, Long> succeeded = new TreeMap<String, Long>();
+        final List<String> failed = new ArrayList<String>();
+        CountRow.CountBatch<QueryOps<String>, String> batch = hBase
+                .count(TABLE).batch();
+        batch.row("a").family("f").col("q", 1).col("q", 2);
+        batch.row("b").family("f").col("q", 5);
+        batch.row("z").family("f").col("q", 1);
+        // 同一行合并为一个Increment
+        batch.row("a").family("f").col("q", 4);
+        assertEquals(3, batch.size());
+        int failures = batch.submit(new IncrementCallback<String>() {
+            @Override
+            public void onSuccess(Row<String> row) {
+                succeeded.put(row.getId(), row.value("f", "q", Long.class));
+            }
+
+            @Override
+            public void onFailure(Increment increment, Throwable cause) {
+                assertNotNull(cause);
+                failed.add(Bytes.toString(increment.getRow()));
+            }
+        });
+        assertEquals(1, failures);
+        assertEquals(0, batch.size());
+        assertEquals(2, succeeded.size());
+        assertEquals(Long.valueOf(17), succeeded.get("a"));
+        assertEquals(Long.valueOf(5), succeeded.get("b"));
+        assertEquals(Collections.singletonList("z"), failed);
+        assertEquals(17, stored(Bytes.toBytes("a")));
+    }
+
+    public void testBatchFailureWithoutCallbackDeadLettered() {
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor();
+        tables.put(TABLE, Bytes.toBytes("z"), F, Q, Bytes.toBytes("bad"));
+        final List<org.apache.hadoop.hbase.client.Row> dead = new ArrayList<org.apache.hadoop.hbase.client.Row>();
+        hBase.setDeadLetterSink(new DeadLetterSink() {
+            @Override
+            public void accept(byte[] tableName,
+                               org.apache.hadoop.hbase.client.Row action, Throwable cause) {
+                dead.add(action);
+            }
+        });
+        assertEquals(1, hBase.count(TABLE).batch().row("z").family("f")
+                .col("q", 1).submit(null));
+        assertEquals(1, dead.size());
+        assertTrue(dead.get(0) instanceof Increment);
+        // 空批次不提交
+        assertEquals(0, hBase.count(TABLE).batch().submit(null));
+    }
+}
@@ -0,0 +1,167 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * CounterBuffer: 并发累加与刷入时总数不漏算不重复(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class CounterBufferTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+    private static final int ROWS = 4;
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private static byte[] row(int i) {
+        return Bytes.toBytes("row" + i);
+    }
+
+    private static Increment increment(byte[] row, long amount) {
+        Increment increment = new Increment(row);
+        increment.addColumn(F, Q, amount);
+        return increment;
+    }
+
+    private long stored(int i) {
+        byte[] value = tables.value(TABLE, row(i), F, Q);
+        return value == null ? 0 : Bytes.toLong(value);
+    }
+
+    public void testConcurrentAddAndFlush() throws Exception {
+        final CounterBuffer counters = new CounterBuffer(tables.accessor(),
+                Integer.MAX_VALUE, 60000);
+        tables.put(TABLE, row(0), F, Q, Bytes.toBytes(100L));
+        // 先确定存储值, 之后读取总数不查询Hbase
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(i == 0 ? 100 : 0, counters.current(TABLE, row(i), F, Q));
+        }
+        final int threads = 8;
+        final int adds = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicBoolean adding = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < adds; i++) {
+                            counters.add(TABLE, increment(row((i + seed) % ROWS), 1));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (adding.get()) {
+                    try {
+                        counters.flush();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }
+        });
+        flusher.start();
+        start.countDown();
+        // 只有递增, 读到的总数不会变小, 也不会超过已累加的数量
+        long[] last = new long[ROWS];
+        last[0] = 100;
+        while (done.getCount() > 0) {
+            for (int i = 0; i < ROWS; i++) {
+                long current = counters.current(TABLE, row(i), F, Q);
+                assertTrue(current + " < " + last[i], current >= last[i]);
+                last[i] = current;
+            }
+        }
+        adding.set(false);
+        flusher.join();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        for (int i = 0; i < ROWS; i++) {
+            assertTrue(last[i] <= (i == 0 ? 100 : 0) + threads * adds / ROWS);
+        }
+        counters.flush();
+        long total = 0;
+        for (int i = 0; i < ROWS; i++) {
+            long expected = (i == 0 ? 100 : 0) + threads * adds / ROWS;
+            assertEquals(expected, stored(i));
+            assertEquals(expected, counters.current(TABLE, row(i), F, Q));
+            assertEquals(0, counters.pending(TABLE, row(i), F, Q));
+            total += stored(i);
+        }
+        assertEquals(100 + threads * adds, total);
+    }
+
+    public void testAddAfterRetire() {
+        CounterBuffer counters = new CounterBuffer(tables.accessor(),
+                Integer.MAX_VALUE, 60000);
+        counters.add(TABLE, increment(row(0), 5));
+        counters.flush();
+        assertEquals(5, stored(0));
+        // 连续两次没有增量后移除
+        counters.flush();
+        counters.flush();
+        assertEquals(0, counters.size());
+        counters.add(TABLE, increment(row(0), 3));
+        assertEquals(3, counters.pending(TABLE, row(0), F, Q));
+        counters.flush();
+        assertEquals(8, stored(0));
+        assertEquals(8, counters.current(TABLE, row(0), F, Q));
+    }
+
+    private HbaseAccessor<QueryOps<String>, String> writeBehind() {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setBoolean(HbaseAccessor.COUNTER_WRITE_BEHIND_KEY, true);
+        conf.setLong(HbaseAccessor.COUNTER_FLUSH_MS_KEY, 60000);
+        return tables.accessor(conf);
+    }
+
+    public void testIncrementAsyncVisibleToCurrent() throws Exception {
+        HbaseAccessor<QueryOps<String>, String> hBase = writeBehind();
+        CountRow.CountFamilyCol<QueryOps<String>, String> counter = hBase
+                .count(TABLE).row("row0").family("f");
+        counter.col("q", 2).flush();
+        assertEquals(2, counter.current("q"));
+        // 直接写入Hbase, 不经过缓冲
+        hBase.count(TABLE).row("row0").family("f").col("q", 5)
+                .incrementAsync().get();
+        assertEquals(5, stored(0));
+        assertEquals(7, counter.current("q"));
+    }
+
+    public void testBatchSubmitVisibleToCurrent() {
+        HbaseAccessor<QueryOps<String>, String> hBase = writeBehind();
+        CountRow.CountFamilyCol<QueryOps<String>, String> counter = hBase
+                .count(TABLE).row("row0").family("f");
+        counter.col("q", 2).flush();
+        assertEquals(2, counter.current("q"));
+        assertEquals(0, hBase.count(TABLE).batch().row("row0").family("f")
+                .col("q", 3).col("q", 4).submit(null));
+        assertEquals(7, stored(0));
+        assertEquals(9, counter.current("q"));
+    }
+}
@@ -0,0 +1,118 @@
+package com.xunge.persistence.hbase;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * DeletedRow: 每行入队一次, 达到阈值的刷入不会提前发出未结束的行, flush会提交它们(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class DeletedRowTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] X = Bytes.toBytes("x");
+    private static final byte[] Y = Bytes.toBytes("y");
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private HbaseAccessor<QueryOps<String>, String> accessor() {
+        for (String row : new String[]{"a", "b", "c"}) {
+            tables.put(TABLE, Bytes.toBytes(row), F, X, X);
+            tables.put(TABLE, Bytes.toBytes(row), F, Y, Y);
+        }
+        return tables.accessor();
+    }
+
+    private byte[] value(String row, byte[] qualifier) {
+        return tables.value(TABLE, Bytes.toBytes(row), F, qualifier);
+    }
+
+    public void testOneDeletePerRow() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        hBase.delete(TABLE).row("a").family("f").col("x").col("y").row("b")
+                .deleteFamily("f").flush();
+        assertNull(value("a", X));
+        assertNull(value("a", Y));
+        assertNull(value("b", X));
+        assertNotNull(value("c", X));
+        assertEquals(2, tables.getActionCount());
+    }
+
+    public void testFlushCommitsOpenRow() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        DeletedRow.DeletedRowFamily<QueryOps<String>, String> row = hBase
+                .delete(TABLE).row("a");
+        row.family("f").col("x");
+        // flush提交该表未结束的行
+        hBase.flush(TABLE);
+        assertNull(value("a", X));
+        assertNotNull(value("a", Y));
+        try {
+            row.family("f").col("y");
+            fail("committed row modified");
+        } catch (RuntimeException e) {
+            assertEquals("row already committed", e.getMessage());
+        }
+        assertEquals(1, tables.getActionCount());
+    }
+
+    public void testThresholdFlushSkipsOpenRow() {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setInt(HbaseAccessor.FLUSH_COUNT_KEY, 1);
+        conf.setInt(HbaseAccessor.FLUSH_THREADS_KEY, 0);
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor(conf);
+        for (String row : new String[]{"a", "b"}) {
+            tables.put(TABLE, Bytes.toBytes(row), F, X, X);
+            tables.put(TABLE, Bytes.toBytes(row), F, Y, Y);
+        }
+        DeletedRow.DeletedRowFamily<QueryOps<String>, String> row = hBase
+                .delete(TABLE).row("a");
+        row.family("f").col("x");
+        // 达到阈值的刷入不会提前发出未结束的行
+        hBase.delete(TABLE).row("b").commit();
+        assertNull(value("b", X));
+        assertNotNull(value("a", X));
+        row.family("f").col("y").flush();
+        assertNull(value("a", X));
+        assertNull(value("a", Y));
+        assertEquals(2, tables.getActionCount());
+    }
+
+    public void testCommittedRowRejectsChanges() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        DeletedRow.DeletedRowFamily<QueryOps<String>, String> row = hBase
+                .delete(TABLE).row("a").deleteFamily("f");
+        row.commit();
+        try {
+            row.family("f").col("x");
+            fail("committed row modified");
+        } catch (RuntimeException e) {
+            assertEquals("row already committed", e.getMessage());
+        }
+        // 重复提交不会再次入队
+        row.commit();
+        row.flush();
+        assertEquals(1, tables.getActionCount());
+    }
+
+    public void testRowThenFlushRemovesRow() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        DeletedRow<QueryOps<String>, String> deleted = hBase.delete(TABLE);
+        deleted.row("a");
+        deleted.flush();
+        assertNull(value("a", X));
+        assertNull(value("a", Y));
+        hBase.delete(TABLE).row("b").flush();
+        assertNull(value("b", X));
+        // row(id)即删除整行, 没有commit的行由flush提交
+        hBase.delete(TABLE).row("c");
+        hBase.flush(TABLE);
+        assertNull(value("c", X));
+        assertNull(value("c", Y));
+    }
+}
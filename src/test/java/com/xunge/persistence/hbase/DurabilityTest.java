@@ -0,0 +1,82 @@
+package com.xunge.persistence.hbase;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 持久化级别: 按操作 > 按表 > 配置默认值, 不同级别分批提交(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class DurabilityTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] OTHER = Bytes.toBytes("u");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private HbaseAccessor<QueryOps<String>, String> accessor() {
+        Configuration conf = HBaseConfiguration.create();
+        conf.set(HbaseAccessor.DURABILITY_KEY, Durability.ASYNC_WAL.name());
+        return tables.accessor(conf);
+    }
+
+    private void save(HbaseAccessor<QueryOps<String>, String> hBase,
+                      byte[] table, String row, Durability durability) {
+        SaveRow.SaveFamilyCol<QueryOps<String>, String> saved = hBase
+                .save(table).row(row);
+        if (durability != null) {
+            saved.durability(durability);
+        }
+        saved.family("f").col("q", row).commit();
+    }
+
+    public void testGroupedByDurability() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        hBase.setDurability(TABLE, Durability.SYNC_WAL);
+        save(hBase, TABLE, "a", null);
+        save(hBase, TABLE, "b", Durability.SKIP_WAL);
+        save(hBase, TABLE, "c", null);
+        hBase.delete(TABLE).durability(Durability.SKIP_WAL).row("x").commit();
+        hBase.flush(TABLE);
+        List<Set<Durability>> batches = tables.getBatchDurabilities();
+        // 每批只有一种级别; 未指定的用表的级别
+        assertEquals(2, batches.size());
+        assertTrue(batches.contains(EnumSet.of(Durability.SYNC_WAL)));
+        assertTrue(batches.contains(EnumSet.of(Durability.SKIP_WAL)));
+        assertEquals(4, tables.getActionCount());
+        for (String row : new String[]{"a", "b", "c"}) {
+            assertEquals(row, Bytes.toString(tables.value(TABLE,
+                    Bytes.toBytes(row), F, Q)));
+        }
+    }
+
+    public void testTableDefaultFallback() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        assertEquals(Durability.ASYNC_WAL, hBase.getDurability(OTHER));
+        save(hBase, OTHER, "a", null);
+        hBase.flush(OTHER);
+        assertEquals(EnumSet.of(Durability.ASYNC_WAL), tables
+                .getBatchDurabilities().get(0));
+
+        // 表的级别只对之后刷入的数据生效, 按操作指定的优先
+        hBase.setDurability(OTHER, Durability.FSYNC_WAL);
+        save(hBase, OTHER, "b", null);
+        save(hBase, OTHER, "c", Durability.ASYNC_WAL);
+        hBase.flush(OTHER);
+        List<Set<Durability>> batches = tables.getBatchDurabilities();
+        assertEquals(3, batches.size());
+        assertTrue(batches.subList(1, 3).contains(EnumSet.of(Durability.FSYNC_WAL)));
+        assertTrue(batches.subList(1, 3).contains(EnumSet.of(Durability.ASYNC_WAL)));
+    }
+}
@@ -0,0 +1,85 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * FetchBatcher: 批次合并与微秒级等待窗口(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class FetchBatcherTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private HbaseAccessor<QueryOps<String>, String> accessor() {
+        for (int i = 0; i < 8; i++) {
+            byte[] row = Bytes.toBytes("row" + i);
+            tables.put(TABLE, row, F, F, row);
+        }
+        tables.put(TABLE, Bytes.toBytes("row"), F, F, Bytes.toBytes("row"));
+        return tables.accessor();
+    }
+
+    public void testBatching() throws Exception {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        final int threads = 8;
+        // 窗口很长, 只有批次满才会提交
+        final FetchBatcher batcher = new FetchBatcher(hBase,
+                TimeUnit.SECONDS.toMicros(30), threads);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final byte[] row = Bytes.toBytes("row" + t);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Result result = batcher.get(TABLE, new Get(row));
+                        assertTrue(Bytes.equals(row, result.value()));
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(1, batcher.getBatchCount());
+        assertEquals(threads, batcher.getRequestCount());
+        assertEquals(threads, tables.getActionCount());
+    }
+
+    public void testMicrosecondWindow() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor();
+        FetchBatcher batcher = new FetchBatcher(hBase, 50, 64);
+        byte[] row = Bytes.toBytes("row");
+        int ops = 200;
+        for (int i = 0; i < 20; i++) {
+            batcher.get(TABLE, new Get(row));
+        }
+        long started = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            assertTrue(Bytes.equals(row, batcher.get(TABLE, new Get(row))
+                    .value()));
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+                - started) / ops;
+        // 按毫秒取整时每次至少等待1ms
+        assertTrue("average wait " + micros + "us", micros < 900);
+    }
+}
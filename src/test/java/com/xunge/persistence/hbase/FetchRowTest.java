@@ -0,0 +1,86 @@
+package com.xunge.persistence.hbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.xunge.persistence.hbase.api.ForEach;
+import com.xunge.persistence.hbase.api.Row;
+
+/**
+ * FetchRow.rows: 结果与ids顺序一致, 不存在的行为null或跳过(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class FetchRowTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private HbaseAccessor<QueryOps<String>, String> accessor(Configuration conf) {
+        for (String row : new String[]{"a", "c", "e"}) {
+            tables.put(TABLE, Bytes.toBytes(row), F, Q, Bytes.toBytes(row));
+        }
+        return tables.accessor(conf);
+    }
+
+    private static List<String> ids(List<Row<String>> rows) {
+        List<String> ids = new ArrayList<String>(rows.size());
+        for (Row<String> row : rows) {
+            ids.add(row == null ? null : row.getId());
+        }
+        return ids;
+    }
+
+    public void testRowsKeepOrder() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(HBaseConfiguration
+                .create());
+        int batches = tables.getBatchCount();
+        List<Row<String>> rows = hBase.fetch(TABLE).rows(
+                Arrays.asList("e", "b", "a", "d", "c"));
+        assertEquals(Arrays.asList("e", null, "a", null, "c"), ids(rows));
+        assertEquals("e", rows.get(0).value("f", "q", String.class));
+        // 一次multi-get
+        assertEquals(1, tables.getBatchCount() - batches);
+    }
+
+    public void testRowsKeepOrderWithCaches() {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setLong(HbaseAccessor.ROW_CACHE_BYTES_KEY, 1024 * 1024);
+        conf.setInt(HbaseAccessor.NEGATIVE_CACHE_SIZE_KEY, 1024);
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(conf);
+        // 缓存a和不存在的b, 其余仍需查询
+        hBase.fetch(TABLE).rows(Arrays.asList("a", "b"));
+        int actions = tables.getActionCount();
+        List<Row<String>> rows = hBase.fetch(TABLE).rows(
+                Arrays.asList("d", "a", "c", "b", "e"));
+        assertEquals(Arrays.asList(null, "a", "c", null, "e"), ids(rows));
+        assertEquals(3, tables.getActionCount() - actions);
+    }
+
+    public void testStreamingSkipsMissing() {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setInt(HbaseAccessor.FETCH_BATCH_KEY, 2);
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(conf);
+        final List<String> ids = new ArrayList<String>();
+        int batches = tables.getBatchCount();
+        hBase.fetch(TABLE).rows(Arrays.asList("e", "d", "c", "b", "a"),
+                new ForEach<Row<String>>() {
+                    @Override
+                    public void process(Row<String> row) {
+                        ids.add(row.getId());
+                    }
+                });
+        assertEquals(Arrays.asList("e", "c", "a"), ids);
+        assertEquals(3, tables.getBatchCount() - batches);
+    }
+}
@@ -0,0 +1,129 @@
+package com.xunge.persistence.hbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.xunge.persistence.hbase.api.DeadLetterSink;
+
+/**
+ * 刷入失败: 只重试失败的数据, 不可重试或用尽的交给DeadLetterSink并另存到dead文件(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class FlushRetryTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+    private static final byte[] B = Bytes.toBytes("b");
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private final List<org.apache.hadoop.hbase.client.Row> dead = new ArrayList<org.apache.hadoop.hbase.client.Row>();
+
+    private final List<Throwable> causes = new ArrayList<Throwable>();
+
+    private File dir;
+
+    @Override
+    protected void tearDown() {
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private HbaseAccessor<QueryOps<String>, String> accessor(Configuration conf) {
+        conf.setInt(HbaseAccessor.FLUSH_RETRIES_KEY, 2);
+        conf.setLong(HbaseAccessor.FLUSH_RETRY_BACKOFF_KEY, 1);
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor(conf);
+        hBase.setDeadLetterSink(new DeadLetterSink() {
+            @Override
+            public void accept(byte[] tableName,
+                               org.apache.hadoop.hbase.client.Row action, Throwable cause) {
+                dead.add(action);
+                causes.add(cause);
+            }
+        });
+        return hBase;
+    }
+
+    private static void save(HbaseAccessor<QueryOps<String>, String> hBase) {
+        for (String row : new String[]{"a", "b", "c"}) {
+            hBase.save(TABLE).row(row).family("f").col("q", row).commit();
+        }
+    }
+
+    private String value(String row) {
+        byte[] value = tables.value(TABLE, Bytes.toBytes(row), F, Q);
+        return value == null ? null : Bytes.toString(value);
+    }
+
+    public void testOnlyFailedActionsRetried() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(HBaseConfiguration
+                .create());
+        tables.fail(B, new IOException("region moved"), 1);
+        save(hBase);
+        hBase.flush(TABLE);
+        assertEquals("a", value("a"));
+        assertEquals("b", value("b"));
+        assertEquals("c", value("c"));
+        // 第二次只提交失败的一行
+        assertEquals(2, tables.getBatchCount());
+        assertEquals(4, tables.getActionCount());
+        assertTrue(dead.isEmpty());
+    }
+
+    public void testDoNotRetryNotRetried() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(HBaseConfiguration
+                .create());
+        tables.fail(B, new DoNotRetryIOException("no such family"), 1);
+        save(hBase);
+        hBase.flush(TABLE);
+        assertEquals(1, tables.getBatchCount());
+        assertNull(value("b"));
+        assertEquals("c", value("c"));
+        assertEquals(1, dead.size());
+        assertTrue(Bytes.equals(B, dead.get(0).getRow()));
+        assertTrue(causes.get(0) instanceof DoNotRetryIOException);
+    }
+
+    public void testExhaustedToDeadLetters() throws IOException {
+        dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete());
+        Configuration conf = HBaseConfiguration.create();
+        conf.set(HbaseAccessor.JOURNAL_DIR_KEY, dir.getPath());
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(conf);
+        tables.fail(B, new IOException("region moved"), Integer.MAX_VALUE);
+        save(hBase);
+        hBase.flush(TABLE);
+        // 首次提交加两次重试
+        assertEquals(3, tables.getBatchCount());
+        assertEquals(5, tables.getActionCount());
+        assertNull(value("b"));
+        assertEquals(1, dead.size());
+        assertTrue(Bytes.equals(B, dead.get(0).getRow()));
+
+        List<MutationJournal.Record> letters = new MutationJournal(dir,
+                64 * 1024, 10).deadLetters();
+        assertEquals(1, letters.size());
+        assertTrue(letters.get(0).mutation instanceof Put);
+        assertTrue(Bytes.equals(B, letters.get(0).mutation.getRow()));
+    }
+}
@@ -0,0 +1,59 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Flusher: 持续达到阈值的表不会让其它表超过滞留时间(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class FlusherTest extends TestCase {
+
+    private static final byte[] HOT = Bytes.toBytes("hot");
+    private static final byte[] QUIET = Bytes.toBytes("quiet");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+    private static final long LINGER = 200;
+
+    public void testLingerHonoredWhileAnotherTableIsBusy() throws Exception {
+        InMemoryTables tables = new InMemoryTables();
+        Configuration conf = HBaseConfiguration.create();
+        conf.setInt(HbaseAccessor.FLUSH_THREADS_KEY, 1);
+        conf.setInt(HbaseAccessor.FLUSH_COUNT_KEY, 2);
+        conf.setLong(HbaseAccessor.FLUSH_LINGER_KEY, LINGER);
+        final HbaseAccessor<QueryOps<String>, String> hBase = tables
+                .accessor(conf);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // 每两次写入达到条数阈值, 刷入线程一直有表可刷
+                for (int i = 0; writing.get(); i++) {
+                    hBase.save(HOT).row("row" + (i % 64)).family("f")
+                            .col("q", i).commit();
+                }
+            }
+        });
+        writer.start();
+        try {
+            Thread.sleep(LINGER);
+            // 只有一条, 不会达到阈值, 只能靠滞留时间触发
+            hBase.save(QUIET).row("row").family("f").col("q", "v").commit();
+            long deadline = System.currentTimeMillis() + LINGER * 10;
+            while (tables.value(QUIET, Bytes.toBytes("row"), F, Q) == null
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNotNull(tables.value(QUIET, Bytes.toBytes("row"), F, Q));
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package com.xunge.persistence.hbase;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.security.AccessDeniedException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * 单元测试用的内存表: 用动态代理模拟Connection/Table/RegionLocator, 替换HbaseAccessor的表句柄.
+ * <p/>
+ * 每列只保存最新值; Table.batch/put/delete/increment支持Get/Put/Delete(整行或整列)/Increment,
+ * RowMutations只能用mutateRow提交(与真实客户端一样batch()拒绝), 不定位Region;
+ * fail()指定的行在batch()中单独失败, 其余数据照常写入;
+ * getScanner只按起止行扫描行键, Admin只支持truncate用到的操作
+ *
+ * @author stereo
+ */
+final class InMemoryTables {
+
+    /**
+     * 表 ==> 行 ==> 列族 ==> 列 ==> 值
+     */
+    private final Map<byte[], NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], byte[]>>>> tables = new TreeMap<byte[], NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], byte[]>>>>(
+            Bytes.BYTES_COMPARATOR);
+
+    private final AtomicInteger batches = new AtomicInteger();
+
+    private final AtomicInteger actions = new AtomicInteger();
+
+    private final AtomicInteger mutatedRows = new AtomicInteger();
+
+    private final AtomicInteger scans = new AtomicInteger();
+
+    private byte[][] splitKeys = new byte[0][];
+
+    private volatile boolean adminDenied;
+
+    private final Set<TableName> disabled = Collections
+            .newSetFromMap(new ConcurrentHashMap<TableName, Boolean>());
+
+    /**
+     * 行 ==> 剩余失败次数
+     */
+    private final Map<byte[], Integer> failures = new TreeMap<byte[], Integer>(
+            Bytes.BYTES_COMPARATOR);
+
+    private IOException failure;
+
+    /**
+     * 每次batch调用中写入/删除数据的持久化级别
+     */
+    private final List<Set<Durability>> batchDurabilities = new ArrayList<Set<Durability>>();
+
+    /**
+     * 创建不连接Hbase的HbaseAccessor, 读写都落到内存表
+     *
+     * @param conf
+     * @return
+     */
+    HbaseAccessor<QueryOps<String>, String> accessor(Configuration conf) {
+        if (conf.get(HbaseAccessor.FLUSH_THREADS_KEY) == null) {
+            conf.setInt(HbaseAccessor.FLUSH_THREADS_KEY, 0);
+        }
+        // 连接时读取集群ID失败不重试
+        conf.setInt("zookeeper.recovery.retry", 0);
+        HbaseAccessor<QueryOps<String>, String> hBase = new HbaseAccessor<QueryOps<String>, String>(
+                String.class, conf, 500);
+        try {
+            Connection connection = connection();
+            inject(hBase, "connection", connection);
+            inject(hBase, "tables", new TableHandles(connection, 16));
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return hBase;
+    }
+
+    private static void inject(HbaseAccessor<?, ?> hBase, String name,
+                               Object value) throws NoSuchFieldException, IllegalAccessException {
+        Field field = HbaseAccessor.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(hBase, value);
+    }
+
+    HbaseAccessor<QueryOps<String>, String> accessor() {
+        return accessor(HBaseConfiguration.create());
+    }
+
+    /**
+     * @return 批量调用(batch或put/delete列表)次数
+     */
+    int getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return 批量调用提交的数据条数
+     */
+    int getActionCount() {
+        return actions.get();
+    }
+
+    /**
+     * @return mutateRow调用次数
+     */
+    int getMutateRowCount() {
+        return mutatedRows.get();
+    }
+
+    /**
+     * @return 每次batch调用中写入/删除数据的持久化级别(不含只有Get/Increment的调用)
+     */
+    synchronized List<Set<Durability>> getBatchDurabilities() {
+        return new ArrayList<Set<Durability>>(batchDurabilities);
+    }
+
+    private synchronized void recordDurabilities(List<?> rows) {
+        Set<Durability> durabilities = EnumSet.noneOf(Durability.class);
+        for (Object row : rows) {
+            if (row instanceof Put || row instanceof Delete) {
+                durabilities.add(((Mutation) row).getDurability());
+            }
+        }
+        if (!durabilities.isEmpty()) {
+            batchDurabilities.add(durabilities);
+        }
+    }
+
+    /**
+     * @return 最新值, 不存在为null
+     */
+    synchronized byte[] value(byte[] tableName, byte[] row, byte[] family,
+                              byte[] qualifier) {
+        NavigableMap<byte[], byte[]> columns = columns(tableName, row, family,
+                false);
+        return columns == null ? null : columns.get(qualifier);
+    }
+
+    /**
+     * batch()中指定行的数据结果为error, 整批抛RetriesExhaustedWithDetailsException
+     *
+     * @param row
+     * @param error
+     * @param times 失败次数
+     */
+    synchronized void fail(byte[] row, IOException error, int times) {
+        failures.put(row, times);
+        failure = error;
+    }
+
+    /**
+     * 直接写入内存表
+     */
+    synchronized void put(byte[] tableName, byte[] row, byte[] family,
+                          byte[] qualifier, byte[] value) {
+        columns(tableName, row, family, true).put(qualifier, value);
+    }
+
+    private Connection connection() {
+        return (Connection) Proxy.newProxyInstance(
+                InMemoryTables.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getTable")) {
+                            return table(args[0].toString());
+                        }
+                        if (name.equals("getRegionLocator")) {
+                            return locator();
+                        }
+                        if (name.equals("getAdmin")) {
+                            return admin();
+                        }
+                        if (name.equals("isClosed")) {
+                            return false;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private RegionLocator locator() {
+        return (RegionLocator) Proxy.newProxyInstance(
+                InMemoryTables.class.getClassLoader(),
+                new Class<?>[]{RegionLocator.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args) {
+                        if (method.getName().equals("getStartEndKeys")) {
+                            return startEndKeys();
+                        }
+                        // 定位不到的行由Table.batch处理
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * 按splitKeys切分的Region边界(只用于扫描, 不影响定位)
+     *
+     * @param splitKeys
+     */
+    synchronized void setSplitKeys(byte[]... splitKeys) {
+        this.splitKeys = splitKeys;
+    }
+
+    private synchronized Pair<byte[][], byte[][]> startEndKeys() {
+        byte[][] startKeys = new byte[splitKeys.length + 1][];
+        byte[][] endKeys = new byte[splitKeys.length + 1][];
+        startKeys[0] = HConstants.EMPTY_START_ROW;
+        for (int i = 0; i < splitKeys.length; i++) {
+            endKeys[i] = splitKeys[i];
+            startKeys[i + 1] = splitKeys[i];
+        }
+        endKeys[splitKeys.length] = HConstants.EMPTY_END_ROW;
+        return new Pair<byte[][], byte[][]>(startKeys, endKeys);
+    }
+
+    /**
+     * Admin.disableTable是否因没有权限失败
+     *
+     * @param adminDenied
+     */
+    void setAdminDenied(boolean adminDenied) {
+        this.adminDenied = adminDenied;
+    }
+
+    /**
+     * @return 表是否处于disable状态
+     */
+    boolean isDisabled(byte[] tableName) {
+        return disabled.contains(TableName.valueOf(tableName));
+    }
+
+    /**
+     * 只支持truncate用到的disable/enable/truncate
+     */
+    private Admin admin() {
+        return (Admin) Proxy.newProxyInstance(
+                InMemoryTables.class.getClassLoader(),
+                new Class<?>[]{Admin.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args) throws IOException {
+                        String name = method.getName();
+                        if (name.equals("isTableDisabled")) {
+                            return disabled.contains(args[0]);
+                        }
+                        if (name.equals("disableTable")) {
+                            if (adminDenied) {
+                                throw new AccessDeniedException("denied");
+                            }
+                            disabled.add((TableName) args[0]);
+                            return null;
+                        }
+                        if (name.equals("enableTable")) {
+                            disabled.remove(args[0]);
+                            return null;
+                        }
+                        if (name.equals("truncateTable")) {
+                            synchronized (InMemoryTables.this) {
+                                tables.remove(((TableName) args[0]).getName());
+                            }
+                            disabled.remove(args[0]);
+                            return null;
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * 扫描[startRow, stopRow)内的行, 每行只返回第一个单元格
+     */
+    private synchronized ResultScanner scanner(byte[] tableName, Scan scan) {
+        final List<Result> results = new ArrayList<Result>();
+        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], byte[]>>> rows = tables
+                .get(tableName);
+        if (rows != null) {
+            NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], byte[]>>> range = rows;
+            if (scan.getStartRow().length > 0) {
+                range = range.tailMap(scan.getStartRow(), true);
+            }
+            if (scan.getStopRow().length > 0) {
+                range = range.headMap(scan.getStopRow(), false);
+            }
+            for (Map.Entry<byte[], NavigableMap<byte[], NavigableMap<byte[], byte[]>>> row : range
+                    .entrySet()) {
+                for (Map.Entry<byte[], NavigableMap<byte[], byte[]>> family : row
+                        .getValue().entrySet()) {
+                    if (family.getValue().isEmpty()) {
+                        continue;
+                    }
+                    results.add(result(Collections.<Cell>singletonList(new KeyValue(
+                            row.getKey(), family.getKey(), family.getValue()
+                            .firstKey(), 1L, new byte[0]))));
+                    break;
+                }
+            }
+        }
+        scans.incrementAndGet();
+        return (ResultScanner) Proxy.newProxyInstance(
+                InMemoryTables.class.getClassLoader(),
+                new Class<?>[]{ResultScanner.class}, new InvocationHandler() {
+                    private final Iterator<Result> it = results.iterator();
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("iterator")) {
+                            return it;
+                        }
+                        if (name.equals("next") && args == null) {
+                            return it.hasNext() ? it.next() : null;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * @return getScanner调用次数
+     */
+    int getScanCount() {
+        return scans.get();
+    }
+
+    private Table table(final String tableName) {
+        final byte[] table = Bytes.toBytes(tableName);
+        return (Table) Proxy.newProxyInstance(
+                InMemoryTables.class.getClassLoader(),
+                new Class<?>[]{Table.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args) throws IOException {
+                        String name = method.getName();
+                        if (name.equals("get") && args[0] instanceof Get) {
+                            return apply(table, (Get) args[0]);
+                        }
+                        if (name.equals("get") && args[0] instanceof List) {
+                            List<?> gets = (List<?>) args[0];
+                            Result[] results = new Result[gets.size()];
+                            for (int i = 0; i < results.length; i++) {
+                                results[i] = apply(table, (Get) gets.get(i));
+                            }
+                            return results;
+                        }
+                        if (name.equals("getScanner") && args[0] instanceof Scan) {
+                            return scanner(table, (Scan) args[0]);
+                        }
+                        if (name.equals("batch") && args.length == 2) {
+                            List<?> rows = (List<?>) args[0];
+                            Object[] results = (Object[]) args[1];
+                            for (Object row : rows) {
+                                if (row instanceof RowMutations) {
+                                    // 与HBase 1.1客户端一致, multi请求不接受RowMutations
+                                    throw new UnsupportedOperationException(
+                                            "No RowMutations in multi calls; use mutateRow");
+                                }
+                            }
+                            batches.incrementAndGet();
+                            actions.addAndGet(rows.size());
+                            recordDurabilities(rows);
+                            List<Throwable> errors = new ArrayList<Throwable>();
+                            List<Row> failed = new ArrayList<Row>();
+                            List<String> servers = new ArrayList<String>();
+                            for (int i = 0; i < rows.size(); i++) {
+                                Row row = (Row) rows.get(i);
+                                IOException error = failure(row.getRow());
+                                if (error == null) {
+                                    results[i] = apply(table, row);
+                                    continue;
+                                }
+                                results[i] = error;
+                                errors.add(error);
+                                failed.add(row);
+                                servers.add("localhost:16020");
+                            }
+                            if (!errors.isEmpty()) {
+                                throw new RetriesExhaustedWithDetailsException(
+                                        errors, failed, servers);
+                            }
+                            return null;
+                        }
+                        if (name.equals("mutateRow")) {
+                            mutateRow(table, (RowMutations) args[0]);
+                            return null;
+                        }
+                        if ((name.equals("put") || name.equals("delete"))
+                                && args[0] instanceof List) {
+                            List<?> rows = (List<?>) args[0];
+                            batches.incrementAndGet();
+                            actions.addAndGet(rows.size());
+                            for (Object row : rows) {
+                                apply(table, (Row) row);
+                            }
+                            return null;
+                        }
+                        if (name.equals("put") || name.equals("delete")
+                                || name.equals("increment")) {
+                            return apply(table, (Row) args[0]);
+                        }
+                        if (name.equals("getTableName")) {
+                            return table;
+                        }
+                        if (name.equals("getName")) {
+                            return TableName.valueOf(table);
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * @return 本次应失败时的异常
+     */
+    private synchronized IOException failure(byte[] row) {
+        Integer times = failures.get(row);
+        if (times == null || times <= 0) {
+            return null;
+        }
+        failures.put(row, times - 1);
+        return failure;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return false;
+        }
+        if (type == Long.TYPE) {
+            return 0L;
+        }
+        if (type == Integer.TYPE) {
+            return 0;
+        }
+        return null;
+    }
+
+    private synchronized Result apply(byte[] tableName, Row action)
+            throws IOException {
+        if (action instanceof Get) {
+            return get(tableName, (Get) action);
+        }
+        if (action instanceof Increment) {
+            return increment(tableName, (Increment) action);
+        }
+        if (action instanceof Put) {
+            for (List<Cell> cells : ((Put) action).getFamilyCellMap().values()) {
+                for (Cell cell : cells) {
+                    columns(tableName, action.getRow(),
+                            CellUtil.cloneFamily(cell), true).put(
+                            CellUtil.cloneQualifier(cell),
+                            CellUtil.cloneValue(cell));
+                }
+            }
+            return Result.EMPTY_RESULT;
+        }
+        if (action instanceof Delete) {
+            delete(tableName, (Delete) action);
+            return Result.EMPTY_RESULT;
+        }
+        throw new IOException("unsupported " + action.getClass());
+    }
+
+    /**
+     * 同一行的数据按顺序原子应用
+     */
+    private synchronized void mutateRow(byte[] tableName,
+                                        RowMutations rowMutations) throws IOException {
+        mutatedRows.incrementAndGet();
+        for (Mutation mutation : rowMutations.getMutations()) {
+            apply(tableName, mutation);
+        }
+    }
+
+    private Result get(byte[] tableName, Get get) {
+        NavigableMap<byte[], NavigableMap<byte[], byte[]>> families = row(
+                tableName, get.getRow(), false);
+        List<Cell> cells = new ArrayList<Cell>();
+        if (families != null) {
+            for (Map.Entry<byte[], NavigableMap<byte[], byte[]>> family : families
+                    .entrySet()) {
+                NavigableSet<byte[]> qualifiers = null;
+                if (get.hasFamilies()) {
+                    if (!get.getFamilyMap().containsKey(family.getKey())) {
+                        continue;
+                    }
+                    qualifiers = get.getFamilyMap().get(family.getKey());
+                }
+                for (Map.Entry<byte[], byte[]> column : family.getValue()
+                        .entrySet()) {
+                    if (qualifiers == null
+                            || qualifiers.contains(column.getKey())) {
+                        cells.add(new KeyValue(get.getRow(), family.getKey(),
+                                column.getKey(), 1L, column.getValue()));
+                    }
+                }
+            }
+        }
+        return result(cells);
+    }
+
+    private Result increment(byte[] tableName, Increment increment) {
+        List<Cell> cells = new ArrayList<Cell>();
+        for (Map.Entry<byte[], NavigableMap<byte[], Long>> family : increment
+                .getFamilyMapOfLongs().entrySet()) {
+            NavigableMap<byte[], byte[]> columns = columns(tableName,
+                    increment.getRow(), family.getKey(), true);
+            for (Map.Entry<byte[], Long> column : family.getValue().entrySet()) {
+                byte[] old = columns.get(column.getKey());
+                byte[] value = Bytes.toBytes((old == null ? 0 : Bytes
+                        .toLong(old)) + column.getValue());
+                columns.put(column.getKey(), value);
+                cells.add(new KeyValue(increment.getRow(), family.getKey(),
+                        column.getKey(), 1L, value));
+            }
+        }
+        return result(cells);
+    }
+
+    private void delete(byte[] tableName, Delete delete) {
+        NavigableMap<byte[], NavigableMap<byte[], byte[]>> families = row(
+                tableName, delete.getRow(), false);
+        if (families == null) {
+            return;
+        }
+        if (delete.isEmpty()) {
+            families.clear();
+            return;
+        }
+        for (List<Cell> markers : delete.getFamilyCellMap().values()) {
+            for (Cell marker : markers) {
+                byte[] family = CellUtil.cloneFamily(marker);
+                if (KeyValue.Type.codeToType(marker.getTypeByte()) == KeyValue.Type.DeleteFamily) {
+                    families.remove(family);
+                } else if (families.containsKey(family)) {
+                    families.get(family).remove(
+                            CellUtil.cloneQualifier(marker));
+                }
+            }
+        }
+    }
+
+    private static Result result(List<Cell> cells) {
+        Cell[] array = cells.toArray(new Cell[cells.size()]);
+        Arrays.sort(array, KeyValue.COMPARATOR);
+        return Result.create(array);
+    }
+
+    private NavigableMap<byte[], NavigableMap<byte[], byte[]>> row(
+            byte[] tableName, byte[] row, boolean create) {
+        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], byte[]>>> rows = tables
+                .get(tableName);
+        if (rows == null) {
+            if (!create) {
+                return null;
+            }
+            rows = new TreeMap<byte[], NavigableMap<byte[], NavigableMap<byte[], byte[]>>>(
+                    Bytes.BYTES_COMPARATOR);
+            tables.put(tableName, rows);
+        }
+        NavigableMap<byte[], NavigableMap<byte[], byte[]>> families = rows
+                .get(row);
+        if (families == null && create) {
+            families = new TreeMap<byte[], NavigableMap<byte[], byte[]>>(
+                    Bytes.BYTES_COMPARATOR);
+            rows.put(row, families);
+        }
+        return families;
+    }
+
+    private NavigableMap<byte[], byte[]> columns(byte[] tableName, byte[] row,
+                                                 byte[] family, boolean create) {
+        NavigableMap<byte[], NavigableMap<byte[], byte[]>> families = row(
+                tableName, row, create);
+        if (families == null) {
+            return null;
+        }
+        NavigableMap<byte[], byte[]> columns = families.get(family);
+        if (columns == null && create) {
+            columns = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+            families.put(family, columns);
+        }
+        return columns;
+    }
+}
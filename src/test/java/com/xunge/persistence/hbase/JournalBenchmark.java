@@ -0,0 +1,102 @@
+package com.xunge.persistence.hbase;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 本地预写日志吞吐: 每次追加等待组提交落盘 vs 不等待(只按间隔落盘)
+ * <p/>
+ * 参数: [日志目录], 默认在临时目录下; 结束后重放校验记录数
+ *
+ * @author stereo
+ */
+public class JournalBenchmark {
+
+    private static final long DURATION_MILLIS = 2000;
+    private static final long SYNC_MILLIS = 5;
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final byte[] TABLE = Bytes.toBytes("bench");
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+    private static final byte[] QUALIFIER = Bytes.toBytes("q");
+    private static final byte[] VALUE = new byte[100];
+
+    private static long run(final MutationJournal journal, int threads,
+                            final boolean wait) throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            new Daemon(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long n = 0;
+                        while (System.currentTimeMillis() < deadline) {
+                            Put put = new Put(Bytes.add(Bytes.toBytes(thread),
+                                    Bytes.toBytes(n)));
+                            put.addColumn(FAMILY, QUALIFIER, VALUE);
+                            long seq = journal.append(TABLE, put);
+                            if (wait) {
+                                journal.awaitDurable(seq);
+                            }
+                            n++;
+                        }
+                        ops.addAndGet(n);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return ops.get();
+    }
+
+    private static void clean(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System
+                .getProperty("java.io.tmpdir"), "hbase-accessor-journal-bench");
+        System.out.println("threads\tsync-wait appends/s\tno-wait appends/s\trecovered");
+        for (int threads = 1; threads <= 256; threads *= 4) {
+            StringBuilder line = new StringBuilder().append(threads);
+            String recovered = "ok";
+            for (boolean wait : new boolean[]{true, false}) {
+                clean(dir);
+                MutationJournal journal = new MutationJournal(dir,
+                        SEGMENT_BYTES, SYNC_MILLIS);
+                journal.recover();
+                journal.start();
+                long appended = run(journal, threads, wait);
+                journal.close();
+                line.append('\t').append(appended * 1000 / DURATION_MILLIS);
+
+                int read = new MutationJournal(dir, SEGMENT_BYTES, SYNC_MILLIS)
+                        .recover().size();
+                if (read != appended) {
+                    recovered = read + "/" + appended;
+                }
+            }
+            System.out.println(line.append('\t').append(recovered));
+        }
+        clean(dir);
+    }
+}
@@ -0,0 +1,218 @@
+package com.xunge.persistence.hbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * MutationJournal: 重放时截断未写完或损坏的尾部记录, dead文件读写, 完成后删除分段
+ *
+ * @author stereo
+ */
+public class MutationJournalTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete());
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static Put put(int i) {
+        Put put = new Put(Bytes.toBytes("row" + i));
+        put.addColumn(F, Q, Bytes.toBytes(i));
+        return put;
+    }
+
+    /**
+     * 写入count条记录后关闭, 不完成任何记录
+     *
+     * @return 分段文件
+     */
+    private File write(int count) throws IOException {
+        MutationJournal journal = new MutationJournal(dir, 64 * 1024, 10);
+        assertTrue(journal.recover().isEmpty());
+        journal.start();
+        long seq = -1;
+        for (int i = 0; i < count; i++) {
+            seq = journal.append(TABLE, put(i));
+        }
+        journal.awaitDurable(seq);
+        journal.close();
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    /**
+     * @return 第index条记录在分段中的起始位置
+     */
+    private static long offset(File segment, int index) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            long offset = 0;
+            for (int i = 0; i < index; i++) {
+                raf.seek(offset);
+                offset += 8 + raf.readInt();
+            }
+            return offset;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertRecovered(int count) throws IOException {
+        MutationJournal journal = new MutationJournal(dir, 64 * 1024, 10);
+        List<MutationJournal.Record> records = journal.recover();
+        assertEquals(count, records.size());
+        for (int i = 0; i < count; i++) {
+            MutationJournal.Record record = records.get(i);
+            assertEquals(i, record.seq);
+            assertTrue(Bytes.equals(TABLE, record.tableName));
+            assertTrue(Bytes.equals(Bytes.toBytes("row" + i),
+                    record.mutation.getRow()));
+            // 重放时固定为追加时间
+            long ts = ((Put) record.mutation).get(F, Q).get(0).getTimestamp();
+            assertTrue(ts != HConstants.LATEST_TIMESTAMP);
+        }
+        journal.start();
+        // 序号接着重放的记录分配
+        assertEquals(count, journal.append(TABLE, put(count)));
+        journal.recovered();
+        journal.close();
+    }
+
+    public void testRecover() throws IOException {
+        write(5);
+        assertRecovered(5);
+    }
+
+    public void testTornTail() throws IOException {
+        File segment = write(3);
+        // 最后一条记录只写了一半
+        long last = offset(segment, 2);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(last + 12);
+        } finally {
+            raf.close();
+        }
+        assertRecovered(2);
+    }
+
+    public void testCorruptTail() throws IOException {
+        File segment = write(3);
+        long last = offset(segment, 2);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(last + 20);
+            int b = raf.read();
+            raf.seek(last + 20);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertRecovered(2);
+    }
+
+    public void testDeadLetters() throws IOException {
+        MutationJournal journal = new MutationJournal(dir, 64 * 1024, 10);
+        journal.recover();
+        journal.start();
+        Delete delete = new Delete(Bytes.toBytes("row"));
+        delete.addColumns(F, Q);
+        journal.dead(TABLE, put(1));
+        journal.dead(TABLE, delete);
+        journal.close();
+
+        List<MutationJournal.Record> dead = new MutationJournal(dir,
+                64 * 1024, 10).deadLetters();
+        assertEquals(2, dead.size());
+        assertEquals(-1, dead.get(0).seq);
+        assertTrue(dead.get(0).mutation instanceof Put);
+        assertEquals(1, Bytes.toInt(CellUtil.cloneValue(((Put) dead.get(0)
+                .mutation).get(F, Q).get(0))));
+        assertTrue(dead.get(1).mutation instanceof Delete);
+        // dead文件不参与重放
+        assertTrue(new MutationJournal(dir, 64 * 1024, 10).recover()
+                .isEmpty());
+    }
+
+    public void testLatestVersionDeleteNotReplayed() throws IOException {
+        MutationJournal journal = new MutationJournal(dir, 64 * 1024, 10);
+        journal.recover();
+        journal.start();
+        Delete latest = new Delete(Bytes.toBytes("latest"));
+        latest.addColumn(F, Q);
+        Delete versioned = new Delete(Bytes.toBytes("versioned"));
+        versioned.addColumn(F, Q, 5L);
+        Delete columns = new Delete(Bytes.toBytes("columns"));
+        columns.addColumns(F, Q);
+        journal.append(TABLE, put(0));
+        journal.append(TABLE, latest);
+        journal.append(TABLE, versioned);
+        journal.awaitDurable(journal.append(TABLE, columns));
+        journal.close();
+
+        // 删除最新版本的记录无法固定时间戳, 不重放
+        List<MutationJournal.Record> records = new MutationJournal(dir,
+                64 * 1024, 10).recover();
+        assertEquals(3, records.size());
+        assertTrue(records.get(0).mutation instanceof Put);
+        assertTrue(Bytes.equals(Bytes.toBytes("versioned"),
+                records.get(1).mutation.getRow()));
+        assertTrue(Bytes.equals(Bytes.toBytes("columns"),
+                records.get(2).mutation.getRow()));
+        long ts = records.get(2).mutation.getFamilyCellMap().get(F).get(0)
+                .getTimestamp();
+        assertTrue(ts != HConstants.LATEST_TIMESTAMP);
+
+        List<MutationJournal.Record> dead = new MutationJournal(dir,
+                64 * 1024, 10).deadLetters();
+        assertEquals(1, dead.size());
+        assertTrue(dead.get(0).mutation instanceof Delete);
+        assertTrue(Bytes.equals(Bytes.toBytes("latest"),
+                dead.get(0).mutation.getRow()));
+    }
+
+    public void testCompleteDeletesSegments() throws IOException {
+        MutationJournal journal = new MutationJournal(dir, 256, 10);
+        journal.recover();
+        journal.start();
+        long[] seqs = new long[20];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = journal.append(TABLE, put(i));
+        }
+        assertTrue(dir.listFiles().length > 1);
+        journal.complete(seqs);
+        // 只剩活动分段
+        assertEquals(1, dir.listFiles().length);
+        journal.close();
+        assertEquals(0, dir.listFiles().length);
+    }
+}
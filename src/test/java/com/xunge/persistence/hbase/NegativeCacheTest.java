@@ -0,0 +1,86 @@
+package com.xunge.persistence.hbase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * NegativeCache: 失效计数校验和分段并发访问
+ *
+ * @author stereo
+ */
+public class NegativeCacheTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+
+    private static ByteBuffer projection() {
+        Get get = new Get(Bytes.toBytes("any"));
+        get.addColumn(Bytes.toBytes("f"), Bytes.toBytes("q"));
+        return RowCache.projection(get);
+    }
+
+    public void testInvalidateRejectsStaleAbsent() {
+        NegativeCache cache = new NegativeCache(1000, 60000);
+        byte[] row = Bytes.toBytes("row");
+        RowCache.RowId id = new RowCache.RowId(TABLE, row);
+        ByteBuffer projection = projection();
+
+        long stamp = cache.stamp(id);
+        cache.absent(id, projection, stamp);
+        assertTrue(cache.isAbsent(id, projection));
+        cache.invalidate(TABLE, row);
+        assertFalse(cache.isAbsent(id, projection));
+        // 查询开始于失效之前, 结果不缓存
+        cache.absent(id, projection, stamp);
+        assertFalse(cache.isAbsent(id, projection));
+        assertEquals(0, cache.size());
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final NegativeCache cache = new NegativeCache(500, 60000);
+        final ByteBuffer projection = projection();
+        final int threads = 8;
+        final int ops = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ops; i++) {
+                            byte[] row = Bytes.toBytes((i * 31L + seed) % 2000);
+                            RowCache.RowId id = new RowCache.RowId(TABLE, row);
+                            if (!cache.isAbsent(id, projection)) {
+                                cache.absent(id, projection, cache.stamp(id));
+                            }
+                            if (i % 97 == 0) {
+                                cache.invalidate(TABLE, row);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertTrue(cache.size() <= 500);
+        assertEquals(threads * ops, cache.getHitCount() + cache.getMissCount());
+    }
+}
@@ -0,0 +1,132 @@
+package com.xunge.persistence.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.xunge.persistence.hbase.api.Row;
+
+/**
+ * ReadOverlay: 未写入的Put/Delete按入队顺序合并到查询结果, 与Hbase的屏蔽规则一致
+ *
+ * @author stereo
+ */
+public class ReadOverlayTest extends TestCase {
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] X = Bytes.toBytes("x");
+    private static final byte[] Y = Bytes.toBytes("y");
+
+    private static Cell cell(byte[] qualifier, long ts, String value) {
+        return new KeyValue(ROW, F, qualifier, ts, Bytes.toBytes(value));
+    }
+
+    private static Result stored(Cell... cells) {
+        List<Cell> list = new ArrayList<Cell>(Arrays.asList(cells));
+        Collections.sort(list, KeyValue.COMPARATOR);
+        return Result.create(list);
+    }
+
+    private static Put put(byte[] qualifier, String value) {
+        Put put = new Put(ROW);
+        put.addColumn(F, qualifier, Bytes.toBytes(value));
+        return put;
+    }
+
+    private static Result apply(Result result, Get get, Mutation... pending) {
+        return ReadOverlay.apply(result, get, Arrays.asList(pending));
+    }
+
+    private static String value(Result result, byte[] qualifier) {
+        byte[] value = result.getValue(F, qualifier);
+        return value == null ? null : Bytes.toString(value);
+    }
+
+    public void testPutThenDeleteColumn() {
+        Put put = put(X, "x1");
+        put.addColumn(F, Y, Bytes.toBytes("y1"));
+        Delete delete = new Delete(ROW);
+        delete.addColumns(F, X);
+        Result result = apply(stored(cell(X, 100, "old")), new Get(ROW), put,
+                delete);
+        // 删除在写入之后, 屏蔽本次写入和已存储的所有版本
+        assertNull(value(result, X));
+        assertEquals("y1", value(result, Y));
+    }
+
+    public void testDeleteLatestOverStoredVersion() throws IOException {
+        Delete delete = new Delete(ROW);
+        delete.addColumn(F, X);
+        Get get = new Get(ROW);
+        get.setMaxVersions(3);
+        Result result = apply(stored(cell(X, 100, "v1"), cell(X, 200, "v2")),
+                get, delete);
+        // 只删除最新的版本
+        List<Cell> cells = result.getColumnCells(F, X);
+        assertEquals(1, cells.size());
+        assertEquals(100, cells.get(0).getTimestamp());
+        assertEquals("v1", Bytes.toString(CellUtil.cloneValue(cells.get(0))));
+    }
+
+    public void testDeleteFamilyWithProjection() {
+        Delete delete = new Delete(ROW);
+        delete.addFamily(F);
+        Put put = put(X, "x2");
+        put.addColumn(F, Y, Bytes.toBytes("y2"));
+        Get get = new Get(ROW);
+        get.addColumn(F, X);
+        Result result = apply(stored(cell(X, 100, "x1")), get, delete, put);
+        assertEquals("x2", value(result, X));
+        // 不在查询范围内的列不合并
+        assertNull(value(result, Y));
+        assertEquals(1, result.size());
+    }
+
+    public void testMaxVersionsTrimmed() throws IOException {
+        Result result = stored(cell(X, 100, "v1"), cell(X, 200, "v2"));
+        Get get = new Get(ROW);
+        get.setMaxVersions(2);
+        List<Cell> cells = apply(result, get, put(X, "v3")).getColumnCells(F,
+                X);
+        assertEquals(2, cells.size());
+        assertEquals("v3", Bytes.toString(CellUtil.cloneValue(cells.get(0))));
+        assertEquals("v2", Bytes.toString(CellUtil.cloneValue(cells.get(1))));
+        // 默认只取最新版本
+        cells = apply(result, new Get(ROW), put(X, "v3")).getColumnCells(F, X);
+        assertEquals(1, cells.size());
+        assertEquals("v3", Bytes.toString(CellUtil.cloneValue(cells.get(0))));
+    }
+
+    public void testFetchMergesBufferedWithoutFlush() {
+        InMemoryTables tables = new InMemoryTables();
+        Configuration conf = HBaseConfiguration.create();
+        conf.setBoolean(HbaseAccessor.READ_OVERLAY_KEY, true);
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor(conf);
+        byte[] table = Bytes.toBytes("t");
+        tables.put(table, ROW, F, X, Bytes.toBytes("x1"));
+        tables.put(table, ROW, F, Y, Bytes.toBytes("y1"));
+        hBase.save(table).row("row").family("f").col("y", "y2").commit();
+        hBase.delete(table).row("row").family("f").col("x").commit();
+        Row<String> row = hBase.fetch(table).family("f").row("row");
+        assertNull(row.value(F, X, String.class));
+        assertEquals("y2", row.value(F, Y, String.class));
+        assertEquals(0, tables.getBatchCount());
+    }
+}
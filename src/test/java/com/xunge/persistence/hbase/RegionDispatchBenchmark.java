@@ -0,0 +1,160 @@
+package com.xunge.persistence.hbase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 按RegionServer分组提交 vs 整表一次提交
+ * <p/>
+ * 用动态代理模拟Connection/Table/RegionLocator: 每台RegionServer一个Region,
+ * 第0台为慢服务器. 一次batch()内各服务器并行, 在最慢的服务器返回后才完成
+ *
+ * @author stereo
+ */
+public class RegionDispatchBenchmark {
+
+    private static final int SERVERS = 8;
+    private static final int ROWS = 16 * 1024;
+    private static final long FAST_MILLIS = 5;
+    private static final long SLOW_MILLIS = 100;
+    private static final long ROW_MICROS = 10;
+    private static final int ROUNDS = 5;
+
+    private static final TableName TABLE = TableName.valueOf("bench");
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+
+    private static final ServerName[] SERVER_NAMES = new ServerName[SERVERS];
+    private static final HRegionLocation[] LOCATIONS = new HRegionLocation[SERVERS];
+
+    static {
+        for (int i = 0; i < SERVERS; i++) {
+            SERVER_NAMES[i] = ServerName.valueOf("rs" + i, 16020, 1L);
+            byte[] start = i == 0 ? new byte[0] : new byte[]{(byte) (i * 256 / SERVERS)};
+            byte[] end = i == SERVERS - 1 ? new byte[0] : new byte[]{(byte) ((i + 1) * 256 / SERVERS)};
+            LOCATIONS[i] = new HRegionLocation(new HRegionInfo(TABLE, start, end),
+                    SERVER_NAMES[i]);
+        }
+    }
+
+    /**
+     * 所有数据确认耗时之和(毫秒*条)
+     */
+    private static final AtomicLong ackMillis = new AtomicLong();
+
+    private static long started;
+
+    private static int server(byte[] row) {
+        return (row[0] & 0xff) * SERVERS / 256;
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(RegionDispatchBenchmark.class
+                .getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static final RegionLocator LOCATOR = (RegionLocator) proxy(
+            RegionLocator.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getRegionLocation")) {
+                        return LOCATIONS[server((byte[]) args[0])];
+                    }
+                    return null;
+                }
+            });
+
+    private static final Table TABLE_STUB = (Table) proxy(Table.class,
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                        throws InterruptedException {
+                    if (method.getName().equals("batch")) {
+                        List<?> actions = (List<?>) args[0];
+                        int[] rows = new int[SERVERS];
+                        for (Object action : actions) {
+                            rows[server(((Row) action).getRow())]++;
+                        }
+                        long micros = 0;
+                        for (int i = 0; i < SERVERS; i++) {
+                            if (rows[i] > 0) {
+                                long base = i == 0 ? SLOW_MILLIS : FAST_MILLIS;
+                                micros = Math.max(micros, base * 1000 + rows[i]
+                                        * ROW_MICROS);
+                            }
+                        }
+                        Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+                        ackMillis.addAndGet((System.currentTimeMillis() - started)
+                                * actions.size());
+                    }
+                    return null;
+                }
+            });
+
+    private static final Connection CONNECTION = (Connection) proxy(
+            Connection.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getTable")) {
+                        return TABLE_STUB;
+                    }
+                    if (method.getName().equals("getRegionLocator")) {
+                        return LOCATOR;
+                    }
+                    return null;
+                }
+            });
+
+    private static List<Put> puts() {
+        List<Put> puts = new ArrayList<Put>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            byte[] row = Bytes.add(new byte[]{(byte) (i % 256)}, Bytes.toBytes(i));
+            Put put = new Put(row);
+            put.addColumn(FAMILY, FAMILY, row);
+            puts.add(put);
+        }
+        return puts;
+    }
+
+    public static void main(String[] args) throws Exception {
+        RegionDispatcher dispatcher = new RegionDispatcher(new ThreadPoolExecutor(
+                0, SERVERS * 2, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new Daemon.DaemonFactory(),
+                new CallerRunsPolicy()), 1024);
+        TableHandles tables = new TableHandles(CONNECTION, SERVERS * 2);
+        byte[] tableName = TABLE.getName();
+        List<Put> puts = puts();
+        System.out.println("mode\tflush ms\tmean ack ms");
+        for (int round = 0; round < ROUNDS; round++) {
+            ackMillis.set(0);
+            started = System.currentTimeMillis();
+            TABLE_STUB.batch(puts, new Object[puts.size()]);
+            long single = System.currentTimeMillis() - started;
+            System.out.println("single\t" + single + "\t" + ackMillis.get() / ROWS);
+
+            ackMillis.set(0);
+            started = System.currentTimeMillis();
+            dispatcher.dispatch(tables, tableName, puts);
+            long grouped = System.currentTimeMillis() - started;
+            System.out.println("grouped\t" + grouped + "\t" + ackMillis.get() / ROWS);
+        }
+    }
+}
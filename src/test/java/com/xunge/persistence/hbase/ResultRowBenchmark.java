@@ -0,0 +1,214 @@
+package com.xunge.persistence.hbase;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.xunge.persistence.hbase.api.Column;
+import com.xunge.persistence.hbase.api.ForEach;
+
+/**
+ * 读取一行: Result.getMap()多层TreeMap(原实现) vs 单元格数组二分查找(ResultRow),
+ * 以及按列累加时value(Long.class)装箱 vs getLong
+ * <p/>
+ * 一行1000列, 每列3个版本. 每次操作新建Result(与扫描时一样, getMap()的缓存不复用),
+ * 读一列的所有版本, 遍历整个列族, 或逐列读取最新值求和. 不连接Hbase
+ *
+ * @author stereo
+ */
+public class ResultRowBenchmark {
+
+    private static final int COLUMNS = 1000;
+    private static final int VERSIONS = 3;
+    private static final int OPS = 20000;
+    private static final int ROUNDS = 5;
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+    private static final byte[] QUALIFIER = Bytes.toBytes(String.format(
+            "q%04d", COLUMNS / 2));
+
+    private static final byte[][] QUALIFIERS = new byte[COLUMNS][];
+
+    static {
+        for (int i = 0; i < COLUMNS; i++) {
+            QUALIFIERS[i] = Bytes.toBytes(String.format("q%04d", i));
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    private static Cell[] cells() {
+        List<Cell> cells = new ArrayList<Cell>(COLUMNS * VERSIONS);
+        for (int i = 0; i < COLUMNS; i++) {
+            byte[] qualifier = Bytes.toBytes(String.format("q%04d", i));
+            for (int v = 0; v < VERSIONS; v++) {
+                cells.add(new KeyValue(ROW, FAMILY, qualifier, 1000L - v,
+                        Bytes.toBytes((long) i * VERSIONS + v)));
+            }
+        }
+        Cell[] array = cells.toArray(new Cell[cells.size()]);
+        Arrays.sort(array, KeyValue.COMPARATOR);
+        return array;
+    }
+
+    /**
+     * 原ResultRow.valuesDescTimestamp
+     */
+    private static <U> List<U> mapValuesDesc(HbaseAccessor<?, ?> hBase,
+                                             Result result, byte[] family, byte[] qualifier, Class<U> c) {
+        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowMap = result
+                .getMap();
+        NavigableMap<Long, byte[]> navigableMap = rowMap.get(family).get(
+                qualifier);
+        TreeMap<Long, U> values = new TreeMap<Long, U>();
+        for (Long timestamp : navigableMap.keySet()) {
+            values.put(timestamp, hBase.fromBytes(navigableMap.get(timestamp),
+                    c));
+        }
+        List<U> list = new ArrayList<U>();
+        for (Long timestamp : values.descendingKeySet()) {
+            list.add(values.get(timestamp));
+        }
+        return list;
+    }
+
+    private interface Op {
+        long run(Result result);
+    }
+
+    private static void measure(String mode, Cell[] cells, Op op) {
+        long id = Thread.currentThread().getId();
+        long sum = 0;
+        long bytes = THREADS.getThreadAllocatedBytes(id);
+        long started = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            sum += op.run(Result.create(cells));
+        }
+        long nanos = System.nanoTime() - started;
+        bytes = THREADS.getThreadAllocatedBytes(id) - bytes;
+        System.out.println(mode + "\t" + nanos / OPS + "\t" + bytes / OPS
+                + "\t" + sum);
+    }
+
+    public static void main(String[] args) {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setInt(HbaseAccessor.FLUSH_THREADS_KEY, 0);
+        final HbaseAccessor<QueryOps<String>, String> hBase = new HbaseAccessor<QueryOps<String>, String>(
+                String.class, conf, 500);
+        Cell[] cells = cells();
+        System.out.println("mode\tns/op\tbytes/op\tchecksum");
+        for (int round = 0; round < ROUNDS; round++) {
+            measure("getMap versions", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    long sum = 0;
+                    for (Long value : mapValuesDesc(hBase, result, FAMILY,
+                            QUALIFIER, Long.class)) {
+                        sum += value;
+                    }
+                    return sum;
+                }
+            });
+            measure("cells versions", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    long sum = 0;
+                    for (Long value : new ResultRow<String>(hBase, result)
+                            .valuesDescTimestamp(FAMILY, QUALIFIER, Long.class)) {
+                        sum += value;
+                    }
+                    return sum;
+                }
+            });
+            measure("getMap foreach", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    long sum = 0;
+                    for (Map.Entry<byte[], byte[]> entry : result.getFamilyMap(
+                            FAMILY).entrySet()) {
+                        sum += new ResultColumn(hBase, entry.getKey(),
+                                entry.getValue()).value(Long.class);
+                    }
+                    return sum;
+                }
+            });
+            measure("cells foreach", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    final long[] sum = new long[1];
+                    new ResultRow<String>(hBase, result).family(FAMILY)
+                            .foreach(new ForEach<Column>() {
+                                @Override
+                                public void process(Column column) {
+                                    sum[0] += column.value(Long.class);
+                                }
+                            });
+                    return sum[0];
+                }
+            });
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            measure("boxed sum", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    ResultRow<String> row = new ResultRow<String>(hBase, result);
+                    long sum = 0;
+                    for (byte[] qualifier : QUALIFIERS) {
+                        sum += row.value(FAMILY, qualifier, Long.class);
+                    }
+                    return sum;
+                }
+            });
+            measure("getLong sum", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    ResultRow<String> row = new ResultRow<String>(hBase, result);
+                    long sum = 0;
+                    for (byte[] qualifier : QUALIFIERS) {
+                        sum += row.getLong(FAMILY, qualifier, 0);
+                    }
+                    return sum;
+                }
+            });
+            measure("getLong foreach", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    final long[] sum = new long[1];
+                    new ResultRow<String>(hBase, result).family(FAMILY)
+                            .foreach(new ForEach<Column>() {
+                                @Override
+                                public void process(Column column) {
+                                    sum[0] += column.getLong();
+                                }
+                            });
+                    return sum[0];
+                }
+            });
+            measure("getLongs versions", cells, new Op() {
+                @Override
+                public long run(Result result) {
+                    long sum = 0;
+                    for (long value : new ResultRow<String>(hBase, result)
+                            .getLongs(FAMILY, QUALIFIER)) {
+                        sum += value;
+                    }
+                    return sum;
+                }
+            });
+        }
+        System.exit(0);
+    }
+}
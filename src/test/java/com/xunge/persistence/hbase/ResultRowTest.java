@@ -0,0 +1,310 @@
+package com.xunge.persistence.hbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableMap;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.xunge.persistence.hbase.api.Column;
+import com.xunge.persistence.hbase.api.ForEach;
+import com.xunge.persistence.hbase.api.Row;
+
+/**
+ * ResultRow: 在有序单元格数组上按列查找, 多版本和不存在的列(不连接Hbase)
+ *
+ * @author stereo
+ */
+public class ResultRowTest extends TestCase {
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+
+    private final HbaseAccessor<QueryOps<String>, String> hBase = new InMemoryTables()
+            .accessor();
+
+    private static Cell cell(String family, String qualifier, long timestamp,
+                             byte[] value) {
+        return new KeyValue(ROW, Bytes.toBytes(family),
+                Bytes.toBytes(qualifier), timestamp, value);
+    }
+
+    private static Cell cell(String family, String qualifier, long timestamp,
+                             String value) {
+        return cell(family, qualifier, timestamp, Bytes.toBytes(value));
+    }
+
+    /**
+     * 与RegionServer返回的一样按KeyValue顺序排列
+     */
+    private Row<String> row(Cell... cells) {
+        Arrays.sort(cells, KeyValue.COMPARATOR);
+        return new ResultRow<String>(hBase, Result.create(cells));
+    }
+
+    public void testVersions() {
+        Row<String> row = row(cell("f", "q", 1L, "v1"),
+                cell("f", "q", 3L, "v3"), cell("f", "q", 2L, "v2"),
+                cell("f", "p", 5L, "p5"), cell("f", "r", 4L, "r4"));
+        assertEquals("row", row.getId());
+        assertEquals("v3", row.value("f", "q", String.class));
+        NavigableMap<Long, String> values = row.values("f", "q", String.class);
+        assertEquals(Arrays.asList(1L, 2L, 3L),
+                new ArrayList<Long>(values.keySet()));
+        assertEquals(Arrays.asList("v1", "v2", "v3"),
+                new ArrayList<String>(values.values()));
+        assertEquals(Arrays.asList("v1", "v2", "v3"),
+                row.valuesAscTimestamp("f", "q", String.class));
+        assertEquals(Arrays.asList("v3", "v2", "v1"),
+                row.valuesDescTimestamp("f", "q", String.class));
+        assertTrue(Arrays.equals(new long[]{3L, 2L, 1L},
+                row.timestamps("f", "q")));
+        // 相邻的列不混入
+        assertEquals(Arrays.asList("p5"),
+                row.family("f").valuesDescTimestamp("p", String.class));
+        assertEquals(Arrays.asList("r4"),
+                row.family("f").valuesAscTimestamp("r", String.class));
+    }
+
+    public void testOrdering() {
+        Row<String> row = row(cell("b", "q", 1L, "b:q"),
+                cell("a", "qq", 1L, "a:qq"), cell("a", "q", 2L, "a:q2"),
+                cell("a", "q", 1L, "a:q1"), cell("a", "", 1L, "a:"),
+                cell("a", "q1", 1L, "a:q1"), cell("ab", "q", 1L, "ab:q"));
+        // 列名互为前缀, 列族互为前缀
+        assertEquals("a:", row.value("a", "", String.class));
+        assertEquals("a:q2", row.value("a", "q", String.class));
+        assertEquals("a:q1", row.value("a", "q1", String.class));
+        assertEquals("a:qq", row.value("a", "qq", String.class));
+        assertEquals("ab:q", row.value("ab", "q", String.class));
+        assertEquals("b:q", row.family("b").value("q", String.class));
+
+        // 按列名顺序, 每列只取最新版本, 不越过列族
+        final List<String> columns = new ArrayList<String>();
+        row.family("a").foreach(new ForEach<Column>() {
+            @Override
+            public void process(Column column) {
+                columns.add(column.qualifier() + "="
+                        + column.value(String.class));
+            }
+        });
+        assertEquals(Arrays.asList("=a:", "q=a:q2", "q1=a:q1", "qq=a:qq"),
+                columns);
+    }
+
+    private static void assertMissing(Row<String> row, String family,
+                                      String qualifier) {
+        assertNull(row.value(family, qualifier, String.class));
+        assertNull(row.family(family).value(qualifier, String.class));
+        assertTrue(row.values(family, qualifier, String.class).isEmpty());
+        assertTrue(row.valuesAscTimestamp(family, qualifier, String.class)
+                .isEmpty());
+        assertTrue(row.valuesDescTimestamp(family, qualifier, String.class)
+                .isEmpty());
+        assertEquals(0, row.timestamps(family, qualifier).length);
+        assertEquals(0, row.getLongs(family, qualifier).length);
+        assertEquals(7L, row.getLong(family, qualifier, 7L));
+        assertEquals(7, row.getInt(family, qualifier, 7));
+        assertEquals(7.0, row.getDouble(family, qualifier, 7.0), 0.0);
+        assertTrue(row.getBoolean(family, qualifier, true));
+    }
+
+    public void testMissingColumns() {
+        Row<String> row = row(cell("b", "m", 1L, "b:m"),
+                cell("b", "x", 1L, "b:x"), cell("d", "q", 1L, "d:q"));
+        // 列族不存在(在最前/中间/最后), 列不存在(在最前/中间/最后)
+        assertMissing(row, "a", "m");
+        assertMissing(row, "c", "m");
+        assertMissing(row, "e", "q");
+        assertMissing(row, "b", "a");
+        assertMissing(row, "b", "n");
+        assertMissing(row, "b", "z");
+        assertMissing(row, "d", "");
+
+        final List<Column> columns = new ArrayList<Column>();
+        ForEach<Column> collect = new ForEach<Column>() {
+            @Override
+            public void process(Column column) {
+                columns.add(column);
+            }
+        };
+        row.family("c").foreach(collect);
+        row.family("e").foreach(collect);
+        assertTrue(columns.isEmpty());
+    }
+
+    public void testEmptyResult() {
+        Row<String> row = new ResultRow<String>(hBase, Result.create(new Cell[0]));
+        assertMissing(row, "f", "q");
+        row = new ResultRow<String>(hBase, new Result());
+        assertMissing(row, "f", "q");
+    }
+
+    /**
+     * 解码结果: 相同的值或相同的异常类型
+     */
+    private static abstract class Decode {
+
+        abstract Object decode();
+
+        Object outcome() {
+            try {
+                return decode();
+            } catch (RuntimeException e) {
+                return e.getClass();
+            }
+        }
+    }
+
+    private static void assertParity(String message, Decode boxed,
+                                     Decode primitive) {
+        assertEquals(message, boxed.outcome(), primitive.outcome());
+    }
+
+    public void testPrimitiveMatchesBoxed() {
+        byte[] bytes = Bytes.toBytes(0x0102030405060708L);
+        byte[] more = Bytes.add(bytes, bytes);
+        // 长度不对的值: 短于所需时两边都抛异常, 长于所需时都取前几个字节
+        for (int length = 0; length <= more.length; length++) {
+            byte[] value = Arrays.copyOf(more, length);
+            final Row<String> row = row(cell("f", "q", 1L, value));
+            final List<Column> columns = new ArrayList<Column>();
+            row.family("f").foreach(new ForEach<Column>() {
+                @Override
+                public void process(Column column) {
+                    columns.add(column);
+                }
+            });
+            final Column column = columns.get(0);
+            String message = "length " + length;
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return row.value("f", "q", Long.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return row.getLong("f", "q", 0L);
+                }
+            });
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return row.value("f", "q", Integer.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return row.family("f").getInt("q", 0);
+                }
+            });
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return row.value("f", "q", Double.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return row.getDouble("f", "q", 0.0);
+                }
+            });
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return row.value("f", "q", Boolean.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return row.getBoolean("f", "q", false);
+                }
+            });
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return column.value(Long.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return column.getLong();
+                }
+            });
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return column.value(Integer.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return column.getInt();
+                }
+            });
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return column.value(Double.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return column.getDouble();
+                }
+            });
+            assertParity(message, new Decode() {
+                Object decode() {
+                    return column.value(Boolean.class);
+                }
+            }, new Decode() {
+                Object decode() {
+                    return column.getBoolean();
+                }
+            });
+        }
+    }
+
+    public void testPrimitiveVersionsMatchBoxed() {
+        final Row<String> row = row(cell("f", "l", 1L, Bytes.toBytes(1L)),
+                cell("f", "l", 2L, Bytes.toBytes(-2L)),
+                cell("f", "i", 1L, Bytes.toBytes(3)),
+                cell("f", "i", 2L, Bytes.toBytes(-4)),
+                cell("f", "d", 1L, Bytes.toBytes(0.5)),
+                cell("f", "d", 2L, Bytes.toBytes(-1.5)),
+                cell("f", "b", 1L, Bytes.toBytes(true)),
+                cell("f", "b", 2L, Bytes.toBytes(false)));
+        // 都按时间戳降序
+        List<Long> longs = row.valuesDescTimestamp("f", "l", Long.class);
+        long[] primitiveLongs = row.getLongs("f", "l");
+        assertEquals(longs.size(), primitiveLongs.length);
+        for (int i = 0; i < primitiveLongs.length; i++) {
+            assertEquals(longs.get(i).longValue(), primitiveLongs[i]);
+        }
+        List<Integer> ints = row.valuesDescTimestamp("f", "i", Integer.class);
+        int[] primitiveInts = row.family("f").getInts("i");
+        assertEquals(ints.size(), primitiveInts.length);
+        for (int i = 0; i < primitiveInts.length; i++) {
+            assertEquals(ints.get(i).intValue(), primitiveInts[i]);
+        }
+        List<Double> doubles = row.valuesDescTimestamp("f", "d", Double.class);
+        double[] primitiveDoubles = row.getDoubles("f", "d");
+        assertEquals(doubles.size(), primitiveDoubles.length);
+        for (int i = 0; i < primitiveDoubles.length; i++) {
+            assertEquals(doubles.get(i), primitiveDoubles[i], 0.0);
+        }
+        List<Boolean> booleans = row.valuesDescTimestamp("f", "b",
+                Boolean.class);
+        boolean[] primitiveBooleans = row.family("f").getBooleans("b");
+        assertEquals(booleans.size(), primitiveBooleans.length);
+        for (int i = 0; i < primitiveBooleans.length; i++) {
+            assertEquals(booleans.get(i).booleanValue(), primitiveBooleans[i]);
+        }
+        assertTrue(Arrays.equals(new long[]{2L, 1L}, row.timestamps("f", "b")));
+        // 某个版本长度不对时与装箱解码一样失败
+        final Row<String> wrong = row(cell("f", "l", 1L, Bytes.toBytes(1L)),
+                cell("f", "l", 2L, Bytes.toBytes(2)));
+        assertEquals(IllegalArgumentException.class, new Decode() {
+            Object decode() {
+                return wrong.valuesDescTimestamp("f", "l", Long.class);
+            }
+        }.outcome());
+        assertEquals(IllegalArgumentException.class, new Decode() {
+            Object decode() {
+                return wrong.getLongs("f", "l");
+            }
+        }.outcome());
+    }
+}
@@ -0,0 +1,104 @@
+package com.xunge.persistence.hbase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * RowCache: 失效计数校验和分段并发访问
+ *
+ * @author stereo
+ */
+public class RowCacheTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+
+    private static Result result(byte[] row, long value) {
+        return Result.create(new Cell[]{new KeyValue(row, F, Q, 1L,
+                Bytes.toBytes(value))});
+    }
+
+    private static ByteBuffer projection() {
+        Get get = new Get(Bytes.toBytes("any"));
+        get.addColumn(F, Q);
+        return RowCache.projection(get);
+    }
+
+    public void testInvalidateRejectsStalePut() {
+        RowCache cache = new RowCache(16 * 1024 * 1024, 60000);
+        byte[] row = Bytes.toBytes("row");
+        RowCache.RowId id = new RowCache.RowId(TABLE, row);
+        ByteBuffer projection = projection();
+
+        long stamp = cache.stamp(id);
+        cache.put(id, projection, result(row, 1), stamp);
+        assertNotNull(cache.get(id, projection));
+
+        cache.invalidate(TABLE, row);
+        assertNull(cache.get(id, projection));
+        // 查询开始于失效之前, 结果不缓存
+        cache.put(id, projection, result(row, 1), stamp);
+        assertNull(cache.get(id, projection));
+
+        cache.put(id, projection, result(row, 2), cache.stamp(id));
+        assertEquals(2L, Bytes.toLong(cache.get(id, projection).value()));
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final RowCache cache = new RowCache(1024 * 1024, 60000);
+        final ByteBuffer projection = projection();
+        final int threads = 8;
+        final int ops = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ops; i++) {
+                            long n = (i * 31L + seed) % 2000;
+                            byte[] row = Bytes.toBytes(n);
+                            RowCache.RowId id = new RowCache.RowId(TABLE, row);
+                            Result cached = cache.get(id, projection);
+                            if (cached != null) {
+                                assertEquals(n, Bytes.toLong(cached.value()));
+                            } else {
+                                cache.put(id, projection, result(row, n),
+                                        cache.stamp(id));
+                            }
+                            if (i % 97 == 0) {
+                                cache.invalidate(TABLE, row);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertTrue(cache.getSizeBytes() <= cache.getCapacityBytes());
+        assertEquals(threads * ops, cache.getHitCount() + cache.getMissCount());
+    }
+}
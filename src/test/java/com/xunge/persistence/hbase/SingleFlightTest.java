@@ -0,0 +1,125 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * SingleFlight: 并发相同查询合并, 查询期间写入后不再合并
+ *
+ * @author stereo
+ */
+public class SingleFlightTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] ROW = Bytes.toBytes("row");
+    private static final byte[] F = Bytes.toBytes("f");
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final CountDownLatch leaderStarted = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Override
+    protected void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private static Result result(long value) {
+        return Result.create(new Cell[]{new KeyValue(ROW, F, F, 1L,
+                Bytes.toBytes(value))});
+    }
+
+    /**
+     * 阻塞到release的查询
+     */
+    private Callable<Result> blockingLoader(final long value) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                loads.incrementAndGet();
+                leaderStarted.countDown();
+                assertTrue(release.await(10, TimeUnit.SECONDS));
+                return result(value);
+            }
+        };
+    }
+
+    private Callable<Result> loader(final long value) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() {
+                loads.incrementAndGet();
+                return result(value);
+            }
+        };
+    }
+
+    private Future<Result> submit(final SingleFlight flight,
+                                  final Callable<Result> loader) {
+        return executor.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return flight.get(TABLE, new Get(ROW), loader);
+            }
+        });
+    }
+
+    public void testCoalesce() throws Exception {
+        SingleFlight flight = new SingleFlight(10000);
+        Future<Result> leader = submit(flight, blockingLoader(1));
+        assertTrue(leaderStarted.await(10, TimeUnit.SECONDS));
+        Future<Result> follower = submit(flight, loader(2));
+        // 跟随者在等待首个查询
+        Thread.sleep(100);
+        assertFalse(follower.isDone());
+        release.countDown();
+        Result result = leader.get(10, TimeUnit.SECONDS);
+        assertSame(result, follower.get(10, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals(1, flight.getLeaderCount());
+        assertEquals(1, flight.getCoalescedCount());
+    }
+
+    public void testBypassAfterWrite() throws Exception {
+        SingleFlight flight = new SingleFlight(10000);
+        Future<Result> leader = submit(flight, blockingLoader(1));
+        assertTrue(leaderStarted.await(10, TimeUnit.SECONDS));
+        // 首个查询开始后写入该行, 之后的查询必须自己读
+        flight.invalidate(TABLE, ROW);
+        Result own = submit(flight, loader(2)).get(10, TimeUnit.SECONDS);
+        assertEquals(2L, Bytes.toLong(own.value()));
+        assertFalse(leader.isDone());
+        assertEquals(1, flight.getBypassedCount());
+        assertEquals(0, flight.getCoalescedCount());
+        release.countDown();
+        assertEquals(1L, Bytes.toLong(leader.get(10, TimeUnit.SECONDS).value()));
+        assertEquals(2, loads.get());
+    }
+
+    public void testFilterNotCoalesced() {
+        SingleFlight flight = new SingleFlight(10000);
+        Get get = new Get(ROW);
+        get.setFilter(new KeyOnlyFilter());
+        flight.get(TABLE, get, loader(1));
+        assertEquals(1, flight.getBypassedCount());
+        assertEquals(0, flight.getLeaderCount());
+    }
+}
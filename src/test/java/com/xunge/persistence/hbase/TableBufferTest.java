@@ -0,0 +1,70 @@
+package com.xunge.persistence.hbase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * TableBuffer: 并行刷入的批次只在同一行上等待更早的批次
+ *
+ * @author stereo
+ */
+public class TableBufferTest extends TestCase {
+
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+
+    private final BufferMemory memory = new BufferMemory(Long.MAX_VALUE);
+
+    private final TableBuffer buffer = new TableBuffer(Bytes.toBytes("t"),
+            memory);
+
+    private void add(String row) {
+        Put put = new Put(Bytes.toBytes(row));
+        put.addColumn(F, Q, Bytes.toBytes(row));
+        memory.forceReserve(put.heapSize());
+        buffer.add(put, put.heapSize());
+    }
+
+    public void testOnlySharedRowsBlocked() {
+        add("a");
+        TableBuffer.Drain first = buffer.drain();
+        add("b");
+        Delete delete = new Delete(Bytes.toBytes("a"));
+        memory.forceReserve(delete.heapSize());
+        buffer.add(delete, delete.heapSize());
+        TableBuffer.Drain second = buffer.drain();
+        assertTrue(first.order < second.order);
+        assertEquals(1, buffer.blockedRows(second).size());
+        assertTrue(buffer.blockedRows(second).contains(Bytes.toBytes("a")));
+        assertTrue(buffer.blockedRows(first).isEmpty());
+        buffer.completed(first);
+        assertTrue(buffer.blockedRows(second).isEmpty());
+        buffer.completed(second);
+        assertEquals(0, memory.used());
+    }
+
+    public void testAwaitEarlierWaitsForInFlight() throws Exception {
+        add("a");
+        final TableBuffer.Drain first = buffer.drain();
+        // 缓冲已空, 仍然要等待其它线程摘取的数据写完
+        final TableBuffer.Drain empty = buffer.drain();
+        assertTrue(empty.isEmpty());
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buffer.awaitEarlier(empty);
+                done.countDown();
+            }
+        }).start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        buffer.completed(first);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
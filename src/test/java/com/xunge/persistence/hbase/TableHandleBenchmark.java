@@ -0,0 +1,168 @@
+package com.xunge.persistence.hbase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.ClusterConnection;
+import org.apache.hadoop.hbase.client.HRegionLocator;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.RpcRetryingCallerFactory;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.TableConfiguration;
+import org.apache.hadoop.hbase.ipc.RpcControllerFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 每次操作取表句柄的开销: 原来的写法 vs TableHandles
+ * <p/>
+ * 用动态代理模拟ClusterConnection, getTable/getRegionLocator与ConnectionImplementation一样
+ * 构造真实的HTable/HRegionLocator(不发RPC). 对比:
+ * new HTable(原scan, 每次新建配置和线程池)、TableName.valueOf + getTable + close(原increment和刷入)、
+ * TableName.valueOf + getRegionLocator + close(原分组定位), 以及TableHandles的取用/归还
+ *
+ * @author stereo
+ */
+public class TableHandleBenchmark {
+
+    private static final int OPS = 200000;
+    private static final int ROUNDS = 5;
+
+    private static final byte[] TABLE = Bytes.toBytes("bench");
+
+    private static final Configuration CONF = HBaseConfiguration.create();
+
+    private static final ExecutorService POOL = new ThreadPoolExecutor(0, 8,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new Daemon.DaemonFactory());
+
+    private static final TableConfiguration TABLE_CONFIG = tableConfiguration();
+
+    private static final RpcRetryingCallerFactory CALLER_FACTORY = RpcRetryingCallerFactory
+            .instantiate(CONF);
+
+    private static final RpcControllerFactory CONTROLLER_FACTORY = RpcControllerFactory
+            .instantiate(CONF);
+
+    private static final ClusterConnection CONNECTION = (ClusterConnection) Proxy
+            .newProxyInstance(TableHandleBenchmark.class.getClassLoader(),
+                    new Class<?>[]{ClusterConnection.class},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method,
+                                             Object[] args) throws Exception {
+                            String name = method.getName();
+                            if (name.equals("getConfiguration")) {
+                                return CONF;
+                            }
+                            if (name.equals("isClosed")) {
+                                return false;
+                            }
+                            if (name.equals("getTable")) {
+                                return new HTable((TableName) args[0],
+                                        (ClusterConnection) proxy, TABLE_CONFIG,
+                                        CALLER_FACTORY, CONTROLLER_FACTORY, POOL);
+                            }
+                            if (name.equals("getRegionLocator")) {
+                                return new HRegionLocator((TableName) args[0],
+                                        (ClusterConnection) proxy);
+                            }
+                            return null;
+                        }
+                    });
+
+    /**
+     * 连接缓存的表配置, 构造方法不公开
+     */
+    private static TableConfiguration tableConfiguration() {
+        try {
+            Constructor<TableConfiguration> constructor = TableConfiguration.class
+                    .getDeclaredConstructor(Configuration.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(CONF);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    private static void measure(String mode, Op op) throws Exception {
+        long id = Thread.currentThread().getId();
+        long bytes = THREADS.getThreadAllocatedBytes(id);
+        long started = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            op.run();
+        }
+        long nanos = System.nanoTime() - started;
+        bytes = THREADS.getThreadAllocatedBytes(id) - bytes;
+        System.out.println(mode + "\t" + nanos / OPS + "\t" + bytes / OPS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final TableHandles tables = new TableHandles(CONNECTION, 16);
+        System.out.println("mode\tns/op\tbytes/op");
+        for (int round = 0; round < ROUNDS; round++) {
+            measure("new HTable", new Op() {
+                @Override
+                public void run() throws Exception {
+                    new HTable(TableName.valueOf(TABLE), CONNECTION, null,
+                            null, null, null).close();
+                }
+            });
+            measure("getTable", new Op() {
+                @Override
+                public void run() throws Exception {
+                    CONNECTION.getTable(TableName.valueOf(TABLE)).close();
+                }
+            });
+            measure("getRegionLocator", new Op() {
+                @Override
+                public void run() throws Exception {
+                    CONNECTION.getRegionLocator(TableName.valueOf(TABLE))
+                            .close();
+                }
+            });
+            measure("handles table", new Op() {
+                @Override
+                public void run() throws Exception {
+                    Table table = tables.table(TABLE);
+                    tables.release(TABLE, table);
+                }
+            });
+            measure("handles locator", new Op() {
+                @Override
+                public void run() throws Exception {
+                    RegionLocator locator = tables.locator(TABLE);
+                    if (locator == null) {
+                        throw new IllegalStateException();
+                    }
+                }
+            });
+        }
+        System.out.println(tables);
+        tables.close();
+    }
+}
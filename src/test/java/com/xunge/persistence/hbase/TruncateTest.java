@@ -0,0 +1,76 @@
+package com.xunge.persistence.hbase;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * truncateTable: Admin无权限或关闭时按Region扫描行键删除(内存表, 不连接Hbase)
+ *
+ * @author stereo
+ */
+public class TruncateTest extends TestCase {
+
+    private static final byte[] TABLE = Bytes.toBytes("t");
+    private static final byte[] OTHER = Bytes.toBytes("u");
+    private static final byte[] F = Bytes.toBytes("f");
+    private static final byte[] Q = Bytes.toBytes("q");
+
+    private static final String[] ROWS = {"a", "b", "c", "m", "n", "x", "y"};
+
+    private final InMemoryTables tables = new InMemoryTables();
+
+    private HbaseAccessor<QueryOps<String>, String> accessor(boolean admin) {
+        Configuration conf = HBaseConfiguration.create();
+        conf.setBoolean(HbaseAccessor.TRUNCATE_ADMIN_KEY, admin);
+        conf.setInt(HbaseAccessor.TRUNCATE_BATCH_KEY, 2);
+        HbaseAccessor<QueryOps<String>, String> hBase = tables.accessor(conf);
+        tables.setSplitKeys(Bytes.toBytes("m"), Bytes.toBytes("x"));
+        for (String row : ROWS) {
+            hBase.save(TABLE).row(row).family("f").col("q", row).commit();
+        }
+        hBase.save(OTHER).row("a").family("f").col("q", "a").commit();
+        hBase.flush();
+        return hBase;
+    }
+
+    private void assertTruncated() {
+        for (String row : ROWS) {
+            assertNull(row, tables.value(TABLE, Bytes.toBytes(row), F, Q));
+        }
+        assertEquals("a", Bytes.toString(tables.value(OTHER,
+                Bytes.toBytes("a"), F, Q)));
+        assertFalse(tables.isDisabled(TABLE));
+    }
+
+    public void testScanFallbackWhenAdminDenied() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(true);
+        tables.setAdminDenied(true);
+        // 未刷入的数据先写入再被删除
+        hBase.save(TABLE).row("z").family("f").col("q", "z").commit();
+        hBase.truncateTable(TABLE);
+        assertTruncated();
+        assertNull(tables.value(TABLE, Bytes.toBytes("z"), F, Q));
+        // 三个Region各扫描一次
+        assertEquals(3, tables.getScanCount());
+    }
+
+    public void testScanTruncateBatches() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(false);
+        int batches = tables.getBatchCount();
+        hBase.truncateTable(TABLE);
+        assertTruncated();
+        assertEquals(3, tables.getScanCount());
+        // [a,b,c] [m,n] [x,y] 每批最多两行
+        assertEquals(4, tables.getBatchCount() - batches);
+    }
+
+    public void testAdminTruncate() {
+        HbaseAccessor<QueryOps<String>, String> hBase = accessor(true);
+        hBase.truncateTable(TABLE);
+        assertTruncated();
+        assertEquals(0, tables.getScanCount());
+    }
+}
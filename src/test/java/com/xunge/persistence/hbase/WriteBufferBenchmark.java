@@ -0,0 +1,154 @@
+package com.xunge.persistence.hbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 写缓冲竞争测试: 全局公平读写锁 vs 按表无锁缓冲
+ * <p/>
+ * 刷入用sleep模拟一次RPC, 不需要Hbase集群
+ *
+ * @author stereo
+ */
+public class WriteBufferBenchmark {
+
+    private static final int TABLES = 8;
+    private static final int QUEUE_SIZE = 1024;
+    private static final long RPC_MICROS = 500;
+    private static final long DURATION_MILLIS = 2000;
+
+    private static final BufferMemory MEMORY = new BufferMemory(Long.MAX_VALUE);
+
+    private static final byte[][] TABLE_NAMES = new byte[TABLES][];
+
+    static {
+        for (int i = 0; i < TABLES; i++) {
+            TABLE_NAMES[i] = Bytes.toBytes("t" + i);
+        }
+    }
+
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+    private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+    interface Buffer {
+        void save(byte[] tableName, Put put);
+    }
+
+    /**
+     * 改造前: 所有表共用一把公平写锁, RPC期间持锁
+     */
+    static class GlobalLockBuffer implements Buffer {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+        private final Map<byte[], List<Put>> putsMap = new TreeMap<byte[], List<Put>>(
+                Bytes.BYTES_COMPARATOR);
+
+        @Override
+        public void save(byte[] tableName, Put put) {
+            lock.writeLock().lock();
+            try {
+                List<Put> puts = putsMap.get(tableName);
+                if (puts == null) {
+                    puts = new ArrayList<Put>();
+                    putsMap.put(tableName, puts);
+                }
+                if (puts.size() >= QUEUE_SIZE) {
+                    rpc();
+                    puts.clear();
+                }
+                puts.add(put);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 改造后: 按表TableBuffer, RPC不持锁
+     */
+    static class StripedBuffer implements Buffer {
+        private final ConcurrentMap<byte[], TableBuffer> buffers = new ConcurrentSkipListMap<byte[], TableBuffer>(
+                Bytes.BYTES_COMPARATOR);
+
+        @Override
+        public void save(byte[] tableName, Put put) {
+            TableBuffer buffer = buffers.get(tableName);
+            if (buffer == null) {
+                TableBuffer created = new TableBuffer(tableName, MEMORY);
+                buffer = buffers.putIfAbsent(tableName, created);
+                if (buffer == null) {
+                    buffer = created;
+                }
+            }
+            buffer.add(put, put.heapSize());
+            if (buffer.size() >= QUEUE_SIZE) {
+                TableBuffer.Drain drain = buffer.drain();
+                if (!drain.isEmpty()) {
+                    rpc();
+                }
+                buffer.completed(drain);
+            }
+        }
+    }
+
+    private static void rpc() {
+        long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(RPC_MICROS);
+        while (System.nanoTime() < end) {
+            Thread.yield();
+        }
+    }
+
+    private static long run(final Buffer buffer, int threads)
+            throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+        for (int i = 0; i < threads; i++) {
+            final byte[] tableName = TABLE_NAMES[i % TABLES];
+            new Daemon(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long n = 0;
+                        while (System.currentTimeMillis() < deadline) {
+                            Put put = new Put(Bytes.toBytes(n));
+                            put.addColumn(FAMILY, QUALIFIER, Bytes.toBytes(n));
+                            buffer.save(tableName, put);
+                            n++;
+                        }
+                        ops.addAndGet(n);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return ops.get() * 1000 / DURATION_MILLIS;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("threads\tglobal-lock ops/s\tstriped ops/s");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            long global = run(new GlobalLockBuffer(), threads);
+            long striped = run(new StripedBuffer(), threads);
+            System.out.println(threads + "\t" + global + "\t" + striped);
+        }
+    }
+}